@@ -0,0 +1,138 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.client.ChangeKind;
+import com.google.gerrit.server.data.AccountAttribute;
+import com.google.gerrit.server.data.ChangeAttribute;
+import com.google.gerrit.server.data.PatchSetAttribute;
+import com.google.gerrit.server.data.RefUpdateAttribute;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.PatchSetCreatedEvent;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import com.google.gerrit.server.events.RefUpdatedEvent;
+import java.sql.Timestamp;
+import java.util.UUID;
+
+/** Representative Gerrit events, populated like the ones produced by a Gerrit server. */
+class BenchmarkEvents {
+  static final String PATCHSET_CREATED = "patchset-created";
+  static final String REF_UPDATED = "ref-updated";
+  static final String PROJECT_CREATED = "project-created";
+
+  private static final String PROJECT = "platform/frameworks/base";
+  private static final long CREATED_ON = 1601546400L;
+
+  static Event newEvent(String type) {
+    switch (type) {
+      case PATCHSET_CREATED:
+        return newPatchSetCreatedEvent();
+      case REF_UPDATED:
+        return newRefUpdatedEvent();
+      case PROJECT_CREATED:
+        return newProjectCreatedEvent();
+      default:
+        throw new IllegalArgumentException("Unsupported event type " + type);
+    }
+  }
+
+  static EventMessage newMessage(Event event) {
+    return new EventMessage(new Header(UUID.randomUUID(), UUID.randomUUID()), event);
+  }
+
+  private static PatchSetCreatedEvent newPatchSetCreatedEvent() {
+    Change change =
+        new Change(
+            Change.key("I8473b95934b5732ac55d26311a706c9c2bde9940"),
+            Change.id(123456),
+            Account.id(1000000),
+            BranchNameKey.create(Project.nameKey(PROJECT), "master"),
+            new Timestamp(CREATED_ON * 1000));
+    AccountAttribute owner = newAccount();
+
+    PatchSetAttribute patchSet = new PatchSetAttribute();
+    patchSet.number = 3;
+    patchSet.revision = "0123456789abcdef0123456789abcdef01234567";
+    patchSet.parents = ImmutableList.of("fedcba9876543210fedcba9876543210fedcba98");
+    patchSet.ref = "refs/changes/56/123456/3";
+    patchSet.uploader = owner;
+    patchSet.author = owner;
+    patchSet.createdOn = CREATED_ON;
+    patchSet.kind = ChangeKind.REWORK;
+    patchSet.sizeInsertions = 42;
+    patchSet.sizeDeletions = -7;
+
+    ChangeAttribute changeAttribute = new ChangeAttribute();
+    changeAttribute.project = PROJECT;
+    changeAttribute.branch = "master";
+    changeAttribute.topic = "broker-benchmarks";
+    changeAttribute.id = change.getKey().get();
+    changeAttribute.number = change.getId().get();
+    changeAttribute.subject = "Add JMH benchmarks for the broker hot paths";
+    changeAttribute.owner = owner;
+    changeAttribute.url = "https://gerrit.example.com/c/" + PROJECT + "/+/123456";
+    changeAttribute.commitMessage =
+        "Add JMH benchmarks for the broker hot paths\n\n"
+            + "Measure the throughput and latency of sending, replaying and\n"
+            + "serializing events.\n\n"
+            + "Change-Id: "
+            + change.getKey().get()
+            + "\n";
+    changeAttribute.createdOn = CREATED_ON;
+    changeAttribute.status = Change.Status.NEW;
+    changeAttribute.wip = false;
+
+    PatchSetCreatedEvent event = new PatchSetCreatedEvent(change);
+    event.change = Suppliers.ofInstance(changeAttribute);
+    event.patchSet = Suppliers.ofInstance(patchSet);
+    event.uploader = Suppliers.ofInstance(owner);
+    return event;
+  }
+
+  private static RefUpdatedEvent newRefUpdatedEvent() {
+    RefUpdateAttribute refUpdate = new RefUpdateAttribute();
+    refUpdate.project = PROJECT;
+    refUpdate.refName = "refs/heads/master";
+    refUpdate.oldRev = "fedcba9876543210fedcba9876543210fedcba98";
+    refUpdate.newRev = "0123456789abcdef0123456789abcdef01234567";
+
+    RefUpdatedEvent event = new RefUpdatedEvent();
+    event.refUpdate = Suppliers.ofInstance(refUpdate);
+    event.submitter = Suppliers.ofInstance(newAccount());
+    return event;
+  }
+
+  private static ProjectCreatedEvent newProjectCreatedEvent() {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = PROJECT;
+    event.headName = "refs/heads/master";
+    return event;
+  }
+
+  private static AccountAttribute newAccount() {
+    AccountAttribute account = new AccountAttribute();
+    account.name = "John Doe";
+    account.email = "john.doe@example.com";
+    account.username = "jdoe";
+    return account;
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.server.events.Event;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the size and the encoding and decoding cost of the {@link EventMessage}s, with and
+ * without the {@link CompressingEventMessageCodec}.
+ *
+ * <p>The events are the representative ones of the {@code eventType}, or the ones of the {@code
+ * corpus} file when set, holding the output of {@code ssh gerrit stream-events}, one JSON event per
+ * line. The average bytes per event of each codec are printed when the trial starts.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+  private static final int TRAINED_DICTIONARY_SIZE = 4096;
+
+  @Param({
+    BenchmarkEvents.PATCHSET_CREATED,
+    BenchmarkEvents.REF_UPDATED,
+    BenchmarkEvents.PROJECT_CREATED
+  })
+  public String eventType;
+
+  /** Uncompressed, Deflate alone, with the built-in dictionary or with a trained dictionary. */
+  @Param({"binary", "deflate", "deflate-dictionary", "deflate-trained"})
+  public String codecType;
+
+  @Param({""})
+  public String corpus;
+
+  private EventMessageCodec codec;
+  private EventMessage[] messages;
+  private byte[][] encoded;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    messages = loadMessages();
+    BinaryEventMessageCodec binaryCodec = new BinaryEventMessageCodec();
+    codec = newCodec(binaryCodec);
+
+    encoded = new byte[messages.length][];
+    long binaryBytes = 0;
+    long encodedBytes = 0;
+    for (int i = 0; i < messages.length; i++) {
+      encoded[i] = codec.encode(messages[i]);
+      binaryBytes += binaryCodec.encode(messages[i]).length;
+      encodedBytes += encoded[i].length;
+    }
+    System.out.printf(
+        "%n%s: %.1f bytes/event (%.1f%% of binary) over %d events%n",
+        codec,
+        (double) encodedBytes / messages.length,
+        100.0 * encodedBytes / binaryBytes,
+        messages.length);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return codec.encode(messages[nextIndex()]);
+  }
+
+  @Benchmark
+  public Event decode() {
+    return codec.decode(encoded[nextIndex()]).getEvent();
+  }
+
+  private int nextIndex() {
+    int index = next;
+    next = index + 1 == messages.length ? 0 : index + 1;
+    return index;
+  }
+
+  private EventMessage[] loadMessages() throws IOException {
+    if (corpus.isEmpty()) {
+      return new EventMessage[] {BenchmarkEvents.newMessage(BenchmarkEvents.newEvent(eventType))};
+    }
+
+    Gson gson = new EventGsonProvider().get();
+    List<EventMessage> loaded = new ArrayList<>();
+    for (String line : Files.readAllLines(Paths.get(corpus), UTF_8)) {
+      if (!line.trim().isEmpty()) {
+        loaded.add(BenchmarkEvents.newMessage(gson.fromJson(line, Event.class)));
+      }
+    }
+    if (loaded.isEmpty()) {
+      throw new IllegalArgumentException("No events in corpus " + corpus);
+    }
+    return loaded.toArray(new EventMessage[0]);
+  }
+
+  private EventMessageCodec newCodec(BinaryEventMessageCodec binaryCodec) {
+    switch (codecType) {
+      case "binary":
+        return binaryCodec;
+      case "deflate":
+        return new CompressingEventMessageCodec(
+            binaryCodec,
+            new byte[0],
+            Deflater.BEST_SPEED,
+            CompressingEventMessageCodec.DEFAULT_MIN_SIZE);
+      case "deflate-dictionary":
+        return new CompressingEventMessageCodec();
+      case "deflate-trained":
+        return new CompressingEventMessageCodec(
+            binaryCodec,
+            CompressingEventMessageCodec.trainDictionary(
+                trainingSamples(binaryCodec), TRAINED_DICTIONARY_SIZE),
+            Deflater.BEST_SPEED,
+            CompressingEventMessageCodec.DEFAULT_MIN_SIZE);
+      default:
+        throw new IllegalArgumentException("Unsupported codec " + codecType);
+    }
+  }
+
+  /** Every other event, so that half of the events measured were not seen by the training. */
+  private List<byte[]> trainingSamples(BinaryEventMessageCodec binaryCodec) {
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < messages.length; i += 2) {
+      samples.add(binaryCodec.encode(messages[i]));
+    }
+    return samples;
+  }
+}
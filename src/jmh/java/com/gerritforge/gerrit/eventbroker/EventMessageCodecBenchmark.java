@@ -0,0 +1,80 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.gerrit.server.events.Event;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the decoding of received {@link EventMessage}s, when only their header is needed, as for
+ * discarding the messages originated by the receiving node, and when their event is accessed too.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventMessageCodecBenchmark {
+
+  @Param({
+    BenchmarkEvents.PATCHSET_CREATED,
+    BenchmarkEvents.REF_UPDATED,
+    BenchmarkEvents.PROJECT_CREATED
+  })
+  public String eventType;
+
+  private BinaryEventMessageCodec binaryCodec;
+  private JsonEventMessageCodec jsonCodec;
+  private byte[] binary;
+  private byte[] json;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    binaryCodec = new BinaryEventMessageCodec();
+    jsonCodec = new JsonEventMessageCodec();
+    EventMessage message = BenchmarkEvents.newMessage(BenchmarkEvents.newEvent(eventType));
+    binary = binaryCodec.encode(message);
+    json = jsonCodec.encode(message);
+  }
+
+  @Benchmark
+  public UUID binaryHeaderOnly() {
+    return binaryCodec.decode(binary).getHeader().sourceInstanceId;
+  }
+
+  @Benchmark
+  public Event binaryWithEvent() {
+    return binaryCodec.decode(binary).getEvent();
+  }
+
+  @Benchmark
+  public UUID jsonHeaderOnly() {
+    return jsonCodec.decode(json).getHeader().sourceInstanceId;
+  }
+}
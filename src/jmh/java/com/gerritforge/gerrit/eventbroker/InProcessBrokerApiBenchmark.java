@@ -0,0 +1,113 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measures {@link InProcessBrokerApi#send} of one topic with a varying number of subscribers. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InProcessBrokerApiBenchmark {
+  static final String TOPIC = "benchmark-topic";
+
+  @Param({"1", "8", "64"})
+  public int subscribers;
+
+  private InProcessBrokerApi broker;
+
+  @Setup(Level.Trial)
+  public void setup(Blackhole blackhole) {
+    broker = new InProcessBrokerApi();
+    for (int i = 0; i < subscribers; i++) {
+      broker.receiveAsync(TOPIC, new BlackholeConsumer(blackhole));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    broker.disconnect();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean send(Messages messages) {
+    return broker.send(TOPIC, messages.next());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean sendConcurrently(Messages messages) {
+    return broker.send(TOPIC, messages.next());
+  }
+
+  /**
+   * Pool of distinct messages of each publishing thread, larger than the replay buffer so that they
+   * are never rejected as duplicates of the buffered ones.
+   */
+  @State(Scope.Thread)
+  public static class Messages {
+    private static final int POOL_SIZE = 1024;
+
+    private EventMessage[] pool;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      pool = new EventMessage[POOL_SIZE];
+      for (int i = 0; i < POOL_SIZE; i++) {
+        pool[i] = BenchmarkEvents.newMessage(BenchmarkEvents.newEvent(BenchmarkEvents.REF_UPDATED));
+      }
+    }
+
+    EventMessage next() {
+      next = (next + 1) & (POOL_SIZE - 1);
+      return pool[next];
+    }
+  }
+
+  /** Distinct consumer instance for each subscriber, as equal consumers are registered once. */
+  static class BlackholeConsumer implements Consumer<EventMessage> {
+    private final Blackhole blackhole;
+
+    BlackholeConsumer(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void accept(EventMessage message) {
+      blackhole.consume(message);
+    }
+  }
+}
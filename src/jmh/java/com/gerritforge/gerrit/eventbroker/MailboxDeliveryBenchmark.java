@@ -0,0 +1,107 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerApiBenchmark.Messages;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the delivery of a message to thousands of subscribers of one topic, invoking them on the
+ * sending thread or through their own mailboxes, with subscribers that either return immediately or
+ * block for a while, as when calling a remote service.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MailboxDeliveryBenchmark {
+
+  @Param({"1000", "10000"})
+  public int subscribers;
+
+  @Param({"SYNC", "MAILBOX"})
+  public DeliveryMode deliveryMode;
+
+  @Param({"0", "100"})
+  public long blockingMicros;
+
+  private InProcessBrokerApi broker;
+
+  @Setup(Level.Trial)
+  public void setup(Blackhole blackhole) {
+    broker =
+        new InProcessBrokerApi(
+            InProcessBrokerConfig.builder()
+                .deliveryMode(deliveryMode)
+                .replayBufferSize(1)
+                .build());
+    for (int i = 0; i < subscribers; i++) {
+      broker.receiveAsync(
+          InProcessBrokerApiBenchmark.TOPIC,
+          new BlockingConsumer(blackhole, TimeUnit.MICROSECONDS.toNanos(blockingMicros)));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    broker.disconnect();
+  }
+
+  /** Send a message and wait until all the subscribers have processed it. */
+  @Benchmark
+  @Threads(1)
+  public SendResult sendAndAwaitDelivery(Messages messages) {
+    return broker.sendAsync(InProcessBrokerApiBenchmark.TOPIC, messages.next()).join();
+  }
+
+  /** Distinct consumer for each subscriber, parking its thread for a fixed time. */
+  static class BlockingConsumer implements Consumer<EventMessage> {
+    private final Blackhole blackhole;
+    private final long blockingNanos;
+
+    BlockingConsumer(Blackhole blackhole, long blockingNanos) {
+      this.blackhole = blackhole;
+      this.blockingNanos = blockingNanos;
+    }
+
+    @Override
+    public void accept(EventMessage message) {
+      if (blockingNanos > 0) {
+        LockSupport.parkNanos(blockingNanos);
+      }
+      blackhole.consume(message);
+    }
+  }
+}
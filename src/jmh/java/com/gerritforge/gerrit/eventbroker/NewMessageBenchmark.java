@@ -0,0 +1,79 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.gerrit.server.events.Event;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BrokerApi#newMessage}, from one and from many threads, against creating the
+ * messages with {@link UUID#randomUUID()} event ids as it used to.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NewMessageBenchmark {
+  private BrokerApi broker;
+  private UUID instanceId;
+  private Event event;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    broker = new InProcessBrokerApi();
+    instanceId = UUID.randomUUID();
+    event = BenchmarkEvents.newEvent(BenchmarkEvents.REF_UPDATED);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public EventMessage newMessage() {
+    return broker.newMessage(instanceId, event);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public EventMessage newMessageConcurrently() {
+    return broker.newMessage(instanceId, event);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public EventMessage randomUuidMessage() {
+    return new EventMessage(new Header(UUID.randomUUID(), instanceId), event);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public EventMessage randomUuidMessageConcurrently() {
+    return new EventMessage(new Header(UUID.randomUUID(), instanceId), event);
+  }
+}
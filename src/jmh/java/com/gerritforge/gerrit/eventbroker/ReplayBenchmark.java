@@ -0,0 +1,72 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.gerritforge.gerrit.eventbroker.InProcessBrokerApiBenchmark.TOPIC;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerApiBenchmark.BlackholeConsumer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measures {@link InProcessBrokerApi#replayAllEvents} of a full in-memory replay buffer. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayBenchmark {
+
+  @Param({"100", "1000"})
+  public int replayBufferSize;
+
+  private InProcessBrokerApi broker;
+
+  @Setup(Level.Trial)
+  public void setup(Blackhole blackhole) {
+    broker =
+        new InProcessBrokerApi(
+            InProcessBrokerConfig.builder().replayBufferSize(replayBufferSize).build());
+    broker.receiveAsync(TOPIC, new BlackholeConsumer(blackhole));
+    for (int i = 0; i < replayBufferSize; i++) {
+      broker.send(
+          TOPIC,
+          BenchmarkEvents.newMessage(BenchmarkEvents.newEvent(BenchmarkEvents.PATCHSET_CREATED)));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    broker.disconnect();
+  }
+
+  @Benchmark
+  public void replayAllEvents() {
+    broker.replayAllEvents(TOPIC);
+  }
+}
@@ -0,0 +1,32 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Consumer of messages that is able to process a whole batch of messages sent through {@link
+ * BrokerApi#sendBatch(String, List)} in one go.
+ */
+public interface BatchConsumer extends Consumer<EventMessage> {
+
+  /**
+   * Accept and process a batch of messages, in the order they were sent.
+   *
+   * @param messages list of messages
+   */
+  void acceptBatch(List<EventMessage> messages);
+}
@@ -0,0 +1,307 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventTypes;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Encodes {@link EventMessage}s in a compact binary form:
+ *
+ * <pre>
+ *   byte     format version, currently {@value #VERSION}
+ *   16 bytes event id
+ *   16 bytes source instance id
+ *   varint   event type: 1 + its position in {@link #INTERNED_TYPES}, or 0 followed by
+ *            varint length and UTF-8 bytes of the type name
+ *   varint   length of the event
+ *   byte[]   event, as UTF-8 JSON
+ * </pre>
+ *
+ * <p>Knowing the event type upfront lets the event be parsed straight into its class, without first
+ * buffering it into a JSON tree. Messages are decoded as {@link LazyEventMessage}s, parsing the
+ * event only when it is first accessed, and forwarded without re-serializing the events never
+ * accessed.
+ *
+ * <p>The version byte is never {@code '{'}, so that the messages encoded as JSON by {@link
+ * JsonEventMessageCodec} are also decoded, allowing nodes still sending JSON to keep talking with
+ * the ones that moved to the binary format.
+ */
+public class BinaryEventMessageCodec implements EventMessageCodec {
+  static final byte VERSION = 1;
+
+  /**
+   * Event types encoded as their position in the list. New types can only be appended, as the
+   * position of the existing ones is part of the format.
+   */
+  static final ImmutableList<String> INTERNED_TYPES =
+      ImmutableList.of(
+          "assignee-changed",
+          "change-abandoned",
+          "change-deleted",
+          "change-merged",
+          "change-restored",
+          "comment-added",
+          "commit-received",
+          "hashtags-changed",
+          "patchset-created",
+          "private-state-changed",
+          "project-created",
+          "ref-received",
+          "ref-updated",
+          "reviewer-added",
+          "reviewer-deleted",
+          "topic-changed",
+          "vote-deleted",
+          "wip-state-changed");
+
+  private static final ImmutableMap<String, Integer> TYPE_IDS = typeIds();
+  private static final byte JSON_START = '{';
+  private static final int UUID_SIZE = 16;
+
+  private final Gson gson;
+  private final JsonEventMessageCodec jsonCodec;
+
+  public BinaryEventMessageCodec() {
+    this(new EventGsonProvider().get());
+  }
+
+  public BinaryEventMessageCodec(Gson gson) {
+    this.gson = gson;
+    this.jsonCodec = new JsonEventMessageCodec(gson);
+  }
+
+  @Override
+  public byte[] encode(EventMessage message) {
+    Encoding encoding = new Encoding(message);
+    ByteBuffer buffer = ByteBuffer.allocate(encoding.size());
+    encoding.writeTo(buffer);
+    return buffer.array();
+  }
+
+  @Override
+  public void encode(EventMessage message, ByteBuffer buffer) {
+    Encoding encoding = new Encoding(message);
+    if (encoding.size() > buffer.remaining()) {
+      throw new BufferOverflowException();
+    }
+    encoding.writeTo(buffer);
+  }
+
+  @Override
+  public EventMessage decode(ByteBuffer buffer) {
+    return decode(buffer, MessageFilter.ALL).get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The header and the event type are matched before deserializing the body of the event, which
+   * is skipped when they are not selected.
+   */
+  @Override
+  public Optional<EventMessage> decode(ByteBuffer buffer, MessageFilter filter) {
+    if (!buffer.hasRemaining()) {
+      throw new IllegalArgumentException("Empty message");
+    }
+    byte version = buffer.get(buffer.position());
+    if (version == JSON_START) {
+      return jsonCodec.decode(buffer, filter);
+    }
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported message format version " + version);
+    }
+
+    try {
+      buffer.get();
+      Header header = new Header(readUuid(buffer), readUuid(buffer));
+      String type = readType(buffer);
+      Class<?> eventClass = EventTypes.getClass(type);
+      if (eventClass == null) {
+        throw new IllegalArgumentException("Unknown event type: " + type);
+      }
+      int length = readLength(buffer);
+      if (!filter.matches(header, type)) {
+        buffer.position(buffer.position() + length);
+        return Optional.empty();
+      }
+      byte[] encodedEvent = new byte[length];
+      buffer.get(encodedEvent);
+      LazyEventMessage message =
+          new LazyEventMessage(header, type, encodedEvent, bytes -> readEvent(bytes, eventClass));
+      if (!filter.projects().isEmpty()
+          && !filter.matchesProject(MessageFilter.projectOf(message.getEvent()))) {
+        return Optional.empty();
+      }
+      return Optional.of(message);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated message", e);
+    }
+  }
+
+  private Event readEvent(byte[] encodedEvent, Class<?> eventClass) {
+    try (JsonReader reader =
+        new JsonReader(new InputStreamReader(new ByteArrayInputStream(encodedEvent), UTF_8))) {
+      Event event = (Event) gson.getAdapter(eventClass).read(reader);
+      if (event == null) {
+        throw new IllegalArgumentException("Missing event");
+      }
+      return event;
+    } catch (IOException | JsonParseException | IllegalStateException e) {
+      throw new IllegalArgumentException("Invalid event", e);
+    }
+  }
+
+  private static String readType(ByteBuffer buffer) {
+    int typeId = readVarint(buffer);
+    if (typeId > INTERNED_TYPES.size()) {
+      throw new IllegalArgumentException("Unknown interned event type " + typeId);
+    }
+    if (typeId > 0) {
+      return INTERNED_TYPES.get(typeId - 1);
+    }
+    byte[] name = new byte[readLength(buffer)];
+    buffer.get(name);
+    return new String(name, UTF_8);
+  }
+
+  /** Read the length of a field, never beyond the end of the buffer. */
+  private static int readLength(ByteBuffer buffer) {
+    int length = readVarint(buffer);
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    return length;
+  }
+
+  private static UUID readUuid(ByteBuffer buffer) {
+    return new UUID(buffer.getLong(), buffer.getLong());
+  }
+
+  private static void writeUuid(ByteBuffer buffer, UUID uuid) {
+    buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+  }
+
+  static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        if (value < 0) {
+          throw new IllegalArgumentException("Negative varint");
+        }
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  static void writeVarint(ByteBuffer buffer, int value) {
+    while ((value & ~0x7f) != 0) {
+      buffer.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  static int varintSize(int value) {
+    int size = 1;
+    while ((value & ~0x7f) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static ImmutableMap<String, Integer> typeIds() {
+    ImmutableMap.Builder<String, Integer> typeIds = ImmutableMap.builder();
+    for (int i = 0; i < INTERNED_TYPES.size(); i++) {
+      typeIds.put(INTERNED_TYPES.get(i), i + 1);
+    }
+    return typeIds.build();
+  }
+
+  /** Pre-computed parts of an encoded message, so that its size is known before writing it. */
+  private class Encoding {
+    private final Header header;
+    private final int typeId;
+    private final byte[] typeName;
+    private final byte[] event;
+
+    Encoding(EventMessage message) {
+      message.validate();
+      header = message.getHeader();
+      String type = message.getEventType();
+      typeId = TYPE_IDS.getOrDefault(type, 0);
+      typeName = typeId == 0 ? type.getBytes(UTF_8) : null;
+      event =
+          message instanceof LazyEventMessage && !((LazyEventMessage) message).isDecoded()
+              ? ((LazyEventMessage) message).encodedEvent()
+              : toJson(message.getEvent());
+    }
+
+    int size() {
+      int size = 1 + 2 * UUID_SIZE + varintSize(typeId);
+      if (typeName != null) {
+        size += varintSize(typeName.length) + typeName.length;
+      }
+      return size + varintSize(event.length) + event.length;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+      buffer.put(VERSION);
+      writeUuid(buffer, header.eventId);
+      writeUuid(buffer, header.sourceInstanceId);
+      writeVarint(buffer, typeId);
+      if (typeName != null) {
+        writeVarint(buffer, typeName.length);
+        buffer.put(typeName);
+      }
+      writeVarint(buffer, event.length);
+      buffer.put(event);
+    }
+
+    private byte[] toJson(Event event) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+      try (Writer writer = new OutputStreamWriter(out, UTF_8)) {
+        gson.toJson(event, Event.class, writer);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return out.toByteArray();
+    }
+  }
+}
@@ -14,25 +14,31 @@
 
 package com.gerritforge.gerrit.eventbroker;
 
+import static java.util.stream.Collectors.toList;
+
 import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
 import com.google.gerrit.server.events.Event;
+import java.time.Instant;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
 /** API for sending/receiving events through a message Broker. */
 public interface BrokerApi {
 
   /**
-   * Creates a {@link EventMessage} for an event
+   * Creates a {@link EventMessage} for an event, with a time-ordered id generated by {@link
+   * EventIds}.
    *
    * @param event event associated with the message
    * @param instanceId Gerrit instanceId that originated the event
    * @return {@link EventMessage} object
    */
   default EventMessage newMessage(UUID instanceId, Event event) {
-
-    return new EventMessage(new Header(UUID.randomUUID(), instanceId), event);
+    return new EventMessage(new Header(EventIds.next(), instanceId), event);
   }
 
   /**
@@ -44,6 +50,40 @@ public interface BrokerApi {
    */
   boolean send(String topic, EventMessage message);
 
+  /**
+   * Send a message to a topic without waiting for its delivery.
+   *
+   * <p>The returned future completes once the outcome of the delivery is known, allowing the
+   * producer to tell a queued message apart from a delivered one and to limit the number of
+   * messages in flight. A {@link SendResult#REJECTED} result signals that the broker has no
+   * capacity left and that the producer should slow down.
+   *
+   * <p>The default implementation sends the message synchronously through {@link #send(String,
+   * EventMessage)}.
+   *
+   * @param topic topic name
+   * @param message to be send to the topic
+   * @return the future outcome of the delivery of the message
+   */
+  default CompletableFuture<SendResult> sendAsync(String topic, EventMessage message) {
+    return CompletableFuture.completedFuture(
+        send(topic, message) ? SendResult.DELIVERED : SendResult.FAILED);
+  }
+
+  /**
+   * Send a batch of messages to a topic.
+   *
+   * <p>Subscribers implementing {@link BatchConsumer} may receive the whole batch at once, whilst
+   * the others receive the messages one by one, in the order of the list.
+   *
+   * @param topic topic name
+   * @param messages to be send to the topic
+   * @return for each message of the batch, true if it was successfully sent. False otherwise.
+   */
+  default List<Boolean> sendBatch(String topic, List<EventMessage> messages) {
+    return messages.stream().map(message -> send(topic, message)).collect(toList());
+  }
+
   /**
    * Receive asynchronously a message from a topic.
    *
@@ -52,6 +92,63 @@ public interface BrokerApi {
    */
   void receiveAsync(String topic, Consumer<EventMessage> consumer);
 
+  /**
+   * Receive asynchronously the messages of a topic matching a filter.
+   *
+   * <p>Brokers evaluate the filter before invoking the consumer, and possibly before deserializing
+   * the messages, so that the consumer is never invoked with the messages it is not interested in.
+   * The default implementation filters the messages received by the consumer through {@link
+   * #receiveAsync(String, Consumer)}.
+   *
+   * @param topic topic name
+   * @param filter filter selecting the messages delivered to the consumer
+   * @param consumer an operation that accepts and process a single message
+   */
+  default void receiveAsync(String topic, MessageFilter filter, Consumer<EventMessage> consumer) {
+    receiveAsync(
+        topic,
+        message -> {
+          if (filter.matches(message)) {
+            consumer.accept(message);
+          }
+        });
+  }
+
+  /**
+   * Receive asynchronously the messages of a topic as a member of a consumer group.
+   *
+   * <p>The members of a group share the load of the topic: each message is delivered to only one of
+   * them, whilst the consumers outside the group, and the other groups, still receive a copy of
+   * every message.
+   *
+   * <p>The default implementation does not support consumer groups and subscribes the consumer to
+   * all the messages of the topic, as {@link #receiveAsync(String, Consumer)}: each member then
+   * receives a copy of every message.
+   *
+   * @param topic topic name
+   * @param groupId id of the consumer group
+   * @param consumer an operation that accepts and process a single message
+   */
+  default void receiveAsync(String topic, String groupId, Consumer<EventMessage> consumer) {
+    receiveAsync(topic, consumer);
+  }
+
+  /**
+   * Stop receiving the messages of a topic, leaving the other subscribers of the topic and the
+   * messages stored for replay untouched: subscribing again later, as after reloading a plugin,
+   * resumes the delivery and can still replay the messages sent meanwhile.
+   *
+   * <p>The default implementation does not support unsubscribing: the subscriber keeps receiving
+   * the messages until the broker is disconnected.
+   *
+   * @param subscriber subscriber, as listed by {@link #topicSubscribers()}
+   * @return true if the subscriber was unsubscribed, false if it was not subscribed or the broker
+   *     does not support unsubscribing
+   */
+  default boolean unsubscribe(TopicSubscriber subscriber) {
+    return false;
+  }
+
   /**
    * Get the active subscribers
    *
@@ -68,4 +165,51 @@ public interface BrokerApi {
    * @param topic topic name
    */
   void replayAllEvents(String topic);
+
+  /**
+   * Redeliver all stored messages for specified topic, pacing the redelivery.
+   *
+   * <p>Implementations invoke {@code proceed} before redelivering each message: it may block to
+   * limit the rate of the redelivery, and returning false stops it. The default implementation
+   * cannot pace the redelivery and redelivers all stored messages, as {@link
+   * #replayAllEvents(String)}, once {@code proceed} returns true.
+   *
+   * @param topic topic name
+   * @param proceed invoked before redelivering each message, returning false to stop
+   */
+  default void replayAllEvents(String topic, BooleanSupplier proceed) {
+    if (proceed.getAsBoolean()) {
+      replayAllEvents(topic);
+    }
+  }
+
+  /**
+   * Redeliver the stored messages of a topic starting from an offset.
+   *
+   * <p>Implementations tracking the offsets of the messages processed by each subscriber redeliver
+   * to every subscriber only the messages it has not yet processed, including those it failed to
+   * process. The default implementation redelivers all stored messages, as {@link
+   * #replayAllEvents(String)}.
+   *
+   * @param topic topic name
+   * @param offset offset of the first message to redeliver
+   */
+  default void replayFrom(String topic, long offset) {
+    replayAllEvents(topic);
+  }
+
+  /**
+   * Redeliver the messages of a topic stored at or after a point in time.
+   *
+   * <p>Implementations tracking the offsets of the messages processed by each subscriber redeliver
+   * to every subscriber only the messages it has not yet processed, including those it failed to
+   * process. The default implementation redelivers all stored messages, as {@link
+   * #replayAllEvents(String)}.
+   *
+   * @param topic topic name
+   * @param timestamp point in time of the first message to redeliver
+   */
+  default void replayFrom(String topic, Instant timestamp) {
+    replayAllEvents(topic);
+  }
 }
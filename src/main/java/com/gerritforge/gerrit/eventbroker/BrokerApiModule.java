@@ -18,6 +18,7 @@ import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Scopes;
+import com.google.inject.name.Names;
 
 public class BrokerApiModule extends AbstractModule {
   DynamicItem<BrokerApi> currentBrokerApi;
@@ -30,8 +31,15 @@ public class BrokerApiModule extends AbstractModule {
   @Override
   protected void configure() {
     if (currentBrokerApi == null) {
+      bind(InProcessBrokerConfig.class)
+          .toProvider(InProcessBrokerConfigProvider.class)
+          .in(Scopes.SINGLETON);
+      bind(BrokerApi.class)
+          .annotatedWith(Names.named(MetricsBrokerApi.DELEGATE))
+          .toProvider(TransportBrokerApiProvider.class)
+          .in(Scopes.SINGLETON);
       DynamicItem.itemOf(binder(), BrokerApi.class);
-      DynamicItem.bind(binder(), BrokerApi.class).to(InProcessBrokerApi.class).in(Scopes.SINGLETON);
+      DynamicItem.bind(binder(), BrokerApi.class).to(MetricsBrokerApi.class).in(Scopes.SINGLETON);
     }
   }
 }
@@ -0,0 +1,151 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Counter2;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer2;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.gerrit.server.logging.PluginMetadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/** Metrics of the messages flowing through a {@link BrokerApi}, exported through Gerrit. */
+@Singleton
+public class BrokerMetrics {
+  private static final String LAMBDA_CLASS_SEPARATOR = "$$Lambda";
+
+  private final Counter1<String> messagesSent;
+  private final Counter1<String> messagesFailed;
+  private final Counter1<String> replayRequests;
+  private final Timer2<String, String> subscriberLatency;
+  private final Counter2<String, String> subscriberFailures;
+  private final CallbackMetric1<String, Long> queuedMessages;
+  /** Source of the messages queued for delivery, by topic. */
+  private volatile Supplier<Map<String, Long>> queuedMessagesSource = ImmutableMap::of;
+
+  @Inject
+  public BrokerMetrics(MetricMaker metricMaker) {
+    Field<String> topicField =
+        Field.ofString(
+                "topic",
+                (metadataBuilder, topic) ->
+                    metadataBuilder.addPluginMetadata(PluginMetadata.create("topic", topic)))
+            .description("Name of the topic")
+            .build();
+    Field<String> subscriberField =
+        Field.ofString("subscriber", Metadata.Builder::className)
+            .description("Class of the subscriber")
+            .build();
+
+    this.messagesSent =
+        metricMaker.newCounter(
+            "broker/messages_sent",
+            new Description("Messages successfully sent to a topic").setRate().setUnit("messages"),
+            topicField);
+    this.messagesFailed =
+        metricMaker.newCounter(
+            "broker/messages_failed",
+            new Description("Messages that failed to be sent to a topic")
+                .setRate()
+                .setUnit("messages"),
+            topicField);
+    this.replayRequests =
+        metricMaker.newCounter(
+            "broker/replay_requests",
+            new Description("Requests to redeliver the stored messages of a topic")
+                .setRate()
+                .setUnit("requests"),
+            topicField);
+    this.subscriberLatency =
+        metricMaker.newTimer(
+            "broker/subscriber_latency",
+            new Description("Time taken by a subscriber to process a message")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            topicField,
+            subscriberField);
+    this.subscriberFailures =
+        metricMaker.newCounter(
+            "broker/subscriber_failures",
+            new Description("Messages that a subscriber failed to process")
+                .setRate()
+                .setUnit("messages"),
+            topicField,
+            subscriberField);
+    this.queuedMessages =
+        metricMaker.newCallbackMetric(
+            "broker/queued_messages",
+            Long.class,
+            new Description("Messages queued for delivery on a topic")
+                .setGauge()
+                .setUnit("messages"),
+            topicField);
+    metricMaker.newTrigger(queuedMessages, this::updateQueuedMessages);
+  }
+
+  /**
+   * Export the messages queued for delivery by a broker.
+   *
+   * @param source supplies the number of messages queued for delivery, by topic
+   */
+  void trackQueuedMessages(Supplier<Map<String, Long>> source) {
+    queuedMessagesSource = source;
+  }
+
+  private void updateQueuedMessages() {
+    queuedMessagesSource.get().forEach(queuedMessages::set);
+    queuedMessages.prune();
+  }
+
+  void sent(String topic, boolean success) {
+    if (success) {
+      messagesSent.increment(topic);
+    } else {
+      messagesFailed.increment(topic);
+    }
+  }
+
+  void replayRequested(String topic) {
+    replayRequests.increment(topic);
+  }
+
+  void processed(String topic, String subscriber, long elapsedNanos) {
+    subscriberLatency.record(topic, subscriber, elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void failed(String topic, String subscriber) {
+    subscriberFailures.increment(topic, subscriber);
+  }
+
+  /**
+   * @return the name identifying a subscriber in the metrics: its class name, without the suffix
+   *     generated for the lambdas
+   */
+  static String subscriberName(Consumer<EventMessage> consumer) {
+    String name = consumer.getClass().getName();
+    int lambdaSeparator = name.indexOf(LAMBDA_CLASS_SEPARATOR);
+    return lambdaSeparator > 0 ? name.substring(0, lambdaSeparator) : name;
+  }
+}
@@ -0,0 +1,341 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparingLong;
+
+import com.google.common.collect.Lists;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the messages encoded by another {@link EventMessageCodec} with Deflate, primed with a
+ * dictionary of the strings recurring in the Gerrit events.
+ *
+ * <p>The messages smaller than a threshold are left as encoded by the other codec, as are the ones
+ * that do not shrink: they can be decoded by both codecs. The compressed messages start with a
+ * marker byte that neither the {@link BinaryEventMessageCodec} nor the {@link
+ * JsonEventMessageCodec} use, followed by the size of the uncompressed message and the zlib stream,
+ * which identifies the dictionary it was compressed with.
+ *
+ * <p>The Deflate streams hold native memory: they are reused through a pool bounded by the number
+ * of processors, and the streams released whilst the pool is full are ended straight away.
+ */
+public class CompressingEventMessageCodec implements EventMessageCodec {
+  static final byte COMPRESSED = (byte) 0x80;
+
+  /** Minimum size of the encoded messages worth compressing by default. */
+  public static final int DEFAULT_MIN_SIZE = 256;
+
+  /** Maximum size of the encoded messages compressed, bounding the memory used to decompress. */
+  static final int MAX_SIZE = 64 * 1024 * 1024;
+
+  /** Maximum compression ratio that Deflate can achieve. */
+  private static final int MAX_RATIO = 1032;
+
+  /**
+   * Dictionary of the strings recurring in the JSON of the Gerrit events, the most common last, as
+   * Deflate finds them with shorter distances.
+   */
+  public static final byte[] GERRIT_EVENTS_DICTIONARY =
+      String.join(
+              "",
+              "\"kind\":\"TRIVIAL_REBASE\"",
+              "\"kind\":\"NO_CODE_CHANGE\"",
+              "\"status\":\"MERGED\"",
+              "\"status\":\"ABANDONED\"",
+              "\"type\":\"change-merged\"",
+              "\"type\":\"change-abandoned\"",
+              "\"type\":\"reviewer-added\"",
+              "\"type\":\"project-created\"",
+              "\"headName\":\"refs/heads/master\"",
+              "\"approvals\":[{\"type\":\"Verified\",\"description\":\"Verified\",\"value\":\"",
+              "\"approvals\":[{\"type\":\"Code-Review\",",
+              "\"description\":\"Code-Review\",\"value\":\"",
+              "\"oldValue\":\"0\"",
+              "\"comment\":\"Patch Set ",
+              "\"type\":\"comment-added\"",
+              "\"refUpdate\":{\"oldRev\":\"",
+              "\"newRev\":\"",
+              "\"refName\":\"refs/heads/master\"",
+              "\"type\":\"ref-updated\"",
+              "\"submitter\":{",
+              "\"reviewer\":{",
+              "\"author\":{",
+              "\"type\":\"patchset-created\"",
+              "\"kind\":\"REWORK\"",
+              "\"sizeInsertions\":",
+              "\"sizeDeletions\":",
+              "\"parents\":[\"",
+              "\"ref\":\"refs/changes/",
+              "\"revision\":\"",
+              "\"patchSet\":{\"number\":",
+              "\"uploader\":{",
+              "\"status\":\"NEW\"",
+              "\"wip\":false",
+              "\"private\":false",
+              "\"commitMessage\":\"",
+              "\\n\\nChange-Id: I",
+              "\"subject\":\"",
+              "\"url\":\"https://",
+              "/+/",
+              "\"topic\":\"",
+              "\"number\":",
+              "\"id\":\"I",
+              "\"branch\":\"master\"",
+              "\"change\":{\"project\":\"",
+              "\"project\":\"",
+              "\"owner\":{\"name\":\"",
+              "\"email\":\"",
+              "\"username\":\"",
+              "\"name\":\"",
+              "\"createdOn\":",
+              "\"eventCreatedOn\":")
+          .getBytes(UTF_8);
+
+  private final EventMessageCodec codec;
+  private final byte[] dictionary;
+  private final int dictionaryId;
+  private final int level;
+  private final int minSize;
+  private final StreamPool<Deflater> deflaters;
+  private final StreamPool<Inflater> inflaters;
+
+  /** Compress the messages encoded by the {@link BinaryEventMessageCodec}, with the defaults. */
+  public CompressingEventMessageCodec() {
+    this(
+        new BinaryEventMessageCodec(),
+        GERRIT_EVENTS_DICTIONARY,
+        Deflater.BEST_SPEED,
+        DEFAULT_MIN_SIZE);
+  }
+
+  /**
+   * @param codec codec encoding the messages before compressing them
+   * @param dictionary preset dictionary of Deflate, as produced by {@link #trainDictionary(List,
+   *     int)}, or empty for none
+   * @param level Deflate compression level, from {@link Deflater#BEST_SPEED} to {@link
+   *     Deflater#BEST_COMPRESSION}
+   * @param minSize minimum size of the encoded messages to compress
+   */
+  public CompressingEventMessageCodec(
+      EventMessageCodec codec, byte[] dictionary, int level, int minSize) {
+    checkArgument(
+        level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION,
+        "invalid compression level %s",
+        level);
+    this.codec = codec;
+    this.dictionary = dictionary.clone();
+    Adler32 adler = new Adler32();
+    adler.update(this.dictionary);
+    this.dictionaryId = (int) adler.getValue();
+    this.level = level;
+    this.minSize = minSize;
+    this.deflaters = new StreamPool<>(() -> new Deflater(level), Deflater::end);
+    this.inflaters = new StreamPool<>(Inflater::new, Inflater::end);
+  }
+
+  @Override
+  public byte[] encode(EventMessage message) {
+    byte[] encoded = codec.encode(message);
+    if (encoded.length < minSize || encoded.length > MAX_SIZE) {
+      return encoded;
+    }
+
+    ByteBuffer compressed = ByteBuffer.allocate(5 + encoded.length);
+    compressed.put(COMPRESSED);
+    compressed.putInt(encoded.length);
+    byte[] output = compressed.array();
+    int size = compressed.position();
+    Deflater deflater = deflaters.acquire();
+    try {
+      deflater.reset();
+      if (dictionary.length > 0) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(encoded);
+      deflater.finish();
+      while (!deflater.finished() && size < output.length) {
+        size += deflater.deflate(output, size, output.length - size);
+      }
+      if (!deflater.finished() || size >= encoded.length) {
+        return encoded;
+      }
+    } finally {
+      deflaters.release(deflater);
+    }
+    return Arrays.copyOf(output, size);
+  }
+
+  @Override
+  public void encode(EventMessage message, ByteBuffer buffer) {
+    byte[] encoded = encode(message);
+    if (encoded.length > buffer.remaining()) {
+      throw new BufferOverflowException();
+    }
+    buffer.put(encoded);
+  }
+
+  @Override
+  public EventMessage decode(ByteBuffer buffer) {
+    return codec.decode(uncompressed(buffer));
+  }
+
+  @Override
+  public Optional<EventMessage> decode(ByteBuffer buffer, MessageFilter filter) {
+    return codec.decode(uncompressed(buffer), filter);
+  }
+
+  /**
+   * Find the strings recurring the most in a set of sample messages, to be used as dictionary.
+   *
+   * <p>The samples are split into JSON tokens, and the tokens are ranked by the bytes they would
+   * save across all the samples: the best ones are kept, up to the maximum size, and placed last.
+   *
+   * @param samples encoded messages, representative of the messages to compress
+   * @param maxSize maximum size of the dictionary
+   * @return the dictionary
+   */
+  public static byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+    Map<String, Long> savings = new HashMap<>();
+    for (byte[] sample : samples) {
+      for (String token : tokens(new String(sample, UTF_8))) {
+        if (token.length() > 3) {
+          savings.merge(token, (long) token.length(), Long::sum);
+        }
+      }
+    }
+
+    List<String> ranked =
+        savings.entrySet().stream()
+            .filter(e -> e.getValue() > e.getKey().length())
+            .sorted(comparingLong(e -> -e.getValue()))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+    List<byte[]> selected = new ArrayList<>();
+    int size = 0;
+    for (String token : ranked) {
+      byte[] bytes = token.getBytes(UTF_8);
+      if (size + bytes.length <= maxSize) {
+        selected.add(bytes);
+        size += bytes.length;
+      }
+    }
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+    for (byte[] bytes : Lists.reverse(selected)) {
+      dictionary.write(bytes, 0, bytes.length);
+    }
+    return dictionary.toByteArray();
+  }
+
+  /** Split JSON into the key-value fragments that recur across the events. */
+  private static List<String> tokens(String json) {
+    return Arrays.stream(json.split("(?<=[,{\\[])"))
+        .map(String::trim)
+        .filter(token -> !token.isEmpty())
+        .collect(Collectors.toList());
+  }
+
+  private ByteBuffer uncompressed(ByteBuffer buffer) {
+    if (!buffer.hasRemaining() || buffer.get(buffer.position()) != COMPRESSED) {
+      return buffer;
+    }
+
+    try {
+      buffer.get();
+      int size = buffer.getInt();
+      if (size < 0 || size > MAX_SIZE || size > (long) buffer.remaining() * MAX_RATIO) {
+        throw new IllegalArgumentException("Invalid compressed message size " + size);
+      }
+      byte[] input = new byte[buffer.remaining()];
+      buffer.get(input);
+      byte[] output = new byte[size];
+      Inflater inflater = inflaters.acquire();
+      try {
+        inflater.reset();
+        inflater.setInput(input);
+        int inflated = inflater.inflate(output);
+        if (inflater.needsDictionary()) {
+          if (inflater.getAdler() != dictionaryId) {
+            throw new IllegalArgumentException("Message compressed with an unknown dictionary");
+          }
+          inflater.setDictionary(dictionary);
+          inflated += inflater.inflate(output, inflated, size - inflated);
+        }
+        if (inflated != size || !inflater.finished()) {
+          throw new IllegalArgumentException("Truncated compressed message");
+        }
+      } finally {
+        inflaters.release(inflater);
+      }
+      return ByteBuffer.wrap(output);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated compressed message", e);
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Invalid compressed message", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "Deflate(level=%d, dictionary=%d bytes, minSize=%d) of %s",
+        level, dictionary.length, minSize, codec.getClass().getSimpleName());
+  }
+
+  /** Bounded pool of Deflate streams, ending the streams released whilst it is full. */
+  private static class StreamPool<T> {
+    private static final int SIZE = Runtime.getRuntime().availableProcessors();
+
+    private final BlockingQueue<T> idle = new ArrayBlockingQueue<>(SIZE);
+    private final Supplier<T> factory;
+    private final Consumer<T> end;
+
+    StreamPool(Supplier<T> factory, Consumer<T> end) {
+      this.factory = factory;
+      this.end = end;
+    }
+
+    T acquire() {
+      T stream = idle.poll();
+      return stream != null ? stream : factory.get();
+    }
+
+    void release(T stream) {
+      if (!idle.offer(stream)) {
+        end.accept(stream);
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventTypes;
+
+/**
+ * Message that a subscriber failed to process, recorded on the dead-letter topic of its topic
+ * together with the details of the failure.
+ */
+public class DeadLetterEvent extends Event {
+  public static final String TYPE = "dead-letter";
+
+  static {
+    EventTypes.register(TYPE, DeadLetterEvent.class);
+  }
+
+  /** Topic the message was sent to. */
+  public String topic;
+
+  /** Subscriber that failed to process the message. */
+  public String subscriber;
+
+  /** Number of times the subscriber was given the message. */
+  public int attempts;
+
+  /** Class and message of the last exception thrown by the subscriber. */
+  public String failure;
+
+  /** Message the subscriber failed to process. */
+  public EventMessage message;
+
+  public DeadLetterEvent() {
+    super(TYPE);
+  }
+
+  /**
+   * Register the type of the dead-letter events, so that they can be deserialized before any is
+   * created.
+   */
+  public static void register() {
+    // Registered by the static initializer
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.flogger.FluentLogger;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops the messages whose event id has already been seen within a time window.
+ *
+ * <p>The event ids seen are kept in a small number of time buckets, each covering a fraction of the
+ * window: the oldest bucket is discarded as a whole once it falls out of the window, so that an id
+ * is remembered for at least the whole window. The memory is bounded by the capacity: when the
+ * newest bucket is full, a new one is started ahead of time, shortening the window rather than
+ * growing without limits.
+ */
+public class DeduplicationFilter {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final int BUCKETS = 4;
+
+  private final long windowMillis;
+  private final long bucketMillis;
+  private final int bucketCapacity;
+  private final Clock clock;
+  /** Buckets of the event ids seen, the newest first. */
+  private volatile Bucket[] buckets;
+
+  /**
+   * @param window time for which the event ids are remembered, or zero to never drop duplicates
+   * @param capacity maximum number of event ids remembered
+   * @param clock clock measuring the window
+   */
+  public DeduplicationFilter(Duration window, int capacity, Clock clock) {
+    checkArgument(!window.isNegative(), "window cannot be negative");
+    checkArgument(capacity >= BUCKETS, "capacity must be at least %s", BUCKETS);
+    this.windowMillis = window.toMillis();
+    this.bucketMillis = Math.max(1, windowMillis / (BUCKETS - 1));
+    this.bucketCapacity = capacity / BUCKETS;
+    this.clock = clock;
+    this.buckets = new Bucket[] {new Bucket(clock.millis() + bucketMillis)};
+  }
+
+  /** @return true if the filter may drop any message */
+  public boolean isEnabled() {
+    return windowMillis > 0;
+  }
+
+  /**
+   * Check whether a message is to be delivered, recording its event id.
+   *
+   * @param header header of the message
+   * @return true if the message is to be delivered, false if its event id was already seen within
+   *     the window
+   */
+  public boolean accept(Header header) {
+    if (windowMillis == 0 || header.eventId == null) {
+      return true;
+    }
+
+    long now = clock.millis();
+    Bucket[] current = buckets;
+    if (now >= current[0].end || current[0].ids.size() >= bucketCapacity) {
+      current = rotate(now);
+    }
+    for (int i = 1; i < current.length; i++) {
+      if (current[i].ids.contains(header.eventId)) {
+        return false;
+      }
+    }
+    return current[0].ids.add(header.eventId);
+  }
+
+  /**
+   * Forget the event id of a message accepted but then rejected by the broker, so that the message
+   * is delivered when sent again.
+   *
+   * @param header header of the message
+   */
+  public void forget(Header header) {
+    if (header.eventId == null) {
+      return;
+    }
+    for (Bucket bucket : buckets) {
+      bucket.ids.remove(header.eventId);
+    }
+  }
+
+  private synchronized Bucket[] rotate(long now) {
+    Bucket[] current = buckets;
+    if (now < current[0].end && current[0].ids.size() < bucketCapacity) {
+      return current;
+    }
+    if (now < current[0].end) {
+      log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "More than %d events in %d ms: de-duplication window shortened",
+          bucketCapacity, bucketMillis);
+    }
+
+    List<Bucket> rotated = new ArrayList<>(BUCKETS);
+    rotated.add(new Bucket(now + bucketMillis));
+    for (Bucket bucket : current) {
+      if (rotated.size() == BUCKETS || bucket.end <= now - windowMillis) {
+        break;
+      }
+      rotated.add(bucket);
+    }
+    buckets = rotated.toArray(new Bucket[0]);
+    return buckets;
+  }
+
+  private static class Bucket {
+    final Set<UUID> ids;
+    final long end;
+
+    Bucket(long end) {
+      this.ids = ConcurrentHashMap.newKeySet();
+      this.end = end;
+    }
+  }
+}
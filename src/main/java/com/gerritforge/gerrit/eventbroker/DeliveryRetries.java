@@ -0,0 +1,149 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Handles the deliveries that a subscriber failed to process: they are given again to the same
+ * subscriber only, with an exponential backoff, and once the retries are exhausted the messages are
+ * recorded on the dead-letter topic of their topic as {@link DeadLetterEvent}s.
+ *
+ * <p>The retries are scheduled on a {@link TimerWheel} shared by all the brokers, and run on a pool
+ * of their own, so that they never hold up the delivery of the other messages.
+ */
+class DeliveryRetries {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private static final Duration TICK = Duration.ofMillis(10);
+  private static final int WHEEL_SIZE = 512;
+  private static final int MAX_BACKOFF_SHIFT = 30;
+
+  /** Pool and timer of the retries, created on first use. */
+  private static class Scheduler {
+    static final ExecutorService EXECUTOR =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("broker-retry-%d").setDaemon(true).build());
+    static final TimerWheel WHEEL =
+        new TimerWheel("broker-retry-timer", TICK, WHEEL_SIZE, EXECUTOR);
+  }
+
+  private final int retryAttempts;
+  private final Duration retryBackoff;
+  private final Duration retryMaxBackoff;
+  private final Optional<String> deadLetterTopicSuffix;
+  private final BiConsumer<String, EventMessage> deadLetters;
+  private final AtomicInteger pending = new AtomicInteger();
+  /** Incremented by {@link #cancel()}, discarding the retries scheduled before. */
+  private final AtomicInteger generation = new AtomicInteger();
+
+  /**
+   * @param config configuration of the retries and of the dead-letter topics
+   * @param deadLetters delivers a message to a dead-letter topic
+   */
+  DeliveryRetries(InProcessBrokerConfig config, BiConsumer<String, EventMessage> deadLetters) {
+    this.retryAttempts = config.retryAttempts();
+    this.retryBackoff = config.retryBackoff();
+    this.retryMaxBackoff = config.retryMaxBackoff();
+    this.deadLetterTopicSuffix = config.deadLetterTopicSuffix();
+    this.deadLetters = deadLetters;
+    if (deadLetterTopicSuffix.isPresent()) {
+      DeadLetterEvent.register();
+    }
+  }
+
+  /**
+   * Handle the failure of a subscriber to process some messages, either retrying the delivery or
+   * recording the messages on the dead-letter topic.
+   *
+   * @param topic topic the messages were sent to
+   * @param subscriber subscriber that failed
+   * @param messages messages the subscriber failed to process
+   * @param attempt number of times the subscriber was given the messages
+   * @param cause exception thrown by the subscriber
+   * @param retry delivers the messages again to the subscriber
+   * @return true if the delivery is retried, false if it failed for good
+   */
+  boolean failed(
+      String topic,
+      Consumer<EventMessage> subscriber,
+      List<EventMessage> messages,
+      int attempt,
+      RuntimeException cause,
+      Runnable retry) {
+    if (attempt <= retryAttempts) {
+      int scheduledGeneration = generation.get();
+      pending.incrementAndGet();
+      Scheduler.WHEEL.schedule(
+          () -> {
+            if (generation.get() == scheduledGeneration) {
+              pending.decrementAndGet();
+              retry.run();
+            }
+          },
+          backoff(attempt));
+      return true;
+    }
+
+    if (!deadLetterTopicSuffix.isPresent() || topic.endsWith(deadLetterTopicSuffix.get())) {
+      return false;
+    }
+    String deadLetterTopic = topic + deadLetterTopicSuffix.get();
+    for (EventMessage message : messages) {
+      DeadLetterEvent event = new DeadLetterEvent();
+      event.topic = topic;
+      event.subscriber = BrokerMetrics.subscriberName(subscriber);
+      event.attempts = attempt;
+      event.failure = cause.toString();
+      event.message = message;
+      try {
+        deadLetters.accept(
+            deadLetterTopic,
+            new EventMessage(
+                new Header(EventIds.next(), message.getHeader().sourceInstanceId), event));
+      } catch (RuntimeException e) {
+        log.atSevere().withCause(e).log(
+            "Unable to record %s on dead-letter topic %s", message.getHeader(), deadLetterTopic);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Discard the retries scheduled.
+   *
+   * @return number of retries discarded
+   */
+  int cancel() {
+    generation.incrementAndGet();
+    return pending.getAndSet(0);
+  }
+
+  /** @return the delay before the given attempt is retried, doubling at every attempt */
+  Duration backoff(int attempt) {
+    Duration backoff = retryBackoff.multipliedBy(1L << Math.min(attempt - 1, MAX_BACKOFF_SHIFT));
+    return backoff.compareTo(retryMaxBackoff) > 0 ? retryMaxBackoff : backoff;
+  }
+}
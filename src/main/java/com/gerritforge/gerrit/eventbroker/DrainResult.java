@@ -0,0 +1,37 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.auto.value.AutoValue;
+
+/** Outcome of draining the messages queued in a broker before disconnecting it. */
+@AutoValue
+public abstract class DrainResult {
+  public static final DrainResult EMPTY = create(0, 0);
+
+  /** Number of queued messages delivered to the subscribers before the deadline. */
+  public abstract long drained();
+
+  /** Number of queued messages discarded when the deadline expired. */
+  public abstract long dropped();
+
+  public static DrainResult create(long drained, long dropped) {
+    return new AutoValue_DrainResult(drained, dropped);
+  }
+
+  public DrainResult plus(DrainResult other) {
+    return create(drained() + other.drained(), dropped() + other.dropped());
+  }
+}
@@ -15,29 +15,53 @@
 package com.gerritforge.gerrit.eventbroker;
 
 import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.Project;
-import com.google.gerrit.server.change.ChangeKeyAdapter;
 import com.google.gerrit.server.events.Event;
-import com.google.gerrit.server.events.EventDeserializer;
 import com.google.gerrit.server.events.EventTypes;
-import com.google.gerrit.server.events.ProjectNameKeyAdapter;
-import com.google.gerrit.server.events.SupplierDeserializer;
-import com.google.gerrit.server.events.SupplierSerializer;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Provider;
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 
+/**
+ * Provides the {@link Gson} instance for serializing and deserializing {@link Event}s and {@link
+ * EventMessage}s.
+ *
+ * <p>The instance is built once and shared, as {@link Gson} is immutable and thread-safe. All the
+ * type adapters stream their JSON, apart from the deserialization of an {@link Event} that needs to
+ * read its {@code type} property before being able to select the adapter of the concrete class.
+ */
 public class EventGsonProvider implements Provider<Gson> {
 
+  private static final Gson GSON =
+      new GsonBuilder()
+          .registerTypeAdapterFactory(new EventTypeAdapterFactory())
+          .registerTypeAdapterFactory(new SupplierTypeAdapterFactory())
+          .registerTypeAdapterFactory(new LazyEventMessageTypeAdapterFactory())
+          .registerTypeAdapter(Change.Key.class, new ChangeKeyTypeAdapter().nullSafe())
+          .registerTypeAdapter(Project.NameKey.class, new ProjectNameKeyTypeAdapter().nullSafe())
+          .create();
+
+  /** @deprecated superseded by the streaming adapter of the {@link Event}s. */
+  @Deprecated
   public static class EventSerializer implements JsonSerializer<Event> {
 
     @Override
@@ -53,6 +77,8 @@ public class EventGsonProvider implements Provider<Gson> {
     }
   }
 
+  /** @deprecated superseded by the streaming adapter of the {@link Project.NameKey}s. */
+  @Deprecated
   public class ProjectNameKeyDeserializer implements JsonDeserializer<Project.NameKey> {
 
     @Override
@@ -71,15 +97,181 @@ public class EventGsonProvider implements Provider<Gson> {
     }
   }
 
+  /**
+   * Serializes and deserializes {@link Event}s through the adapter of the class registered in
+   * {@link EventTypes} for their type. The class is looked up for every event, following the types
+   * registered again by reloaded plugins, whilst {@link Gson} caches the adapter of each class.
+   */
+  static class EventTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (type.getRawType() != Event.class) {
+        return null;
+      }
+      return (TypeAdapter<T>) new EventTypeAdapter(gson).nullSafe();
+    }
+  }
+
+  private static class EventTypeAdapter extends TypeAdapter<Event> {
+    private final Gson gson;
+    private final TypeAdapter<JsonElement> jsonElementAdapter;
+
+    EventTypeAdapter(Gson gson) {
+      this.gson = gson;
+      this.jsonElementAdapter = gson.getAdapter(JsonElement.class);
+    }
+
+    @Override
+    public void write(JsonWriter out, Event event) throws IOException {
+      adapter(event.getType()).write(out, event);
+    }
+
+    @Override
+    public Event read(JsonReader in) throws IOException {
+      JsonElement json = jsonElementAdapter.read(in);
+      if (!json.isJsonObject()) {
+        throw new JsonParseException("Not an object");
+      }
+      JsonElement typeJson = ((JsonObject) json).get("type");
+      if (typeJson == null
+          || !typeJson.isJsonPrimitive()
+          || !typeJson.getAsJsonPrimitive().isString()) {
+        throw new JsonParseException("Type is not a string: " + typeJson);
+      }
+      return adapter(typeJson.getAsString()).fromJsonTree(json);
+    }
+
+    @SuppressWarnings("unchecked")
+    private TypeAdapter<Event> adapter(String type) {
+      Class<?> cls = EventTypes.getClass(type);
+      if (cls == null) {
+        throw new JsonParseException("Unknown event type: " + type);
+      }
+      return (TypeAdapter<Event>) gson.getAdapter(cls);
+    }
+  }
+
+  /** Serializes a {@link Supplier} as the value it supplies. */
+  static class SupplierTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (type.getRawType() != Supplier.class) {
+        return null;
+      }
+      Type valueType =
+          type.getType() instanceof ParameterizedType
+              ? ((ParameterizedType) type.getType()).getActualTypeArguments()[0]
+              : Object.class;
+      TypeAdapter<Object> valueAdapter =
+          (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(valueType));
+      return (TypeAdapter<T>) new SupplierTypeAdapter(valueAdapter).nullSafe();
+    }
+  }
+
+  private static class SupplierTypeAdapter extends TypeAdapter<Supplier<Object>> {
+    private final TypeAdapter<Object> valueAdapter;
+
+    SupplierTypeAdapter(TypeAdapter<Object> valueAdapter) {
+      this.valueAdapter = valueAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Supplier<Object> supplier) throws IOException {
+      valueAdapter.write(out, supplier.get());
+    }
+
+    @Override
+    public Supplier<Object> read(JsonReader in) throws IOException {
+      return Suppliers.ofInstance(valueAdapter.read(in));
+    }
+  }
+
+  /** Serializes a {@link LazyEventMessage} as the {@link EventMessage} it stands for. */
+  static class LazyEventMessageTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (type.getRawType() != LazyEventMessage.class) {
+        return null;
+      }
+      TypeAdapter<EventMessage> messageAdapter = gson.getAdapter(EventMessage.class);
+      return (TypeAdapter<T>) new LazyEventMessageTypeAdapter(messageAdapter).nullSafe();
+    }
+  }
+
+  private static class LazyEventMessageTypeAdapter extends TypeAdapter<LazyEventMessage> {
+    private final TypeAdapter<EventMessage> messageAdapter;
+
+    LazyEventMessageTypeAdapter(TypeAdapter<EventMessage> messageAdapter) {
+      this.messageAdapter = messageAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, LazyEventMessage message) throws IOException {
+      messageAdapter.write(out, new EventMessage(message.getHeader(), message.getEvent()));
+    }
+
+    @Override
+    public LazyEventMessage read(JsonReader in) {
+      throw new JsonParseException("Messages are deserialized as " + EventMessage.class.getName());
+    }
+  }
+
+  /** Serializes a {@link Change.Key} as an object with an {@code id} property, like Gerrit does. */
+  private static class ChangeKeyTypeAdapter extends TypeAdapter<Change.Key> {
+    private static final String ID = "id";
+
+    @Override
+    public void write(JsonWriter out, Change.Key key) throws IOException {
+      out.beginObject().name(ID).value(key.get()).endObject();
+    }
+
+    @Override
+    public Change.Key read(JsonReader in) throws IOException {
+      String id = null;
+      in.beginObject();
+      while (in.hasNext()) {
+        if (ID.equals(in.nextName())) {
+          id = readString(in);
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      if (id == null) {
+        throw new JsonParseException("Missing change key id");
+      }
+      return Change.key(id);
+    }
+  }
+
+  private static class ProjectNameKeyTypeAdapter extends TypeAdapter<Project.NameKey> {
+
+    @Override
+    public void write(JsonWriter out, Project.NameKey nameKey) throws IOException {
+      out.value(nameKey.get());
+    }
+
+    @Override
+    public Project.NameKey read(JsonReader in) throws IOException {
+      return Project.nameKey(readString(in));
+    }
+  }
+
+  private static String readString(JsonReader in) throws IOException {
+    if (in.peek() != JsonToken.STRING) {
+      throw new JsonParseException("Not a string: " + in.peek());
+    }
+    return in.nextString();
+  }
+
   @Override
   public Gson get() {
-    return new GsonBuilder()
-        .registerTypeAdapter(Event.class, new EventDeserializer())
-        .registerTypeAdapter(Event.class, new EventSerializer())
-        .registerTypeAdapter(Supplier.class, new SupplierSerializer())
-        .registerTypeAdapter(Supplier.class, new SupplierDeserializer())
-        .registerTypeAdapter(Change.Key.class, new ChangeKeyAdapter())
-        .registerTypeAdapter(Project.NameKey.class, new ProjectNameKeyAdapter())
-        .create();
+    return GSON;
   }
 }
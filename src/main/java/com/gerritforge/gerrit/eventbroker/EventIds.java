@@ -0,0 +1,61 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates the ids of the events as time-ordered version 7 UUIDs, made of the Unix time in
+ * milliseconds followed by 74 random bits.
+ *
+ * <p>The random bits come from the {@link ThreadLocalRandom} of the calling thread, so that the
+ * threads do not contend on a shared generator as with {@link UUID#randomUUID()}, which also pays
+ * for a cryptographically strong generator the event ids do not need.
+ */
+public final class EventIds {
+  private static final int VERSION = 7;
+
+  /** @return a new event id */
+  public static UUID next() {
+    return next(System.currentTimeMillis());
+  }
+
+  /**
+   * @param epochMilli creation time of the id
+   * @return a new event id, holding the creation time
+   */
+  static UUID next(long epochMilli) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long mostSigBits = (epochMilli << 16) | (VERSION << 12) | (random.nextInt() & 0xfff);
+    long leastSigBits = (random.nextLong() >>> 2) | Long.MIN_VALUE;
+    return new UUID(mostSigBits, leastSigBits);
+  }
+
+  /**
+   * @param eventId id generated by {@link #next()}
+   * @return the creation time of the id
+   * @throws IllegalArgumentException if the id is not a version 7 UUID
+   */
+  public static Instant timestamp(UUID eventId) {
+    checkArgument(eventId.version() == VERSION, "%s is not a version 7 UUID", eventId);
+    return Instant.ofEpochMilli(eventId.getMostSignificantBits() >>> 16);
+  }
+
+  private EventIds() {}
+}
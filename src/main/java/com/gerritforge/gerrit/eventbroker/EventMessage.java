@@ -42,6 +42,16 @@ public class EventMessage {
     return body;
   }
 
+  /**
+   * Returns the type of the event, without deserializing it when the message was received in its
+   * encoded form.
+   *
+   * @return type of the event
+   */
+  public String getEventType() {
+    return getEvent().getType();
+  }
+
   /** Contains all additional information required to successfully send an {@code Event} object. */
   public static class Header {
     /** Unique event id. */
@@ -53,6 +63,9 @@ public class EventMessage {
     /** @deprecated required for interoperability with older JSON wire protocols */
     public final String eventType;
 
+    /** String form, computed on first use. */
+    private transient String string;
+
     public Header(UUID eventId, UUID sourceInstanceId) {
       this.eventId = eventId;
       this.sourceInstanceId = sourceInstanceId;
@@ -67,7 +80,12 @@ public class EventMessage {
 
     @Override
     public String toString() {
-      return "{" + "eventId=" + eventId + ", sourceInstanceId=" + sourceInstanceId + '}';
+      String result = string;
+      if (result == null) {
+        result = "{eventId=" + eventId + ", sourceInstanceId=" + sourceInstanceId + '}';
+        string = result;
+      }
+      return result;
     }
   }
 
@@ -92,6 +110,6 @@ public class EventMessage {
 
   @Override
   public String toString() {
-    return String.format("Header='%s', Body='%s'", header, body);
+    return "Header='" + header + "', Body='" + getEvent() + "'";
   }
 }
@@ -0,0 +1,78 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/** Wire format of the {@link EventMessage}s exchanged through a broker. */
+public interface EventMessageCodec {
+
+  /**
+   * Encode a message.
+   *
+   * @param message message to encode
+   * @return encoded message
+   */
+  byte[] encode(EventMessage message);
+
+  /**
+   * Encode a message into a buffer, starting at its current position.
+   *
+   * @param message message to encode
+   * @param buffer buffer receiving the encoded message, whose position is advanced past it
+   * @throws BufferOverflowException if the buffer has not enough room for the encoded message, in
+   *     which case the buffer is left untouched
+   */
+  void encode(EventMessage message, ByteBuffer buffer);
+
+  /**
+   * Decode a message.
+   *
+   * @param bytes encoded message
+   * @return decoded message
+   * @throws IllegalArgumentException if the bytes are not a valid encoded message
+   */
+  default EventMessage decode(byte[] bytes) {
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Decode a message from all the remaining bytes of a buffer.
+   *
+   * @param buffer buffer containing the encoded message, whose position is advanced past it
+   * @return decoded message
+   * @throws IllegalArgumentException if the bytes are not a valid encoded message
+   */
+  EventMessage decode(ByteBuffer buffer);
+
+  /**
+   * Decode a message from all the remaining bytes of a buffer, if it matches a filter.
+   *
+   * <p>Codecs storing the header and the event type ahead of the event body evaluate the filter
+   * before deserializing the body, and skip it when the message is not selected. The default
+   * implementation decodes the whole message before filtering it.
+   *
+   * @param buffer buffer containing the encoded message, whose position is advanced past it
+   * @param filter filter selecting the messages to decode
+   * @return decoded message, or empty if the message does not match the filter
+   * @throws IllegalArgumentException if the bytes are not a valid encoded message
+   */
+  default Optional<EventMessage> decode(ByteBuffer buffer, MessageFilter filter) {
+    EventMessage message = decode(buffer);
+    return filter.matches(message) ? Optional.of(message) : Optional.empty();
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Fixed-capacity buffer of the most recent messages of a topic, de-duplicated by {@link
+ * EventMessage.Header#eventId}.
+ *
+ * <p>Messages are stored in a circular array and indexed by event id in an open-addressing hash
+ * table of slot positions, so that duplicate detection, insertion and eviction are O(1) and do not
+ * allocate once the buffer is full.
+ */
+class EventMessageRingBuffer implements ReplayStore {
+  private static final int EMPTY = -1;
+
+  private final EventMessage[] messages;
+  private final long[] timestamps;
+  private final int[] index;
+  private final int indexMask;
+  private final Clock clock;
+  private int size;
+  private long nextOffset;
+
+  EventMessageRingBuffer(int capacity) {
+    this(capacity, Clock.systemUTC());
+  }
+
+  EventMessageRingBuffer(int capacity, Clock clock) {
+    checkArgument(capacity > 0, "capacity must be positive");
+    this.clock = clock;
+    this.messages = new EventMessage[capacity];
+    this.timestamps = new long[capacity];
+    // Keep the load factor of the index at or below 0.5
+    this.index = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+    this.indexMask = index.length - 1;
+    Arrays.fill(index, EMPTY);
+  }
+
+  /**
+   * Add a message to the buffer, evicting the oldest one if the buffer is full.
+   *
+   * @param message message to add
+   * @return offset assigned to the message, or {@link #NOT_STORED} if a message with the same event
+   *     id is already in the buffer
+   */
+  @Override
+  public synchronized long append(EventMessage message) {
+    UUID eventId = eventId(message);
+    if (eventId != null && find(eventId) != EMPTY) {
+      return NOT_STORED;
+    }
+
+    int next = slot(nextOffset);
+    EventMessage evicted = messages[next];
+    if (evicted != null) {
+      UUID evictedId = eventId(evicted);
+      if (evictedId != null) {
+        removeFromIndex(find(evictedId));
+      }
+    } else {
+      size++;
+    }
+
+    messages[next] = message;
+    timestamps[next] = clock.millis();
+    if (eventId != null) {
+      int pos = hash(eventId) & indexMask;
+      while (index[pos] != EMPTY) {
+        pos = (pos + 1) & indexMask;
+      }
+      index[pos] = next;
+    }
+    return nextOffset++;
+  }
+
+  @Override
+  public void replay(long fromOffset, ObjLongConsumer<EventMessage> consumer) {
+    EventMessage[] replayed;
+    long firstOffset;
+    synchronized (this) {
+      firstOffset = Math.max(fromOffset, nextOffset - size);
+      int count = (int) Math.max(0, nextOffset - firstOffset);
+      replayed = new EventMessage[count];
+      for (int i = 0; i < count; i++) {
+        replayed[i] = messages[slot(firstOffset + i)];
+      }
+    }
+    for (int i = 0; i < replayed.length; i++) {
+      consumer.accept(replayed[i], firstOffset + i);
+    }
+  }
+
+  @Override
+  public synchronized long offsetAt(Instant timestamp) {
+    long millis = timestamp.toEpochMilli();
+    for (long offset = nextOffset - size; offset < nextOffset; offset++) {
+      if (timestamps[slot(offset)] >= millis) {
+        return offset;
+      }
+    }
+    return nextOffset;
+  }
+
+  synchronized boolean contains(UUID eventId) {
+    return find(eventId) != EMPTY;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  int capacity() {
+    return messages.length;
+  }
+
+  /** @return the messages in the buffer, from the oldest to the most recent */
+  synchronized List<EventMessage> snapshot() {
+    List<EventMessage> snapshot = new ArrayList<>(size);
+    for (long offset = nextOffset - size; offset < nextOffset; offset++) {
+      snapshot.add(messages[slot(offset)]);
+    }
+    return snapshot;
+  }
+
+  /** @return the slot of a stored offset */
+  private int slot(long offset) {
+    return (int) (offset % messages.length);
+  }
+
+  /** @return the position in the index of the given event id, or {@link #EMPTY} */
+  private int find(UUID eventId) {
+    int pos = hash(eventId) & indexMask;
+    while (index[pos] != EMPTY) {
+      if (eventId.equals(eventId(messages[index[pos]]))) {
+        return pos;
+      }
+      pos = (pos + 1) & indexMask;
+    }
+    return EMPTY;
+  }
+
+  /** Remove an entry from the index, shifting back the following entries of its probe sequence. */
+  private void removeFromIndex(int pos) {
+    if (pos == EMPTY) {
+      return;
+    }
+    int hole = pos;
+    int cur = pos;
+    while (true) {
+      cur = (cur + 1) & indexMask;
+      if (index[cur] == EMPTY) {
+        index[hole] = EMPTY;
+        return;
+      }
+      int home = hash(eventId(messages[index[cur]])) & indexMask;
+      // The entry at cur can fill the hole only if its home position is not cyclically
+      // within (hole, cur]
+      boolean homeBetween =
+          hole <= cur ? (hole < home && home <= cur) : (hole < home || home <= cur);
+      if (!homeBetween) {
+        index[hole] = index[cur];
+        hole = cur;
+      }
+    }
+  }
+
+  private static UUID eventId(EventMessage message) {
+    EventMessage.Header header = message.getHeader();
+    return header != null ? header.eventId : null;
+  }
+
+  private static int hash(UUID eventId) {
+    long bits = eventId.getMostSignificantBits() ^ eventId.getLeastSignificantBits();
+    int h = (int) (bits ^ (bits >>> 32));
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,50 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Assigns the messages of a topic to a fixed number of partitions, by the {@link PartitionKey} of
+ * their events. Messages without a key all go to the first partition.
+ *
+ * <p>The keys are spread with consistent hashing, so that changing the number of partitions moves
+ * as few keys as possible to a different partition.
+ */
+class EventPartitioner {
+  private final PartitionKey partitionKey;
+  private final int partitions;
+
+  EventPartitioner(PartitionKey partitionKey, int partitions) {
+    this.partitionKey = partitionKey;
+    this.partitions = partitions;
+  }
+
+  int partitions() {
+    return partitions;
+  }
+
+  /**
+   * @param message message to partition
+   * @return index of the partition of the message, between 0 and {@link #partitions()} excluded
+   */
+  int partition(EventMessage message) {
+    if (partitions == 1) {
+      return 0;
+    }
+    Object key = partitionKey.of(message.getEvent());
+    return key == null ? 0 : Hashing.consistentHash(key.hashCode(), partitions);
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the replays of the topics of the current {@link BrokerApi} as asynchronous {@link
+ * ReplayJob}s, off the thread requesting them.
+ */
+@Singleton
+public class EventReplayer {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /** Number of finished jobs kept for reporting. */
+  static final int MAX_FINISHED_JOBS = 20;
+
+  private final Supplier<BrokerApi> brokerApi;
+  private final Executor executor;
+  private final Clock clock;
+  private final AtomicInteger lastJobId = new AtomicInteger();
+  private final ConcurrentMap<Integer, ReplayJob> jobs = new ConcurrentHashMap<>();
+
+  @Inject
+  EventReplayer(DynamicItem<BrokerApi> brokerApi) {
+    this(
+        brokerApi::get,
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("broker-replay-%d").setDaemon(true).build()),
+        Clock.systemUTC());
+  }
+
+  EventReplayer(Supplier<BrokerApi> brokerApi, Executor executor, Clock clock) {
+    this.brokerApi = brokerApi;
+    this.executor = executor;
+    this.clock = clock;
+  }
+
+  /**
+   * Start replaying all stored messages of a set of topics, in parallel.
+   *
+   * @param topics topics to replay
+   * @param messagesPerSecond maximum number of messages redelivered per second, across all topics,
+   *     or zero for no limit
+   * @return the job replaying the topics
+   */
+  public ReplayJob start(Collection<String> topics, double messagesPerSecond) {
+    checkArgument(!topics.isEmpty(), "no topics to replay");
+    checkArgument(messagesPerSecond >= 0, "messagesPerSecond cannot be negative");
+    ReplayJob job =
+        new ReplayJob(lastJobId.incrementAndGet(), topics, messagesPerSecond, clock.instant());
+    pruneFinishedJobs();
+    jobs.put(job.id(), job);
+
+    CompletableFuture<?>[] topicReplays =
+        job.topics().stream()
+            .map(topic -> CompletableFuture.runAsync(() -> replay(job, topic), executor))
+            .toArray(CompletableFuture[]::new);
+    CompletableFuture.allOf(topicReplays)
+        .whenComplete(
+            (v, failure) -> {
+              if (failure != null) {
+                log.atSevere().withCause(failure).log("Replay %d failed", job.id());
+              }
+              job.finish(failure);
+            });
+    return job;
+  }
+
+  /** @return the replay jobs running or recently finished, from the oldest to the newest */
+  public ImmutableList<ReplayJob> jobs() {
+    return jobs.values().stream()
+        .sorted(Comparator.comparingInt(ReplayJob::id))
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  public Optional<ReplayJob> job(int id) {
+    return Optional.ofNullable(jobs.get(id));
+  }
+
+  private void replay(ReplayJob job, String topic) {
+    brokerApi.get().replayAllEvents(topic, job::proceed);
+    job.topicCompleted();
+  }
+
+  private void pruneFinishedJobs() {
+    jobs.values().stream()
+        .filter(job -> job.state() != ReplayJob.State.RUNNING)
+        .sorted(Comparator.comparingInt(ReplayJob::id).reversed())
+        .skip(MAX_FINISHED_JOBS - 1)
+        .forEach(job -> jobs.remove(job.id()));
+  }
+}
@@ -15,92 +15,638 @@
 package com.gerritforge.gerrit.eventbroker;
 
 import static com.gerritforge.gerrit.eventbroker.TopicSubscriber.topicSubscriber;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
-import com.google.common.collect.EvictingQueue;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import com.gerritforge.gerrit.eventbroker.TopicDispatcher.TrackedDelivery;
+import com.gerritforge.gerrit.eventbroker.TopicRouter.PatternSubscription;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapMaker;
-import com.google.common.eventbus.EventBus;
-import com.google.common.eventbus.Subscribe;
 import com.google.common.flogger.FluentLogger;
-import java.util.HashSet;
+import com.google.common.primitives.Booleans;
+import com.google.inject.Inject;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
-public class InProcessBrokerApi implements BrokerApi {
+public class InProcessBrokerApi implements BrokerApi, QueuedMessages {
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
 
-  private static final Integer DEFAULT_MESSAGE_QUEUE_SIZE = 100;
+  static final String TOPIC_DIRECTORY_PREFIX = "topic-";
 
-  private final Map<String, EvictingQueue<EventMessage>> messagesQueueMap;
-  private final Map<String, EventBus> eventBusMap;
-  private final Set<TopicSubscriber> topicSubscribers;
+  private final ConcurrentMap<String, ReplayStore> replayStoreMap;
+  private final ConcurrentMap<String, TopicConsumers> topicConsumersMap;
+  /**
+   * Subscriptions of topic patterns, registered to the consumers of each matching topic. Locked
+   * whilst registering them, so that no topic created meanwhile misses any.
+   */
+  private final TopicRouter topicRouter;
+  /** Copy-on-write set of subscribers, returned as it is by {@link #topicSubscribers()}. */
+  private final AtomicReference<ImmutableSet<TopicSubscriber>> topicSubscribers;
+
+  private final ConcurrentMap<String, TopicDispatcher> dispatcherMap;
+  private final InProcessBrokerConfig config;
+  private final EventMessageCodec codec;
+  /**
+   * Runs the subscribers' mailboxes in {@link DeliveryMode#MAILBOX} mode, created on first use and
+   * shut down when drained: null until then, and in the other modes.
+   */
+  private ExecutorService subscriberExecutor;
+  /** Drops the duplicate messages sent to the topics. */
+  private final DeduplicationFilter deduplicationFilter;
+  /** Retries the failed deliveries and records them on the dead-letter topics, null if disabled. */
+  private final DeliveryRetries retries;
+  /** Set whilst {@link #drain(Duration)} runs, rejecting the messages sent. */
+  private volatile boolean draining;
 
   public InProcessBrokerApi() {
-    this.eventBusMap = new MapMaker().concurrencyLevel(1).makeMap();
-    this.messagesQueueMap = new MapMaker().concurrencyLevel(1).makeMap();
-    this.topicSubscribers = new HashSet<>();
+    this(InProcessBrokerConfig.defaults());
+  }
+
+  @Inject
+  public InProcessBrokerApi(InProcessBrokerConfig config) {
+    this.config = config;
+    this.codec = new BinaryEventMessageCodec();
+    this.topicConsumersMap = new MapMaker().makeMap();
+    this.topicRouter = new TopicRouter();
+    this.replayStoreMap = new MapMaker().makeMap();
+    this.topicSubscribers = new AtomicReference<>(ImmutableSet.of());
+    this.dispatcherMap = new MapMaker().makeMap();
+    this.deduplicationFilter =
+        new DeduplicationFilter(
+            config.deduplicationWindow(), config.deduplicationCapacity(), Clock.systemUTC());
+    this.retries =
+        config.retryAttempts() > 0 || config.deadLetterTopicSuffix().isPresent()
+            ? new DeliveryRetries(config, this::deadLetter)
+            : null;
   }
 
   @Override
   public boolean send(String topic, EventMessage message) {
-    EventBus topicEventConsumers = eventBusMap.get(topic);
+    if (draining) {
+      return false;
+    }
+    TopicConsumers topicEventConsumers = routedTopicConsumers(topic);
+    if (topicEventConsumers == null || !accept(message)) {
+      return true;
+    }
+    boolean sent;
     try {
-      if (topicEventConsumers != null) {
-        topicEventConsumers.post(message);
-      }
+      sent =
+          config.deliveryMode() == DeliveryMode.ASYNC
+              ? dispatcher(topic).dispatch(message, () -> topicEventConsumers.deliver(message))
+              : topicEventConsumers.deliver(message);
     } catch (RuntimeException e) {
       log.atSevere().withCause(e).log();
+      deduplicationFilter.forget(message.getHeader());
       return false;
     }
-    return true;
+    if (!sent && config.deliveryMode() != DeliveryMode.SYNC) {
+      deduplicationFilter.forget(message.getHeader());
+    }
+    return sent;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>In {@link DeliveryMode#ASYNC} mode the message is queued without ever blocking, whatever the
+   * overflow policy, and the future completes once all subscribers have processed it. When the
+   * topic queue is full, the result is {@link SendResult#REJECTED}, bounding the memory used by the
+   * messages in flight to the capacity of the queue.
+   *
+   * <p>In {@link DeliveryMode#MAILBOX} mode the message is queued on the mailbox of each subscriber
+   * without ever blocking, and the result is {@link SendResult#REJECTED} when any of the mailboxes
+   * is full.
+   *
+   * <p>The messages dropped as duplicate complete as {@link SendResult#DELIVERED}, as there is
+   * nothing left to deliver, whilst the rejected messages are delivered when sent again.
+   */
+  @Override
+  public CompletableFuture<SendResult> sendAsync(String topic, EventMessage message) {
+    if (draining) {
+      return CompletableFuture.completedFuture(SendResult.REJECTED);
+    }
+    TopicConsumers topicEventConsumers = routedTopicConsumers(topic);
+    if (topicEventConsumers == null || !accept(message)) {
+      return CompletableFuture.completedFuture(SendResult.DELIVERED);
+    }
+    if (config.deliveryMode() == DeliveryMode.SYNC) {
+      try {
+        return CompletableFuture.completedFuture(
+            topicEventConsumers.deliver(message) ? SendResult.DELIVERED : SendResult.FAILED);
+      } catch (RuntimeException e) {
+        log.atSevere().withCause(e).log();
+        deduplicationFilter.forget(message.getHeader());
+        return CompletableFuture.completedFuture(SendResult.FAILED);
+      }
+    }
+    if (config.deliveryMode() == DeliveryMode.MAILBOX) {
+      try {
+        return topicEventConsumers
+            .deliverAsync(message)
+            .whenComplete(
+                (result, failure) -> {
+                  if (result == SendResult.REJECTED) {
+                    deduplicationFilter.forget(message.getHeader());
+                  }
+                });
+      } catch (RuntimeException e) {
+        log.atSevere().withCause(e).log();
+        deduplicationFilter.forget(message.getHeader());
+        return CompletableFuture.completedFuture(SendResult.FAILED);
+      }
+    }
+
+    TrackedDelivery delivery = new TrackedDelivery(() -> topicEventConsumers.deliver(message));
+    try {
+      if (!dispatcher(topic).tryDispatch(message, delivery)) {
+        deduplicationFilter.forget(message.getHeader());
+        delivery.discard();
+      }
+    } catch (RuntimeException e) {
+      log.atSevere().withCause(e).log();
+      deduplicationFilter.forget(message.getHeader());
+      delivery.discard();
+    }
+    return delivery.result();
+  }
+
+  @Override
+  public List<Boolean> sendBatch(String topic, List<EventMessage> messages) {
+    if (draining) {
+      return Collections.nCopies(messages.size(), false);
+    }
+    TopicConsumers topicEventConsumers = routedTopicConsumers(topic);
+    if (topicEventConsumers == null || messages.isEmpty()) {
+      return Collections.nCopies(messages.size(), true);
+    }
+    if (!deduplicationFilter.isEnabled()) {
+      return deliverBatch(topic, topicEventConsumers, ImmutableList.copyOf(messages));
+    }
+
+    ImmutableList.Builder<EventMessage> accepted = ImmutableList.builder();
+    boolean[] dropped = new boolean[messages.size()];
+    for (int i = 0; i < messages.size(); i++) {
+      if (accept(messages.get(i))) {
+        accepted.add(messages.get(i));
+      } else {
+        dropped[i] = true;
+      }
+    }
+    List<EventMessage> batch = accepted.build();
+    List<Boolean> batchResults =
+        batch.isEmpty() ? Collections.emptyList() : deliverBatch(topic, topicEventConsumers, batch);
+    List<Boolean> results = new ArrayList<>(messages.size());
+    for (int i = 0, next = 0; i < messages.size(); i++) {
+      if (dropped[i]) {
+        results.add(true);
+        continue;
+      }
+      boolean sent = batchResults.get(next++);
+      if (!sent && config.deliveryMode() != DeliveryMode.SYNC) {
+        deduplicationFilter.forget(messages.get(i).getHeader());
+      }
+      results.add(sent);
+    }
+    return results;
   }
 
+  private List<Boolean> deliverBatch(
+      String topic, TopicConsumers topicEventConsumers, List<EventMessage> batch) {
+    try {
+      if (config.deliveryMode() == DeliveryMode.ASYNC) {
+        return Booleans.asList(
+            dispatcher(topic)
+                .dispatchBatch(
+                    batch,
+                    partitionBatch -> () -> topicEventConsumers.deliverBatch(partitionBatch)));
+      }
+      return Booleans.asList(topicEventConsumers.deliverBatch(batch));
+    } catch (RuntimeException e) {
+      log.atSevere().withCause(e).log();
+      batch.forEach(message -> deduplicationFilter.forget(message.getHeader()));
+      return Collections.nCopies(batch.size(), false);
+    }
+  }
+
+  /**
+   * Record a message on a dead-letter topic, bypassing the {@link DeduplicationFilter}: the topic
+   * is created when it has no subscribers yet, so that its messages can be replayed later.
+   */
+  private void deadLetter(String deadLetterTopic, EventMessage message) {
+    topicConsumers(deadLetterTopic).deliver(message);
+  }
+
+  /**
+   * Check whether a message sent to a topic is to be delivered, or dropped by the {@link
+   * DeduplicationFilter} as duplicate. The event id of an accepted message is forgotten again if a
+   * full queue or mailbox then rejects it, so that sending it again delivers it.
+   */
+  private boolean accept(EventMessage message) {
+    if (deduplicationFilter.accept(message.getHeader())) {
+      return true;
+    }
+    log.atFine().log("Dropping duplicate message %s", message.getHeader());
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The topic can be a pattern, made of segments separated by dots, where {@code *} matches
+   * exactly one segment and {@code #} matches zero or more segments: the consumer then receives the
+   * messages of all the matching topics, including those created later.
+   */
   @Override
   public void receiveAsync(String topic, Consumer<EventMessage> eventConsumer) {
-    EventBus topicEventConsumers = eventBusMap.get(topic);
-    if (topicEventConsumers == null) {
-      topicEventConsumers = new EventBus(topic);
-      eventBusMap.put(topic, topicEventConsumers);
+    register(
+        topicSubscriber(topic, eventConsumer),
+        topicEventConsumers -> topicEventConsumers.register(eventConsumer));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The topic can be a pattern, as for {@link #receiveAsync(String, Consumer)}.
+   */
+  @Override
+  public void receiveAsync(
+      String topic, MessageFilter filter, Consumer<EventMessage> eventConsumer) {
+    register(
+        topicSubscriber(topic, eventConsumer),
+        topicEventConsumers -> topicEventConsumers.register(filter, eventConsumer));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The topic can be a pattern, as for {@link #receiveAsync(String, Consumer)}: the members of
+   * the group then share the messages of each matching topic.
+   */
+  @Override
+  public void receiveAsync(String topic, String groupId, Consumer<EventMessage> eventConsumer) {
+    register(
+        topicSubscriber(topic, groupId, eventConsumer),
+        topicEventConsumers -> topicEventConsumers.register(groupId, eventConsumer));
+  }
+
+  private void register(TopicSubscriber subscriber, Consumer<TopicConsumers> registration) {
+    if (!TopicRouter.isPattern(subscriber.topic())) {
+      registration.accept(topicConsumers(subscriber.topic()));
+    } else {
+      synchronized (topicRouter) {
+        PatternSubscription subscription = topicRouter.add(subscriber, registration);
+        topicConsumersMap.forEach(
+            (existingTopic, topicEventConsumers) -> {
+              if (topicRouter.route(existingTopic).contains(subscription)) {
+                subscription.registerTo(topicEventConsumers);
+              }
+            });
+      }
+    }
+    addTopicSubscriber(subscriber);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The consumers and the replay store of the topic are kept, so that subscribing again only
+   * registers the consumer: the messages still queued for the subscriber and its pending retries
+   * are discarded. Unsubscribing from a pattern stops the delivery of the messages of all the
+   * matching topics.
+   */
+  @Override
+  public boolean unsubscribe(TopicSubscriber subscriber) {
+    Predicate<TopicConsumers> unregistration =
+        subscriber.groupId().isPresent()
+            ? topicEventConsumers ->
+                topicEventConsumers.unregister(subscriber.groupId().get(), subscriber.consumer())
+            : topicEventConsumers -> topicEventConsumers.unregister(subscriber.consumer());
+    if (!TopicRouter.isPattern(subscriber.topic())) {
+      TopicConsumers topicEventConsumers = topicConsumersMap.get(subscriber.topic());
+      if (topicEventConsumers != null) {
+        unregistration.test(topicEventConsumers);
+      }
+    } else {
+      synchronized (topicRouter) {
+        List<TopicConsumers> matching = new ArrayList<>();
+        topicConsumersMap.forEach(
+            (existingTopic, topicEventConsumers) -> {
+              for (PatternSubscription subscription : topicRouter.route(existingTopic)) {
+                if (subscription.subscriber.equals(subscriber)) {
+                  matching.add(topicEventConsumers);
+                }
+              }
+            });
+        topicRouter.remove(subscriber);
+        matching.forEach(unregistration::test);
+      }
     }
+    return removeTopicSubscriber(subscriber);
+  }
 
-    topicEventConsumers.register(eventConsumer);
-    topicSubscribers.add(topicSubscriber(topic, eventConsumer));
+  /**
+   * @return the consumers of a topic, created when the topic matches the pattern of a subscription,
+   *     or null when the topic has no subscribers
+   */
+  private TopicConsumers routedTopicConsumers(String topic) {
+    TopicConsumers topicEventConsumers = topicConsumersMap.get(topic);
+    if (topicEventConsumers == null && !topicRouter.route(topic).isEmpty()) {
+      return topicConsumers(topic);
+    }
+    return topicEventConsumers;
+  }
+
+  /**
+   * @return the consumers of a topic, created with the subscriptions of the patterns matching the
+   *     topic when it has none yet. The topics are created whilst holding the lock of the {@link
+   *     TopicRouter}, as the patterns are subscribed, so that each pattern subscription is
+   *     registered exactly once to each matching topic.
+   */
+  private TopicConsumers topicConsumers(String topic) {
+    TopicConsumers topicEventConsumers = topicConsumersMap.get(topic);
+    if (topicEventConsumers != null) {
+      return topicEventConsumers;
+    }
 
-    EvictingQueue<EventMessage> messageQueue = EvictingQueue.create(DEFAULT_MESSAGE_QUEUE_SIZE);
-    messagesQueueMap.put(topic, messageQueue);
-    topicEventConsumers.register(new EventBusMessageRecorder(messageQueue));
+    synchronized (topicRouter) {
+      topicEventConsumers = topicConsumersMap.get(topic);
+      if (topicEventConsumers == null) {
+        topicEventConsumers = createTopicConsumers(topic);
+        for (PatternSubscription subscription : topicRouter.route(topic)) {
+          subscription.registerTo(topicEventConsumers);
+        }
+        topicConsumersMap.put(topic, topicEventConsumers);
+      }
+      return topicEventConsumers;
+    }
   }
 
   @Override
   public Set<TopicSubscriber> topicSubscribers() {
-    return ImmutableSet.copyOf(topicSubscribers);
+    return topicSubscribers.get();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>In {@link DeliveryMode#MAILBOX} mode, each delivery of a message queued on the mailbox of a
+   * subscriber counts as one.
+   */
+  @Override
+  public Map<String, Long> queuedMessages() {
+    Map<String, Long> queued = new HashMap<>();
+    dispatcherMap.forEach(
+        (topic, dispatcher) -> queued.merge(topic, dispatcher.queuedMessages(), Long::sum));
+    topicConsumersMap.forEach(
+        (topic, topicEventConsumers) ->
+            queued.merge(topic, topicEventConsumers.queuedDeliveries(), Long::sum));
+    return queued;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The messages queued for delivery are drained within the {@link
+   * InProcessBrokerConfig#drainTimeout()}, as {@link #drain(Duration)}.
+   */
   @Override
   public void disconnect() {
-    this.eventBusMap.clear();
+    drain(config.drainTimeout());
+  }
+
+  /**
+   * Stop accepting messages and deliver the queued ones to the subscribers until a timeout, then
+   * discard the messages still queued and release all the subscribers and replay stores of the
+   * topics.
+   *
+   * <p>The messages sent whilst draining are rejected, and the retries of the failed deliveries
+   * still scheduled are discarded. The threads running the subscribers' mailboxes are shut down.
+   * Once drained, the broker accepts new subscribers and messages again, as a newly created one.
+   *
+   * @param timeout maximum time to wait for the queued messages to be delivered
+   * @return number of queued messages delivered and discarded; in {@link DeliveryMode#MAILBOX}
+   *     mode, each delivery of a message to a subscriber counts as one, as does each retry
+   *     discarded
+   */
+  public DrainResult drain(Duration timeout) {
+    long deadline = System.nanoTime() + timeout.toNanos();
+    draining = true;
+    try {
+      DrainResult result = DrainResult.EMPTY;
+      for (TopicDispatcher dispatcher : dispatcherMap.values()) {
+        result = result.plus(dispatcher.drain(deadline));
+      }
+      for (TopicConsumers topicEventConsumers : topicConsumersMap.values()) {
+        result = result.plus(topicEventConsumers.drain(deadline));
+      }
+      if (retries != null) {
+        result = result.plus(DrainResult.create(0, retries.cancel()));
+      }
+      dispatcherMap.clear();
+      topicConsumersMap.clear();
+      topicRouter.clear();
+      replayStoreMap.values().forEach(ReplayStore::close);
+      replayStoreMap.clear();
+      topicSubscribers.set(ImmutableSet.of());
+      shutdownSubscriberExecutor();
+      if (result.drained() > 0 || result.dropped() > 0) {
+        log.atInfo().log(
+            "Broker drained: %d queued messages delivered, %d dropped",
+            result.drained(), result.dropped());
+      }
+      return result;
+    } finally {
+      draining = false;
+    }
   }
 
   @Override
   public void replayAllEvents(String topic) {
-    if (messagesQueueMap.containsKey(topic)) {
-      messagesQueueMap.get(topic).stream().forEach(eventMessage -> send(topic, eventMessage));
+    replayAllEvents(topic, () -> true);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>When {@link InProcessBrokerConfig#deduplicateReplays()} is set, the messages whose event id
+   * was seen within the de-duplication window are skipped, as already delivered.
+   */
+  @Override
+  public void replayAllEvents(String topic, BooleanSupplier proceed) {
+    TopicConsumers topicEventConsumers = topicConsumersMap.get(topic);
+    ReplayStore replayStore = replayStoreMap.get(topic);
+    if (topicEventConsumers != null && replayStore != null) {
+      try {
+        replayStore.replay(
+            eventMessage -> {
+              if (!proceed.getAsBoolean()) {
+                throw ReplayStopped.INSTANCE;
+              }
+              if (config.deduplicateReplays() && !accept(eventMessage)) {
+                return;
+              }
+              if (config.deliveryMode() == DeliveryMode.ASYNC) {
+                dispatcher(topic)
+                    .dispatch(eventMessage, () -> topicEventConsumers.redeliver(eventMessage));
+              } else {
+                topicEventConsumers.redeliver(eventMessage);
+              }
+            });
+      } catch (ReplayStopped e) {
+        log.atFine().log("Replay of topic %s stopped", topic);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The messages are never skipped as duplicate, as each subscriber only receives those it
+   * missed.
+   */
+  @Override
+  public void replayFrom(String topic, long offset) {
+    TopicConsumers topicEventConsumers = topicConsumersMap.get(topic);
+    ReplayStore replayStore = replayStoreMap.get(topic);
+    if (topicEventConsumers != null && replayStore != null) {
+      replayStore.replay(
+          offset,
+          (eventMessage, messageOffset) -> {
+            if (config.deliveryMode() == DeliveryMode.ASYNC) {
+              dispatcher(topic)
+                  .dispatch(
+                      eventMessage, () -> topicEventConsumers.catchUp(eventMessage, messageOffset));
+            } else {
+              topicEventConsumers.catchUp(eventMessage, messageOffset);
+            }
+          });
+    }
+  }
+
+  @Override
+  public void replayFrom(String topic, Instant timestamp) {
+    ReplayStore replayStore = replayStoreMap.get(topic);
+    if (replayStore != null) {
+      replayFrom(topic, replayStore.offsetAt(timestamp));
     }
   }
 
-  private class EventBusMessageRecorder {
-    private EvictingQueue messagesQueue;
+  private void addTopicSubscriber(TopicSubscriber subscriber) {
+    topicSubscribers.updateAndGet(
+        subscribers ->
+            subscribers.contains(subscriber)
+                ? subscribers
+                : ImmutableSet.<TopicSubscriber>builder()
+                    .addAll(subscribers)
+                    .add(subscriber)
+                    .build());
+  }
 
-    public EventBusMessageRecorder(EvictingQueue messagesQueue) {
-      this.messagesQueue = messagesQueue;
+  private boolean removeTopicSubscriber(TopicSubscriber subscriber) {
+    ImmutableSet<TopicSubscriber> previous =
+        topicSubscribers.getAndUpdate(
+            subscribers ->
+                subscribers.contains(subscriber)
+                    ? subscribers.stream()
+                        .filter(s -> !s.equals(subscriber))
+                        .collect(ImmutableSet.toImmutableSet())
+                    : subscribers);
+    return previous.contains(subscriber);
+  }
+
+  private TopicConsumers createTopicConsumers(String topic) {
+    ReplayStore replayStore = replayStoreMap.computeIfAbsent(topic, this::newReplayStore);
+    if (config.deliveryMode() != DeliveryMode.MAILBOX) {
+      return new TopicConsumers(topic, replayStore, null, retries);
     }
+    return new TopicConsumers(
+        topic,
+        replayStore,
+        consumer ->
+            new SubscriberMailbox(
+                topic + "/" + BrokerMetrics.subscriberName(consumer),
+                subscriberExecutor(),
+                config.dispatchQueueCapacity(),
+                config.overflowPolicy()),
+        retries);
+  }
 
-    @Subscribe
-    public void recordCustomerChange(EventMessage e) {
-      if (!messagesQueue.contains(e)) {
-        messagesQueue.add(e);
-      }
+  private synchronized ExecutorService subscriberExecutor() {
+    if (subscriberExecutor == null) {
+      subscriberExecutor = SubscriberMailbox.newExecutor();
+    }
+    return subscriberExecutor;
+  }
+
+  private synchronized void shutdownSubscriberExecutor() {
+    if (subscriberExecutor != null) {
+      subscriberExecutor.shutdown();
+      subscriberExecutor = null;
+    }
+  }
+
+  private ReplayStore newReplayStore(String topic) {
+    if (config.replayLogDirectory().isPresent()) {
+      return new SegmentedReplayLog(
+          topicDirectory(config.replayLogDirectory().get(), topic),
+          config.replayLogSegmentSize(),
+          config.replayLogRetentionSize(),
+          config.replayLogRetentionAge(),
+          codec,
+          Clock.systemUTC());
+    }
+    return new EventMessageRingBuffer(config.replayBufferSize(topic));
+  }
+
+  /**
+   * Directory of the replay log of a topic, named after the URL encoding of the topic: the prefix
+   * keeps the topics made only of dots, or empty, from resolving outside of their own directory.
+   */
+  static Path topicDirectory(Path replayLogDirectory, String topic) {
+    Path root = replayLogDirectory.normalize();
+    Path directory;
+    try {
+      directory =
+          root.resolve(TOPIC_DIRECTORY_PREFIX + URLEncoder.encode(topic, UTF_8.name())).normalize();
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    if (!directory.startsWith(root) || directory.equals(root)) {
+      throw new IllegalArgumentException("Invalid replay log directory for topic " + topic);
+    }
+    return directory;
+  }
+
+  private TopicDispatcher dispatcher(String topic) {
+    return dispatcherMap.computeIfAbsent(topic, t -> new TopicDispatcher(t, config));
+  }
+
+  /** Thrown to stop streaming the messages of a replay store. */
+  private static class ReplayStopped extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    static final ReplayStopped INSTANCE = new ReplayStopped();
+
+    private ReplayStopped() {
+      super(null, null, false, false);
     }
   }
 }
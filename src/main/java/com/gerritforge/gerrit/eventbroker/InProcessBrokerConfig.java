@@ -0,0 +1,372 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+
+/** Configuration of the {@link InProcessBrokerApi}. */
+@AutoValue
+public abstract class InProcessBrokerConfig {
+
+  /** How messages sent to a topic are delivered to its subscribers. */
+  public enum DeliveryMode {
+    /** Subscribers are invoked on the thread calling {@link BrokerApi#send}. */
+    SYNC,
+
+    /**
+     * Messages are queued on a bounded per-topic queue and delivered by the topic's own pool of
+     * dispatch threads.
+     */
+    ASYNC,
+
+    /**
+     * Messages are queued on a bounded mailbox of each subscriber, drained by a thread of its own:
+     * a virtual thread when the JVM supports them, a pooled platform thread otherwise. A subscriber
+     * that is slow, hangs or fails does not delay the delivery to the others.
+     */
+    MAILBOX
+  }
+
+  /**
+   * What to do when a topic's dispatch queue, or a subscriber's mailbox, is full in {@link
+   * DeliveryMode#ASYNC} or {@link DeliveryMode#MAILBOX} mode.
+   */
+  public enum OverflowPolicy {
+    /** Block the sender until there is room in the queue. */
+    BLOCK,
+
+    /** Discard the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Discard the new message and return false from {@link BrokerApi#send}. */
+    REJECT
+  }
+
+  /** How the messages are exchanged with the other processes. */
+  public enum Transport {
+    /** Messages are only delivered within the process, by the {@link InProcessBrokerApi}. */
+    IN_PROCESS,
+
+    /**
+     * Messages are exchanged with the other processes of the same machine through a local socket,
+     * by the {@link SocketBrokerApi}.
+     */
+    SOCKET
+  }
+
+  public static final int DEFAULT_DISPATCH_THREADS = 1;
+  public static final int DEFAULT_PARTITIONS = 1;
+  public static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = 1000;
+  public static final int DEFAULT_REPLAY_BUFFER_SIZE = 100;
+  public static final long DEFAULT_REPLAY_LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+  public static final long DEFAULT_REPLAY_LOG_RETENTION_SIZE = 256 * 1024 * 1024;
+  public static final Duration DEFAULT_REPLAY_LOG_RETENTION_AGE = Duration.ofDays(7);
+  public static final int DEFAULT_DEDUPLICATION_CAPACITY = 100000;
+  public static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ZERO;
+  public static final int DEFAULT_SOCKET_PORT = 29419;
+  public static final long DEFAULT_BATCH_MAX_BYTES = 64 * 1024;
+  public static final Duration DEFAULT_RETRY_BACKOFF = Duration.ofSeconds(1);
+  public static final Duration DEFAULT_RETRY_MAX_BACKOFF = Duration.ofMinutes(5);
+
+  public abstract DeliveryMode deliveryMode();
+
+  /** Number of threads draining each topic's queue in {@link DeliveryMode#ASYNC} mode. */
+  public abstract int dispatchThreads();
+
+  /**
+   * Maximum number of messages queued per topic in {@link DeliveryMode#ASYNC} mode, or per
+   * subscriber in {@link DeliveryMode#MAILBOX} mode.
+   */
+  public abstract int dispatchQueueCapacity();
+
+  public abstract OverflowPolicy overflowPolicy();
+
+  /**
+   * Number of partitions of each topic in {@link DeliveryMode#ASYNC} mode. Each partition has its
+   * own queue and dispatch thread: the messages with the same {@link #partitionKey()} are delivered
+   * in order, whilst those of different partitions are delivered in parallel.
+   */
+  public abstract int partitions();
+
+  /** Key assigning the messages to the partitions of a topic. */
+  public abstract PartitionKey partitionKey();
+
+  /** Number of most recent messages kept for replay, for topics without a specific size. */
+  public abstract int replayBufferSize();
+
+  /** Number of most recent messages kept for replay, by topic. */
+  public abstract ImmutableMap<String, Integer> topicReplayBufferSizes();
+
+  /**
+   * Get the number of most recent messages kept for replay for a topic.
+   *
+   * @param topic topic name
+   * @return replay buffer size of the topic
+   */
+  public int replayBufferSize(String topic) {
+    return topicReplayBufferSizes().getOrDefault(topic, replayBufferSize());
+  }
+
+  /**
+   * Directory of the persistent replay logs of the topics. When set, the messages of each topic are
+   * stored on disk, in a subdirectory named after the topic, instead of in a bounded in-memory
+   * buffer.
+   */
+  public abstract Optional<Path> replayLogDirectory();
+
+  /** Size in bytes of each memory-mapped segment file of a replay log. */
+  public abstract long replayLogSegmentSize();
+
+  /** Maximum size in bytes of the replay log of a topic, before its oldest segments are deleted. */
+  public abstract long replayLogRetentionSize();
+
+  /** Maximum age of the segments of a replay log, before they are deleted. */
+  public abstract Duration replayLogRetentionAge();
+
+  /**
+   * Id of the local Gerrit instance: with the {@link Transport#SOCKET} transport, the messages
+   * received back from the hub with it as {@link EventMessage.Header#sourceInstanceId} are not
+   * delivered, as they originated from this node. Unused by the {@link Transport#IN_PROCESS}
+   * transport, whose messages all originate from this node.
+   */
+  public abstract Optional<UUID> localInstanceId();
+
+  /**
+   * Time for which the event ids of the messages sent are remembered, not delivering again the
+   * messages with the same event id. Zero disables the de-duplication.
+   */
+  public abstract Duration deduplicationWindow();
+
+  /**
+   * Maximum number of event ids remembered for de-duplication: the window is shortened when more
+   * messages are sent within it.
+   */
+  public abstract int deduplicationCapacity();
+
+  /**
+   * Whether {@link BrokerApi#replayAllEvents} skips the messages whose event id was seen within the
+   * {@link #deduplicationWindow()}, as already delivered.
+   */
+  public abstract boolean deduplicateReplays();
+
+  /**
+   * Maximum time {@link InProcessBrokerApi#disconnect()} waits for the queued messages to be
+   * delivered, before discarding them. Zero discards them straight away.
+   */
+  public abstract Duration drainTimeout();
+
+  /**
+   * Transport of the messages, selecting the {@link BrokerApi} bound by {@link BrokerApiModule}.
+   */
+  public abstract Transport transport();
+
+  /** Address of the {@link SocketBrokerServer} in {@link Transport#SOCKET} mode. */
+  public abstract InetSocketAddress socketAddress();
+
+  /**
+   * Whether this process hosts the {@link SocketBrokerServer} the other processes connect to, in
+   * {@link Transport#SOCKET} mode.
+   */
+  public abstract boolean socketServer();
+
+  /**
+   * Whether the messages sent in {@link Transport#SOCKET} mode are compressed by the {@link
+   * CompressingEventMessageCodec}.
+   */
+  public abstract boolean compression();
+
+  /**
+   * Maximum size in bytes of the batches of messages written at once in {@link Transport#SOCKET}
+   * mode.
+   */
+  public abstract long batchMaxBytes();
+
+  /**
+   * Maximum time to wait for more messages before writing a batch smaller than {@link
+   * #batchMaxBytes()} in {@link Transport#SOCKET} mode. Zero writes the messages queued straight
+   * away.
+   */
+  public abstract Duration batchLinger();
+
+  /**
+   * Number of times a message that a subscriber failed to process is given again to that
+   * subscriber, and to that subscriber only. Zero disables the retries.
+   */
+  public abstract int retryAttempts();
+
+  /** Delay before the first retry, doubled at every further retry. */
+  public abstract Duration retryBackoff();
+
+  /** Maximum delay between two retries. */
+  public abstract Duration retryMaxBackoff();
+
+  /**
+   * Suffix of the dead-letter topic of each topic, recording as {@link DeadLetterEvent}s the
+   * messages that a subscriber still failed to process once the retries were exhausted. When not
+   * set, such messages are dropped.
+   */
+  public abstract Optional<String> deadLetterTopicSuffix();
+
+  /**
+   * Get the dead-letter topic of a topic.
+   *
+   * @param topic topic name
+   * @return the dead-letter topic, if enabled
+   */
+  public Optional<String> deadLetterTopic(String topic) {
+    return deadLetterTopicSuffix().map(suffix -> topic + suffix);
+  }
+
+  public static InProcessBrokerConfig defaults() {
+    return builder().build();
+  }
+
+  public static Builder builder() {
+    return new AutoValue_InProcessBrokerConfig.Builder()
+        .deliveryMode(DeliveryMode.SYNC)
+        .dispatchThreads(DEFAULT_DISPATCH_THREADS)
+        .dispatchQueueCapacity(DEFAULT_DISPATCH_QUEUE_CAPACITY)
+        .overflowPolicy(OverflowPolicy.BLOCK)
+        .partitions(DEFAULT_PARTITIONS)
+        .partitionKey(PartitionKey.PROJECT)
+        .replayBufferSize(DEFAULT_REPLAY_BUFFER_SIZE)
+        .replayLogSegmentSize(DEFAULT_REPLAY_LOG_SEGMENT_SIZE)
+        .replayLogRetentionSize(DEFAULT_REPLAY_LOG_RETENTION_SIZE)
+        .replayLogRetentionAge(DEFAULT_REPLAY_LOG_RETENTION_AGE)
+        .deduplicationWindow(Duration.ZERO)
+        .deduplicationCapacity(DEFAULT_DEDUPLICATION_CAPACITY)
+        .deduplicateReplays(true)
+        .drainTimeout(DEFAULT_DRAIN_TIMEOUT)
+        .transport(Transport.IN_PROCESS)
+        .socketAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_SOCKET_PORT))
+        .socketServer(false)
+        .compression(false)
+        .batchMaxBytes(DEFAULT_BATCH_MAX_BYTES)
+        .batchLinger(Duration.ZERO)
+        .retryAttempts(0)
+        .retryBackoff(DEFAULT_RETRY_BACKOFF)
+        .retryMaxBackoff(DEFAULT_RETRY_MAX_BACKOFF);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder deliveryMode(DeliveryMode deliveryMode);
+
+    public abstract Builder dispatchThreads(int dispatchThreads);
+
+    public abstract Builder dispatchQueueCapacity(int dispatchQueueCapacity);
+
+    public abstract Builder overflowPolicy(OverflowPolicy overflowPolicy);
+
+    public abstract Builder partitions(int partitions);
+
+    public abstract Builder partitionKey(PartitionKey partitionKey);
+
+    public abstract Builder replayBufferSize(int replayBufferSize);
+
+    public abstract ImmutableMap.Builder<String, Integer> topicReplayBufferSizesBuilder();
+
+    public Builder replayBufferSize(String topic, int replayBufferSize) {
+      topicReplayBufferSizesBuilder().put(topic, replayBufferSize);
+      return this;
+    }
+
+    public abstract Builder replayLogDirectory(Path replayLogDirectory);
+
+    public abstract Builder replayLogSegmentSize(long replayLogSegmentSize);
+
+    public abstract Builder replayLogRetentionSize(long replayLogRetentionSize);
+
+    public abstract Builder replayLogRetentionAge(Duration replayLogRetentionAge);
+
+    public abstract Builder localInstanceId(UUID localInstanceId);
+
+    public abstract Builder deduplicationWindow(Duration deduplicationWindow);
+
+    public abstract Builder deduplicationCapacity(int deduplicationCapacity);
+
+    public abstract Builder deduplicateReplays(boolean deduplicateReplays);
+
+    public abstract Builder drainTimeout(Duration drainTimeout);
+
+    public abstract Builder transport(Transport transport);
+
+    public abstract Builder socketAddress(InetSocketAddress socketAddress);
+
+    public abstract Builder socketServer(boolean socketServer);
+
+    public abstract Builder compression(boolean compression);
+
+    public abstract Builder batchMaxBytes(long batchMaxBytes);
+
+    public abstract Builder batchLinger(Duration batchLinger);
+
+    public abstract Builder retryAttempts(int retryAttempts);
+
+    public abstract Builder retryBackoff(Duration retryBackoff);
+
+    public abstract Builder retryMaxBackoff(Duration retryMaxBackoff);
+
+    public abstract Builder deadLetterTopicSuffix(String deadLetterTopicSuffix);
+
+    abstract InProcessBrokerConfig autoBuild();
+
+    public InProcessBrokerConfig build() {
+      InProcessBrokerConfig config = autoBuild();
+      checkArgument(config.dispatchThreads() > 0, "dispatchThreads must be positive");
+      checkArgument(config.dispatchQueueCapacity() > 0, "dispatchQueueCapacity must be positive");
+      checkArgument(config.partitions() > 0, "partitions must be positive");
+      checkArgument(
+          config.partitions() == 1 || config.dispatchThreads() == 1,
+          "partitions are drained by a single thread each: dispatchThreads must be 1");
+      checkArgument(config.replayBufferSize() > 0, "replayBufferSize must be positive");
+      checkArgument(
+          config.topicReplayBufferSizes().values().stream().allMatch(size -> size > 0),
+          "replayBufferSize must be positive");
+      checkArgument(
+          config.replayLogSegmentSize() > 0 && config.replayLogSegmentSize() <= Integer.MAX_VALUE,
+          "replayLogSegmentSize must be positive and at most 2GiB");
+      checkArgument(
+          !config.deduplicationWindow().isNegative(), "deduplicationWindow cannot be negative");
+      checkArgument(
+          config.deduplicationCapacity() >= DeduplicationFilter.BUCKETS,
+          "deduplicationCapacity must be at least %s",
+          DeduplicationFilter.BUCKETS);
+      checkArgument(!config.drainTimeout().isNegative(), "drainTimeout cannot be negative");
+      checkArgument(config.batchMaxBytes() > 0, "batchMaxBytes must be positive");
+      checkArgument(!config.batchLinger().isNegative(), "batchLinger cannot be negative");
+      checkArgument(config.retryAttempts() >= 0, "retryAttempts cannot be negative");
+      checkArgument(
+          !config.retryBackoff().isNegative() && !config.retryBackoff().isZero(),
+          "retryBackoff must be positive");
+      checkArgument(
+          config.retryMaxBackoff().compareTo(config.retryBackoff()) >= 0,
+          "retryMaxBackoff cannot be shorter than retryBackoff");
+      checkArgument(
+          config.deadLetterTopicSuffix().map(suffix -> !suffix.isEmpty()).orElse(true),
+          "deadLetterTopicSuffix cannot be empty");
+      return config;
+    }
+  }
+}
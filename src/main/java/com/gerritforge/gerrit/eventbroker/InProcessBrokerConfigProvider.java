@@ -0,0 +1,160 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.Transport;
+import com.google.common.base.Strings;
+import com.google.common.net.HostAndPort;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+
+/** Reads the {@link InProcessBrokerConfig} from the {@code [broker]} section of gerrit.config. */
+public class InProcessBrokerConfigProvider implements Provider<InProcessBrokerConfig> {
+  static final String SECTION = "broker";
+
+  private final Config config;
+  private final SitePaths site;
+
+  @Inject
+  InProcessBrokerConfigProvider(@GerritServerConfig Config config, SitePaths site) {
+    this.config = config;
+    this.site = site;
+  }
+
+  @Override
+  public InProcessBrokerConfig get() {
+    InProcessBrokerConfig.Builder builder =
+        InProcessBrokerConfig.builder()
+            .deliveryMode(config.getEnum(SECTION, null, "deliveryMode", DeliveryMode.SYNC))
+            .dispatchThreads(
+                config.getInt(
+                    SECTION, "dispatchThreads", InProcessBrokerConfig.DEFAULT_DISPATCH_THREADS))
+            .dispatchQueueCapacity(
+                config.getInt(
+                    SECTION,
+                    "dispatchQueueCapacity",
+                    InProcessBrokerConfig.DEFAULT_DISPATCH_QUEUE_CAPACITY))
+            .overflowPolicy(config.getEnum(SECTION, null, "overflowPolicy", OverflowPolicy.BLOCK))
+            .partitions(
+                config.getInt(SECTION, "partitions", InProcessBrokerConfig.DEFAULT_PARTITIONS))
+            .partitionKey(config.getEnum(SECTION, null, "partitionKey", PartitionKey.PROJECT))
+            .replayBufferSize(
+                config.getInt(
+                    SECTION, "replayBufferSize", InProcessBrokerConfig.DEFAULT_REPLAY_BUFFER_SIZE))
+            .replayLogSegmentSize(
+                config.getLong(
+                    SECTION,
+                    "replayLogSegmentSize",
+                    InProcessBrokerConfig.DEFAULT_REPLAY_LOG_SEGMENT_SIZE))
+            .replayLogRetentionSize(
+                config.getLong(
+                    SECTION,
+                    "replayLogRetentionSize",
+                    InProcessBrokerConfig.DEFAULT_REPLAY_LOG_RETENTION_SIZE))
+            .replayLogRetentionAge(
+                Duration.ofMillis(
+                    ConfigUtil.getTimeUnit(
+                        config,
+                        SECTION,
+                        null,
+                        "replayLogRetentionAge",
+                        InProcessBrokerConfig.DEFAULT_REPLAY_LOG_RETENTION_AGE.toMillis(),
+                        TimeUnit.MILLISECONDS)))
+            .deduplicationWindow(
+                Duration.ofMillis(
+                    ConfigUtil.getTimeUnit(
+                        config, SECTION, null, "deduplicationWindow", 0, TimeUnit.MILLISECONDS)))
+            .deduplicationCapacity(
+                config.getInt(
+                    SECTION,
+                    "deduplicationCapacity",
+                    InProcessBrokerConfig.DEFAULT_DEDUPLICATION_CAPACITY))
+            .deduplicateReplays(config.getBoolean(SECTION, "deduplicateReplays", true))
+            .drainTimeout(
+                Duration.ofMillis(
+                    ConfigUtil.getTimeUnit(
+                        config,
+                        SECTION,
+                        null,
+                        "drainTimeout",
+                        InProcessBrokerConfig.DEFAULT_DRAIN_TIMEOUT.toMillis(),
+                        TimeUnit.MILLISECONDS)))
+            .transport(config.getEnum(SECTION, null, "transport", Transport.IN_PROCESS))
+            .socketServer(config.getBoolean(SECTION, "socketServer", false))
+            .compression(config.getBoolean(SECTION, "compression", false))
+            .batchMaxBytes(
+                config.getLong(
+                    SECTION, "batchMaxBytes", InProcessBrokerConfig.DEFAULT_BATCH_MAX_BYTES))
+            .batchLinger(
+                Duration.ofMillis(
+                    ConfigUtil.getTimeUnit(
+                        config, SECTION, null, "batchLinger", 0, TimeUnit.MILLISECONDS)))
+            .retryAttempts(config.getInt(SECTION, "retryAttempts", 0))
+            .retryBackoff(
+                Duration.ofMillis(
+                    ConfigUtil.getTimeUnit(
+                        config,
+                        SECTION,
+                        null,
+                        "retryBackoff",
+                        InProcessBrokerConfig.DEFAULT_RETRY_BACKOFF.toMillis(),
+                        TimeUnit.MILLISECONDS)))
+            .retryMaxBackoff(
+                Duration.ofMillis(
+                    ConfigUtil.getTimeUnit(
+                        config,
+                        SECTION,
+                        null,
+                        "retryMaxBackoff",
+                        InProcessBrokerConfig.DEFAULT_RETRY_MAX_BACKOFF.toMillis(),
+                        TimeUnit.MILLISECONDS)));
+    String socketAddress = config.getString(SECTION, null, "socketAddress");
+    if (!Strings.isNullOrEmpty(socketAddress)) {
+      HostAndPort hostAndPort =
+          HostAndPort.fromString(socketAddress)
+              .withDefaultPort(InProcessBrokerConfig.DEFAULT_SOCKET_PORT);
+      builder.socketAddress(new InetSocketAddress(hostAndPort.getHost(), hostAndPort.getPort()));
+    }
+    String replayLogDirectory = config.getString(SECTION, null, "replayLogDirectory");
+    if (!Strings.isNullOrEmpty(replayLogDirectory)) {
+      builder.replayLogDirectory(site.resolve(replayLogDirectory));
+    }
+    String localInstanceId = config.getString(SECTION, null, "localInstanceId");
+    if (!Strings.isNullOrEmpty(localInstanceId)) {
+      builder.localInstanceId(UUID.fromString(localInstanceId));
+    }
+    String deadLetterTopicSuffix = config.getString(SECTION, null, "deadLetterTopicSuffix");
+    if (!Strings.isNullOrEmpty(deadLetterTopicSuffix)) {
+      builder.deadLetterTopicSuffix(deadLetterTopicSuffix);
+    }
+    for (String topic : config.getSubsections(SECTION)) {
+      int replayBufferSize = config.getInt(SECTION, topic, "replayBufferSize", 0);
+      if (replayBufferSize > 0) {
+        builder.replayBufferSize(topic, replayBufferSize);
+      }
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/** Encodes {@link EventMessage}s as UTF-8 JSON, through the {@link EventGsonProvider} Gson. */
+public class JsonEventMessageCodec implements EventMessageCodec {
+  private final Gson gson;
+
+  public JsonEventMessageCodec() {
+    this(new EventGsonProvider().get());
+  }
+
+  public JsonEventMessageCodec(Gson gson) {
+    this.gson = gson;
+  }
+
+  @Override
+  public byte[] encode(EventMessage message) {
+    return gson.toJson(message).getBytes(UTF_8);
+  }
+
+  @Override
+  public void encode(EventMessage message, ByteBuffer buffer) {
+    byte[] bytes = encode(message);
+    if (bytes.length > buffer.remaining()) {
+      throw new BufferOverflowException();
+    }
+    buffer.put(bytes);
+  }
+
+  @Override
+  public EventMessage decode(ByteBuffer buffer) {
+    try {
+      EventMessage message = gson.fromJson(UTF_8.decode(buffer).toString(), EventMessage.class);
+      if (message == null) {
+        throw new IllegalArgumentException("Empty JSON message");
+      }
+      return message;
+    } catch (JsonParseException e) {
+      throw new IllegalArgumentException("Invalid JSON message", e);
+    }
+  }
+}
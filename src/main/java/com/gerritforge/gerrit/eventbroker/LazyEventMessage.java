@@ -0,0 +1,98 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.gerrit.server.events.Event;
+import java.util.function.Function;
+
+/**
+ * {@link EventMessage} received in its encoded form, whose event is deserialized only once, on the
+ * first call to {@link #getEvent()}.
+ *
+ * <p>The header and the event type are available straight away, so that the messages discarded by
+ * their header, like the ones originated by the receiving node itself, never pay for the
+ * deserialization of their event.
+ */
+public class LazyEventMessage extends EventMessage {
+  private final transient String eventType;
+  private final transient byte[] encodedEvent;
+  private final transient Function<byte[], Event> decoder;
+  private transient volatile Event event;
+
+  /**
+   * @param header message header
+   * @param eventType type of the encoded event
+   * @param encodedEvent encoded event, which must not be modified afterwards
+   * @param decoder deserializes the encoded event, throwing {@link IllegalArgumentException} if it
+   *     is not valid
+   */
+  LazyEventMessage(
+      Header header, String eventType, byte[] encodedEvent, Function<byte[], Event> decoder) {
+    super(header, null);
+    this.eventType = eventType;
+    this.encodedEvent = encodedEvent;
+    this.decoder = decoder;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IllegalArgumentException if the encoded event is not valid
+   */
+  @Override
+  public Event getEvent() {
+    Event decoded = event;
+    if (decoded == null) {
+      synchronized (this) {
+        decoded = event;
+        if (decoded == null) {
+          decoded = requireNonNull(decoder.apply(encodedEvent), "Event cannot be null");
+          event = decoded;
+        }
+      }
+    }
+    return decoded;
+  }
+
+  @Override
+  public String getEventType() {
+    return eventType;
+  }
+
+  /** @return true if the event has already been deserialized */
+  public boolean isDecoded() {
+    return event != null;
+  }
+
+  /** @return the encoded event, to be written as it is when forwarding the message */
+  byte[] encodedEvent() {
+    return encodedEvent;
+  }
+
+  @Override
+  public void validate() {
+    requireNonNull(getHeader(), "Header cannot be null");
+    getHeader().validate();
+  }
+
+  @Override
+  public String toString() {
+    return isDecoded()
+        ? super.toString()
+        : "Header='" + getHeader() + "', Type='" + eventType + "'";
+  }
+}
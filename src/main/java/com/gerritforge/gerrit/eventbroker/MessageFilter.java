@@ -0,0 +1,116 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.Event;
+import java.util.function.Predicate;
+
+/**
+ * Selects the messages of a topic delivered to a subscriber, by their header, event type and
+ * project.
+ *
+ * <p>The filter never looks at the body of the event, other than for its project: brokers can
+ * evaluate the header and the event type before deserializing the body, and index the subscribers
+ * by the {@link #eventTypes()} they select.
+ */
+@AutoValue
+public abstract class MessageFilter {
+  private static final Predicate<Header> ANY_HEADER = header -> true;
+
+  /** Filter selecting all the messages. */
+  public static final MessageFilter ALL = builder().build();
+
+  /** Event types selected, or empty for all types. */
+  public abstract ImmutableSet<String> eventTypes();
+
+  /** Names of the projects selected, or empty for all projects and events without a project. */
+  public abstract ImmutableSet<String> projects();
+
+  abstract Predicate<Header> headerPredicate();
+
+  /** @return true if the filter selects all the messages */
+  public boolean isAll() {
+    return eventTypes().isEmpty() && projects().isEmpty() && headerPredicate() == ANY_HEADER;
+  }
+
+  /**
+   * Match the part of a message available before deserializing its body.
+   *
+   * @param header header of the message
+   * @param eventType type of the event of the message
+   * @return true if the message is selected, provided that it matches the {@link #projects()}
+   */
+  public boolean matches(Header header, String eventType) {
+    return (eventTypes().isEmpty() || eventTypes().contains(eventType))
+        && headerPredicate().test(header);
+  }
+
+  /**
+   * Match the project of a message.
+   *
+   * @param project name of the project of the event of the message, or null if it has none
+   * @return true if the message is selected, provided that it matches the header and event type
+   */
+  public boolean matchesProject(String project) {
+    return projects().isEmpty() || (project != null && projects().contains(project));
+  }
+
+  /**
+   * Match a whole message.
+   *
+   * @param message message to match
+   * @return true if the message is selected
+   */
+  public boolean matches(EventMessage message) {
+    return matches(message.getHeader(), message.getEventType())
+        && (projects().isEmpty() || matchesProject(projectOf(message.getEvent())));
+  }
+
+  /**
+   * @param event event of a message
+   * @return the name of the project of the event, or null if it has none
+   */
+  static String projectOf(Event event) {
+    Object project = PartitionKey.PROJECT.of(event);
+    return project instanceof Project.NameKey ? ((Project.NameKey) project).get() : null;
+  }
+
+  public static Builder builder() {
+    return new AutoValue_MessageFilter.Builder()
+        .eventTypes(ImmutableSet.of())
+        .projects(ImmutableSet.of())
+        .headerPredicate(ANY_HEADER);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder eventTypes(String... eventTypes);
+
+    public abstract Builder eventTypes(Iterable<String> eventTypes);
+
+    public abstract Builder projects(String... projects);
+
+    public abstract Builder projects(Iterable<String> projects);
+
+    /** Select only the messages whose header matches a predicate. */
+    public abstract Builder headerPredicate(Predicate<Header> headerPredicate);
+
+    public abstract MessageFilter build();
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.gerritforge.gerrit.eventbroker.TopicSubscriber.topicSubscriber;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.server.events.Event;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Decorates a {@link BrokerApi} with the {@link BrokerMetrics} of the messages sent to each topic
+ * and of the time taken by each subscriber to process them.
+ *
+ * <p>The decorated {@link BrokerApi} is the one bound with the {@link #DELEGATE} name.
+ */
+public class MetricsBrokerApi implements BrokerApi {
+  public static final String DELEGATE = "MetricsBrokerApiDelegate";
+
+  private final BrokerApi delegate;
+  private final BrokerMetrics metrics;
+
+  @Inject
+  public MetricsBrokerApi(@Named(DELEGATE) BrokerApi delegate, BrokerMetrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+    if (delegate instanceof QueuedMessages) {
+      metrics.trackQueuedMessages(((QueuedMessages) delegate)::queuedMessages);
+    }
+  }
+
+  @Override
+  public EventMessage newMessage(UUID instanceId, Event event) {
+    return delegate.newMessage(instanceId, event);
+  }
+
+  @Override
+  public boolean send(String topic, EventMessage message) {
+    boolean sent = delegate.send(topic, message);
+    metrics.sent(topic, sent);
+    return sent;
+  }
+
+  @Override
+  public CompletableFuture<SendResult> sendAsync(String topic, EventMessage message) {
+    return delegate
+        .sendAsync(topic, message)
+        .whenComplete(
+            (result, failure) -> metrics.sent(topic, result != null && result.isDelivered()));
+  }
+
+  @Override
+  public List<Boolean> sendBatch(String topic, List<EventMessage> messages) {
+    List<Boolean> sent = delegate.sendBatch(topic, messages);
+    for (Boolean messageSent : sent) {
+      metrics.sent(topic, messageSent);
+    }
+    return sent;
+  }
+
+  @Override
+  public void receiveAsync(String topic, Consumer<EventMessage> consumer) {
+    delegate.receiveAsync(topic, metered(topic, consumer));
+  }
+
+  @Override
+  public void receiveAsync(String topic, MessageFilter filter, Consumer<EventMessage> consumer) {
+    delegate.receiveAsync(topic, filter, metered(topic, consumer));
+  }
+
+  @Override
+  public void receiveAsync(String topic, String groupId, Consumer<EventMessage> consumer) {
+    delegate.receiveAsync(topic, groupId, metered(topic, consumer));
+  }
+
+  @Override
+  public boolean unsubscribe(TopicSubscriber subscriber) {
+    Consumer<EventMessage> consumer = metered(subscriber.topic(), subscriber.consumer());
+    return delegate.unsubscribe(
+        subscriber.groupId().isPresent()
+            ? topicSubscriber(subscriber.topic(), subscriber.groupId().get(), consumer)
+            : topicSubscriber(subscriber.topic(), consumer));
+  }
+
+  @Override
+  public Set<TopicSubscriber> topicSubscribers() {
+    ImmutableSet.Builder<TopicSubscriber> subscribers = ImmutableSet.builder();
+    for (TopicSubscriber subscriber : delegate.topicSubscribers()) {
+      if (!(subscriber.consumer() instanceof MeteredConsumer)) {
+        subscribers.add(subscriber);
+        continue;
+      }
+      Consumer<EventMessage> consumer = ((MeteredConsumer) subscriber.consumer()).consumer;
+      subscribers.add(
+          subscriber.groupId().isPresent()
+              ? topicSubscriber(subscriber.topic(), subscriber.groupId().get(), consumer)
+              : topicSubscriber(subscriber.topic(), consumer));
+    }
+    return subscribers.build();
+  }
+
+  @Override
+  public void disconnect() {
+    delegate.disconnect();
+  }
+
+  @Override
+  public void replayAllEvents(String topic) {
+    metrics.replayRequested(topic);
+    delegate.replayAllEvents(topic);
+  }
+
+  @Override
+  public void replayAllEvents(String topic, BooleanSupplier proceed) {
+    metrics.replayRequested(topic);
+    delegate.replayAllEvents(topic, proceed);
+  }
+
+  @Override
+  public void replayFrom(String topic, long offset) {
+    metrics.replayRequested(topic);
+    delegate.replayFrom(topic, offset);
+  }
+
+  @Override
+  public void replayFrom(String topic, Instant timestamp) {
+    metrics.replayRequested(topic);
+    delegate.replayFrom(topic, timestamp);
+  }
+
+  private MeteredConsumer metered(String topic, Consumer<EventMessage> consumer) {
+    return consumer instanceof BatchConsumer
+        ? new MeteredBatchConsumer(topic, (BatchConsumer) consumer)
+        : new MeteredConsumer(topic, consumer);
+  }
+
+  /** Measures the processing of each message by a consumer, equal to the consumer it wraps. */
+  private class MeteredConsumer implements Consumer<EventMessage> {
+    final Consumer<EventMessage> consumer;
+    final String topic;
+    final String subscriber;
+
+    MeteredConsumer(String topic, Consumer<EventMessage> consumer) {
+      this.consumer = consumer;
+      this.topic = topic;
+      this.subscriber = BrokerMetrics.subscriberName(consumer);
+    }
+
+    @Override
+    public void accept(EventMessage message) {
+      long start = System.nanoTime();
+      try {
+        consumer.accept(message);
+      } catch (RuntimeException e) {
+        metrics.failed(topic, subscriber);
+        throw e;
+      } finally {
+        metrics.processed(topic, subscriber, System.nanoTime() - start);
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof MeteredConsumer && ((MeteredConsumer) o).consumer.equals(consumer);
+    }
+
+    @Override
+    public int hashCode() {
+      return consumer.hashCode();
+    }
+  }
+
+  /** Measures the processing of each batch of messages by a {@link BatchConsumer}. */
+  private class MeteredBatchConsumer extends MeteredConsumer implements BatchConsumer {
+
+    MeteredBatchConsumer(String topic, BatchConsumer consumer) {
+      super(topic, consumer);
+    }
+
+    @Override
+    public void acceptBatch(List<EventMessage> messages) {
+      long start = System.nanoTime();
+      try {
+        ((BatchConsumer) consumer).acceptBatch(messages);
+      } catch (RuntimeException e) {
+        metrics.failed(topic, subscriber);
+        throw e;
+      } finally {
+        metrics.processed(topic, subscriber, System.nanoTime() - start);
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.ProjectEvent;
+
+/** Part of an {@link Event} assigning it to a partition of a topic. */
+public enum PartitionKey {
+  /** Events of the same project are delivered in order. */
+  PROJECT {
+    @Override
+    public Object of(Event event) {
+      if (event instanceof ProjectEvent) {
+        try {
+          return ((ProjectEvent) event).getProjectNameKey();
+        } catch (NullPointerException e) {
+          // The event has no project name
+        }
+      }
+      return null;
+    }
+  },
+
+  /**
+   * Events of the same change are delivered in order. Events not related to a change are keyed by
+   * their project.
+   */
+  CHANGE {
+    @Override
+    public Object of(Event event) {
+      if (event instanceof ChangeEvent) {
+        Object changeKey = ((ChangeEvent) event).getChangeKey();
+        if (changeKey != null) {
+          return changeKey;
+        }
+      }
+      return PROJECT.of(event);
+    }
+  };
+
+  /**
+   * Get the key of an event.
+   *
+   * @param event event to partition
+   * @return the key of the event, or null if the event has none
+   */
+  public abstract Object of(Event event);
+}
@@ -0,0 +1,101 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * SSH command starting, watching and cancelling the {@link ReplayJob}s of the {@link
+ * EventReplayer}.
+ */
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(name = "replay", description = "Replay the stored events of topics")
+public class ReplayCommand extends SshCommand {
+  private static final long WATCH_INTERVAL_SECONDS = 1;
+
+  @Option(
+      name = "--rate",
+      metaVar = "MESSAGES",
+      usage = "maximum number of events replayed per second, 0 for no limit")
+  private double messagesPerSecond;
+
+  @Option(name = "--watch", usage = "report the progress of the replay until it completes")
+  private boolean watch;
+
+  @Option(name = "--list", usage = "list the running and recently finished replays")
+  private boolean list;
+
+  @Option(name = "--show", metaVar = "ID", usage = "show the progress of a replay")
+  private Integer show;
+
+  @Option(name = "--cancel", metaVar = "ID", usage = "cancel a running replay")
+  private Integer cancel;
+
+  @Argument(index = 0, multiValued = true, metaVar = "TOPIC", usage = "topics to replay")
+  private List<String> topics = new ArrayList<>();
+
+  @Inject private EventReplayer replayer;
+
+  @Override
+  protected void run() throws UnloggedFailure, Exception {
+    if (list) {
+      replayer.jobs().forEach(stdout::println);
+      return;
+    }
+    if (cancel != null) {
+      ReplayJob job = job(cancel);
+      job.cancel();
+      stdout.println(job);
+      return;
+    }
+
+    ReplayJob job;
+    if (show != null) {
+      job = job(show);
+    } else {
+      if (topics.isEmpty()) {
+        throw die("no topics to replay");
+      }
+      if (messagesPerSecond < 0) {
+        throw die("--rate cannot be negative");
+      }
+      job = replayer.start(topics, messagesPerSecond);
+    }
+    stdout.println(job);
+    while (watch && job.state() == ReplayJob.State.RUNNING) {
+      try {
+        job.completion().get(WATCH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        // Report the progress and keep waiting
+      }
+      stdout.println(job);
+      stdout.flush();
+    }
+  }
+
+  private ReplayJob job(int id) throws UnloggedFailure {
+    return replayer.job(id).orElseThrow(() -> die("no such replay: " + id));
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous replay of the stored messages of a set of topics, started by {@link EventReplayer}.
+ *
+ * <p>The topics are replayed in parallel, sharing the same limit of messages redelivered per
+ * second.
+ */
+public class ReplayJob {
+  /** State of a replay job. */
+  public enum State {
+    RUNNING,
+    COMPLETED,
+    CANCELLED,
+    FAILED
+  }
+
+  private final int id;
+  private final ImmutableList<String> topics;
+  private final double messagesPerSecond;
+  private final Instant started;
+  /** Limits the rate of the redelivery, null for no limit. */
+  private final RateLimiter rateLimiter;
+
+  private final AtomicLong replayedMessages = new AtomicLong();
+  private final AtomicInteger completedTopics = new AtomicInteger();
+  private final CompletableFuture<State> completion = new CompletableFuture<>();
+  private volatile boolean cancelled;
+
+  ReplayJob(int id, Iterable<String> topics, double messagesPerSecond, Instant started) {
+    this.id = id;
+    this.topics = ImmutableList.copyOf(topics);
+    this.messagesPerSecond = messagesPerSecond;
+    this.started = started;
+    this.rateLimiter = messagesPerSecond > 0 ? RateLimiter.create(messagesPerSecond) : null;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  public ImmutableList<String> topics() {
+    return topics;
+  }
+
+  /** Maximum number of messages redelivered per second, or zero for no limit. */
+  public double messagesPerSecond() {
+    return messagesPerSecond;
+  }
+
+  public Instant started() {
+    return started;
+  }
+
+  /** @return number of messages redelivered so far, across all topics */
+  public long replayedMessages() {
+    return replayedMessages.get();
+  }
+
+  /** @return number of topics whose replay has completed */
+  public int completedTopics() {
+    return completedTopics.get();
+  }
+
+  public State state() {
+    return completion.getNow(State.RUNNING);
+  }
+
+  /** @return a future completed with the final state of the job */
+  public CompletableFuture<State> completion() {
+    return completion;
+  }
+
+  /** Stop the replay before redelivering any further message. */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Wait for the rate limit, before redelivering a message.
+   *
+   * @return true if the message is to be redelivered, false if the job was cancelled
+   */
+  boolean proceed() {
+    if (cancelled) {
+      return false;
+    }
+    if (rateLimiter != null) {
+      rateLimiter.acquire();
+      if (cancelled) {
+        return false;
+      }
+    }
+    replayedMessages.incrementAndGet();
+    return true;
+  }
+
+  void topicCompleted() {
+    completedTopics.incrementAndGet();
+  }
+
+  void finish(Throwable failure) {
+    completion.complete(
+        failure != null ? State.FAILED : cancelled ? State.CANCELLED : State.COMPLETED);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "Replay %d of %s: %s, %d messages replayed, %d/%d topics completed",
+        id, topics, state(), replayedMessages(), completedTopics(), topics.size());
+  }
+}
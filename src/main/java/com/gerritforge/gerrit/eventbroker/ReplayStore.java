@@ -0,0 +1,67 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import java.time.Instant;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Storage of the messages of a topic that can be redelivered by {@link BrokerApi#replayAllEvents}.
+ *
+ * <p>Every stored message is assigned an offset, increasing by one for each message appended to the
+ * store.
+ */
+interface ReplayStore {
+  /** Offset returned by {@link #append(EventMessage)} for messages that were not stored. */
+  long NOT_STORED = -1;
+
+  /**
+   * Store a message.
+   *
+   * @param message message to store
+   * @return offset assigned to the message, or {@link #NOT_STORED} if the message was not stored
+   */
+  long append(EventMessage message);
+
+  /**
+   * Stream all stored messages, from the oldest to the most recent.
+   *
+   * @param consumer an operation that accepts each stored message
+   */
+  default void replay(Consumer<EventMessage> consumer) {
+    replay(0, (message, offset) -> consumer.accept(message));
+  }
+
+  /**
+   * Stream the stored messages starting from an offset, from the oldest to the most recent.
+   *
+   * @param fromOffset offset of the first message to stream
+   * @param consumer an operation that accepts each stored message together with its offset
+   */
+  void replay(long fromOffset, ObjLongConsumer<EventMessage> consumer);
+
+  /**
+   * Find the offset of the first message stored at or after a point in time.
+   *
+   * @param timestamp point in time
+   * @return offset of the first message stored at or after {@code timestamp}, or the offset that
+   *     will be assigned to the next message if there is none
+   */
+  long offsetAt(Instant timestamp);
+
+  /** Release the resources held by the store, once the topic is no longer used. */
+  default void close() {}
+}
@@ -0,0 +1,499 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the messages of a topic, persisted on the local filesystem.
+ *
+ * <p>The log is split into segments, each one made of a pre-allocated, memory-mapped {@code .log}
+ * file named after the offset of its first record and of a sparse {@code .index} file. Each record
+ * of a {@code .log} file is laid out as:
+ *
+ * <pre>
+ *   int  payload length (0 marks the end of the segment)
+ *   int  CRC32 of the payload
+ *   long offset
+ *   long timestamp, in milliseconds since the epoch
+ *   byte[] payload, the {@link EventMessage} encoded by the {@link EventMessageCodec}
+ * </pre>
+ *
+ * <p>Every {@link #INDEX_INTERVAL_BYTES} bytes of log, the {@code .index} file gets an entry made
+ * of the offset of a record, relative to the segment base offset, and of its position in the {@code
+ * .log} file.
+ *
+ * <p>Whole segments, apart from the one being written, are deleted once the total size of the log
+ * exceeds the retention size or once their most recent record is older than the retention age.
+ *
+ * <p>Messages are appended by one thread at a time, whilst the replays read the segments without
+ * locking: each record is published by the volatile write of the segment size that follows it.
+ */
+class SegmentedReplayLog implements ReplayStore {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final String LOG_SUFFIX = ".log";
+  static final String INDEX_SUFFIX = ".index";
+  static final int INDEX_INTERVAL_BYTES = 4096;
+
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 8;
+  private static final int INDEX_ENTRY_SIZE = 4 + 4;
+
+  private final Path directory;
+  private final long segmentBytes;
+  private final long retentionBytes;
+  private final Duration retentionAge;
+  private final EventMessageCodec codec;
+  private final Clock clock;
+  private final ConcurrentSkipListMap<Long, Segment> segments;
+
+  private Segment activeSegment;
+  private long nextOffset;
+  private boolean closed;
+
+  SegmentedReplayLog(
+      Path directory,
+      long segmentBytes,
+      long retentionBytes,
+      Duration retentionAge,
+      EventMessageCodec codec,
+      Clock clock) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.retentionBytes = retentionBytes;
+    this.retentionAge = retentionAge;
+    this.codec = codec;
+    this.clock = clock;
+    this.segments = new ConcurrentSkipListMap<>();
+    try {
+      open();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open replay log " + directory, e);
+    }
+  }
+
+  @Override
+  public synchronized long append(EventMessage message) {
+    if (closed) {
+      return NOT_STORED;
+    }
+    byte[] payload = codec.encode(message);
+    int recordSize = RECORD_HEADER_SIZE + payload.length;
+    try {
+      if (activeSegment == null || !activeSegment.hasRoomFor(recordSize)) {
+        roll(recordSize);
+      }
+      activeSegment.append(nextOffset, clock.millis(), payload);
+      return nextOffset++;
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Unable to append message to replay log %s", directory);
+      return NOT_STORED;
+    }
+  }
+
+  @Override
+  public void replay(long fromOffset, ObjLongConsumer<EventMessage> consumer) {
+    Long firstSegment = segments.floorKey(fromOffset);
+    for (Segment segment :
+        segments.tailMap(firstSegment != null ? firstSegment : fromOffset).values()) {
+      segment.read(fromOffset, consumer, codec);
+    }
+  }
+
+  @Override
+  public long offsetAt(Instant timestamp) {
+    long millis = timestamp.toEpochMilli();
+    for (Segment segment : segments.values()) {
+      if (segment.lastTimestamp() >= millis) {
+        long offset = segment.offsetAt(millis);
+        if (offset != NOT_STORED) {
+          return offset;
+        }
+      }
+    }
+    return nextOffset();
+  }
+
+  /** @return the offset that will be assigned to the next appended message */
+  synchronized long nextOffset() {
+    return nextOffset;
+  }
+
+  /** Flush the segment being written to disk. */
+  synchronized void flush() {
+    if (activeSegment != null) {
+      activeSegment.flush();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The segment being written is flushed to disk, and the memory-mapped buffers of all the
+   * segments are released: the messages appended afterwards are not stored.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (activeSegment != null) {
+      activeSegment.flush();
+    }
+    for (Segment segment : segments.values()) {
+      segment.release();
+    }
+    segments.clear();
+    activeSegment = null;
+  }
+
+  private void open() throws IOException {
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        long baseOffset;
+        try {
+          baseOffset = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+          log.atWarning().log("Ignoring unexpected file %s in replay log", file);
+          continue;
+        }
+        segments.put(baseOffset, Segment.open(directory, baseOffset));
+      }
+    }
+
+    Map.Entry<Long, Segment> last = segments.lastEntry();
+    if (last != null) {
+      activeSegment = last.getValue();
+      nextOffset = activeSegment.nextOffset();
+    }
+    enforceRetention();
+  }
+
+  private void roll(int recordSize) throws IOException {
+    if (activeSegment != null) {
+      activeSegment.flush();
+    }
+    long capacity = Math.max(segmentBytes, recordSize + 4L);
+    activeSegment = Segment.create(directory, nextOffset, capacity);
+    segments.put(nextOffset, activeSegment);
+    enforceRetention();
+  }
+
+  private void enforceRetention() {
+    long totalBytes = 0;
+    for (Segment segment : segments.values()) {
+      totalBytes += segment.size();
+    }
+
+    long expiredBefore = clock.millis() - retentionAge.toMillis();
+    List<Segment> expired = new ArrayList<>();
+    for (Segment segment : segments.values()) {
+      if (segment == activeSegment) {
+        break;
+      }
+      if (totalBytes > retentionBytes || segment.lastTimestamp() < expiredBefore) {
+        expired.add(segment);
+        totalBytes -= segment.size();
+      }
+    }
+
+    for (Segment segment : expired) {
+      segments.remove(segment.baseOffset);
+      try {
+        segment.delete();
+      } catch (IOException e) {
+        log.atWarning().withCause(e).log("Unable to delete expired replay log segment %s", segment);
+      }
+    }
+  }
+
+  private static class Segment {
+    final long baseOffset;
+    final Path logFile;
+    final Path indexFile;
+    /** Buffers mapping the files, null once released. */
+    private volatile MappedByteBuffer logBuffer;
+
+    private volatile MappedByteBuffer indexBuffer;
+
+    private volatile int size;
+    private volatile long lastOffset;
+    private volatile long lastTimestamp;
+    private int lastIndexedPosition;
+    private volatile int indexEntries;
+
+    static Segment create(Path directory, long baseOffset, long capacity) throws IOException {
+      return new Segment(directory, baseOffset, capacity);
+    }
+
+    static Segment open(Path directory, long baseOffset) throws IOException {
+      Segment segment = new Segment(directory, baseOffset, -1);
+      segment.recover();
+      return segment;
+    }
+
+    private Segment(Path directory, long baseOffset, long capacity) throws IOException {
+      this.baseOffset = baseOffset;
+      this.logFile = directory.resolve(String.format("%020d%s", baseOffset, LOG_SUFFIX));
+      this.indexFile = directory.resolve(String.format("%020d%s", baseOffset, INDEX_SUFFIX));
+      this.logBuffer = map(logFile, capacity);
+      long indexCapacity = (logBuffer.capacity() / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY_SIZE;
+      this.indexBuffer = map(indexFile, capacity < 0 ? -1 : indexCapacity);
+      this.lastOffset = baseOffset - 1;
+      this.lastTimestamp = 0;
+    }
+
+    private static MappedByteBuffer map(Path file, long capacity) throws IOException {
+      try (FileChannel channel =
+          FileChannel.open(
+              file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long size = capacity < 0 ? channel.size() : capacity;
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    boolean hasRoomFor(int recordSize) {
+      // Always leave room for the end-of-segment marker
+      return size + recordSize + 4 <= logBuffer.capacity();
+    }
+
+    void append(long offset, long timestamp, byte[] payload) {
+      int position = size;
+      CRC32 crc = new CRC32();
+      crc.update(payload, 0, payload.length);
+      ByteBuffer buf = logBuffer.duplicate();
+      buf.position(position);
+      buf.putInt(payload.length);
+      buf.putInt((int) crc.getValue());
+      buf.putLong(offset);
+      buf.putLong(timestamp);
+      buf.put(payload);
+
+      if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+        writeIndexEntry(offset, position);
+      }
+
+      lastOffset = offset;
+      lastTimestamp = timestamp;
+      size = buf.position();
+    }
+
+    void read(long fromOffset, ObjLongConsumer<EventMessage> consumer, EventMessageCodec codec) {
+      int end = size;
+      MappedByteBuffer records = logBuffer;
+      MappedByteBuffer index = indexBuffer;
+      if (records == null || index == null) {
+        return;
+      }
+      ByteBuffer buf = records.duplicate();
+      buf.limit(end);
+      buf.position(positionBefore(index, fromOffset));
+      while (buf.remaining() >= RECORD_HEADER_SIZE) {
+        int length = buf.getInt();
+        buf.position(buf.position() + 4);
+        long offset = buf.getLong();
+        buf.position(buf.position() + 8);
+        if (offset < fromOffset) {
+          buf.position(buf.position() + length);
+          continue;
+        }
+
+        ByteBuffer payload = buf.slice();
+        payload.limit(length);
+        buf.position(buf.position() + length);
+        EventMessage message;
+        try {
+          message = codec.decode(payload);
+        } catch (IllegalArgumentException e) {
+          log.atSevere().withCause(e).log("Skipping unreadable record in %s", logFile);
+          continue;
+        }
+        consumer.accept(message, offset);
+      }
+    }
+
+    /** @return the offset of the first record written at or after a timestamp, if any */
+    long offsetAt(long timestamp) {
+      int end = size;
+      MappedByteBuffer records = logBuffer;
+      if (records == null) {
+        return NOT_STORED;
+      }
+      ByteBuffer buf = records.duplicate();
+      buf.limit(end);
+      buf.position(0);
+      while (buf.remaining() >= RECORD_HEADER_SIZE) {
+        int length = buf.getInt();
+        buf.position(buf.position() + 4);
+        long offset = buf.getLong();
+        if (buf.getLong() >= timestamp) {
+          return offset;
+        }
+        buf.position(buf.position() + length);
+      }
+      return NOT_STORED;
+    }
+
+    /**
+     * Look up the sparse index for the position of the closest record preceding an offset.
+     *
+     * @param index buffer mapping the index file
+     * @param offset offset to look for
+     * @return position of a record with an offset lower than or equal to {@code offset}
+     */
+    private int positionBefore(ByteBuffer index, long offset) {
+      long relativeOffset = offset - baseOffset;
+      int low = 0;
+      int high = indexEntries - 1;
+      int position = 0;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (index.getInt(mid * INDEX_ENTRY_SIZE) <= relativeOffset) {
+          position = index.getInt(mid * INDEX_ENTRY_SIZE + 4);
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return position;
+    }
+
+    long nextOffset() {
+      return lastOffset + 1;
+    }
+
+    long lastTimestamp() {
+      return lastTimestamp;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void flush() {
+      MappedByteBuffer records = logBuffer;
+      MappedByteBuffer index = indexBuffer;
+      if (records != null && index != null) {
+        records.force();
+        index.force();
+      }
+    }
+
+    /**
+     * Drop the buffers mapping the files, unmapped once garbage collected, as the segment is no
+     * longer read nor written.
+     */
+    void release() {
+      logBuffer = null;
+      indexBuffer = null;
+    }
+
+    void delete() throws IOException {
+      release();
+      Files.deleteIfExists(logFile);
+      Files.deleteIfExists(indexFile);
+    }
+
+    /**
+     * Find the end of the records of a segment written by a previous process, starting from the
+     * last position recorded in the index and validating the CRC of every record.
+     */
+    private void recover() {
+      // The first record of a segment is never indexed, hence a zero position marks the end of the
+      // index entries.
+      int position = 0;
+      while ((indexEntries + 1) * INDEX_ENTRY_SIZE <= indexBuffer.capacity()) {
+        int indexedPosition = indexBuffer.getInt(indexEntries * INDEX_ENTRY_SIZE + 4);
+        if (indexedPosition == 0) {
+          break;
+        }
+        position = indexedPosition;
+        indexEntries++;
+      }
+      lastIndexedPosition = position;
+
+      ByteBuffer buf = logBuffer.duplicate();
+      buf.position(position);
+      while (buf.remaining() >= RECORD_HEADER_SIZE) {
+        int recordStart = buf.position();
+        int length = buf.getInt();
+        if (length <= 0 || length > buf.remaining() - RECORD_HEADER_SIZE + 4) {
+          break;
+        }
+        int checksum = buf.getInt();
+        long offset = buf.getLong();
+        long timestamp = buf.getLong();
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          log.atWarning().log(
+              "Truncating replay log segment %s at position %d: corrupted record",
+              logFile, recordStart);
+          clear(recordStart);
+          break;
+        }
+        lastOffset = offset;
+        lastTimestamp = timestamp;
+        position = buf.position();
+      }
+      size = position;
+    }
+
+    private void clear(int from) {
+      ByteBuffer buf = logBuffer.duplicate();
+      buf.position(from);
+      buf.putInt(0);
+    }
+
+    private void writeIndexEntry(long offset, int position) {
+      int entryPosition = indexEntries * INDEX_ENTRY_SIZE;
+      if (entryPosition + INDEX_ENTRY_SIZE > indexBuffer.capacity()) {
+        return;
+      }
+      indexBuffer.putInt(entryPosition, (int) (offset - baseOffset));
+      indexBuffer.putInt(entryPosition + 4, position);
+      indexEntries++;
+      lastIndexedPosition = position;
+    }
+
+    @Override
+    public String toString() {
+      return logFile.toString();
+    }
+  }
+}
@@ -0,0 +1,35 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+/** Outcome of a message sent through {@link BrokerApi#sendAsync}. */
+public enum SendResult {
+  /** The message was processed by all the subscribers of the topic. */
+  DELIVERED,
+
+  /** The message was accepted, but at least one subscriber failed to process it. */
+  FAILED,
+
+  /**
+   * The message was not accepted, or was discarded before being delivered, because the broker had
+   * no capacity left. The producer is expected to slow down before sending again.
+   */
+  REJECTED;
+
+  /** @return true if the message was processed by all the subscribers of the topic */
+  public boolean isDelivered() {
+    return this == DELIVERED;
+  }
+}
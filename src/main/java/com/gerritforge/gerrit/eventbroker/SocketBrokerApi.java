@@ -0,0 +1,484 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Reference {@link BrokerApi} exchanging the messages with the other processes of the same machine
+ * through a {@link SocketBrokerServer}, with no external services.
+ *
+ * <p>The messages sent are written to the hub, which relays them to all the connected brokers, this
+ * one included: the messages received from the hub are then delivered to the local subscribers by
+ * an {@link InProcessBrokerApi}, which also keeps them for replay.
+ *
+ * <p>The messages are queued and written by a dedicated thread, which writes all the messages
+ * queued in the meantime with a single gathering write, without copying them into a single buffer.
+ * The batches are bounded in bytes, and the thread can linger for more messages before writing a
+ * batch, trading latency for fewer and larger writes. The messages can be compressed by the {@link
+ * CompressingEventMessageCodec}: the messages received are decoded whether compressed or not. The
+ * connection is re-established when lost, and the messages queued in the meantime are written once
+ * connected.
+ *
+ * <p>Disconnecting stops the threads exchanging the messages with the hub and closes the hub hosted
+ * by this broker: they are started again by the next message sent or subscription.
+ */
+public class SocketBrokerApi implements BrokerApi, QueuedMessages {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_GATHERED_FRAMES = 64;
+  private static final long RECONNECT_DELAY_MILLIS = 1000;
+  private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+  private final InetSocketAddress address;
+  private final InProcessBrokerApi local;
+  /** Id of the local instance, whose messages received back from the hub are not delivered. */
+  private final Optional<UUID> localInstanceId;
+  /** Encodes the messages sent, compressing them when configured. */
+  private final EventMessageCodec encoder;
+  /** Decodes the messages received, whether compressed or not. */
+  private final EventMessageCodec decoder;
+
+  private final long batchMaxBytes;
+  private final long batchLingerNanos;
+  private final OverflowPolicy overflowPolicy;
+  private final BlockingQueue<OutboundFrame> outbound;
+  /** Whether the hub is hosted by this broker, started again when reconnecting. */
+  private final boolean hostingServer;
+
+  private final int serverMaxPendingFrames;
+  /** Hub hosted by this broker, null when hosted elsewhere or stopped. */
+  private SocketBrokerServer server;
+
+  private Thread reader;
+  private Thread writer;
+  private final Object connectionLock = new Object();
+  private volatile SocketChannel channel;
+  private volatile boolean running;
+
+  @Inject
+  public SocketBrokerApi(InProcessBrokerConfig config) throws IOException {
+    this(
+        config.socketAddress(),
+        config.socketServer()
+            ? SocketBrokerServer.start(config.socketAddress(), config.dispatchQueueCapacity())
+            : null,
+        config);
+  }
+
+  /**
+   * @param address address of the hub
+   * @param server hub to close on disconnect, or null if it is hosted elsewhere
+   * @param config configuration of the delivery to the local subscribers
+   */
+  SocketBrokerApi(
+      InetSocketAddress address, SocketBrokerServer server, InProcessBrokerConfig config) {
+    this.address = address;
+    this.server = server;
+    this.hostingServer = server != null;
+    this.local = new InProcessBrokerApi(config);
+    this.localInstanceId = config.localInstanceId();
+    this.decoder = new CompressingEventMessageCodec();
+    this.encoder = config.compression() ? decoder : new BinaryEventMessageCodec();
+    this.batchMaxBytes = config.batchMaxBytes();
+    this.batchLingerNanos = config.batchLinger().toNanos();
+    this.overflowPolicy = config.overflowPolicy();
+    this.outbound = new ArrayBlockingQueue<>(config.dispatchQueueCapacity());
+    this.serverMaxPendingFrames = config.dispatchQueueCapacity();
+    start();
+  }
+
+  /**
+   * Start the threads exchanging the messages with the hub, and the hub hosted by this broker,
+   * unless already running.
+   */
+  private synchronized void start() {
+    if (running) {
+      return;
+    }
+    if (hostingServer && server == null) {
+      try {
+        server = SocketBrokerServer.start(address, serverMaxPendingFrames);
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("Unable to start broker socket server %s", address);
+      }
+    }
+    running = true;
+    reader = new Thread(this::readLoop, "broker-socket-reader");
+    reader.setDaemon(true);
+    writer = new Thread(this::writeLoop, "broker-socket-writer");
+    writer.setDaemon(true);
+    reader.start();
+    writer.start();
+  }
+
+  private void ensureStarted() {
+    if (!running) {
+      start();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Returns once the message is queued for writing to the hub, and false when the queue is full:
+   * true only means that the message is queued, as it can still fail to be written. Use {@link
+   * #sendAsync(String, EventMessage)} to know whether it was written.
+   */
+  @Override
+  public boolean send(String topic, EventMessage message) {
+    return enqueue(frame(topic, message, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The future completes once the message is written to the hub, with {@link
+   * SendResult#REJECTED} when the queue is full.
+   */
+  @Override
+  public CompletableFuture<SendResult> sendAsync(String topic, EventMessage message) {
+    ensureStarted();
+    CompletableFuture<SendResult> result = new CompletableFuture<>();
+    OutboundFrame frame = frame(topic, message, result);
+    if (!outbound.offer(frame)) {
+      result.complete(SendResult.REJECTED);
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>As for {@link #send(String, EventMessage)}, true only means that the message is queued for
+   * writing to the hub.
+   */
+  @Override
+  public List<Boolean> sendBatch(String topic, List<EventMessage> messages) {
+    List<Boolean> results = new ArrayList<>(messages.size());
+    for (EventMessage message : messages) {
+      results.add(enqueue(frame(topic, message, null)));
+    }
+    return results;
+  }
+
+  @Override
+  public void receiveAsync(String topic, Consumer<EventMessage> eventConsumer) {
+    ensureStarted();
+    local.receiveAsync(topic, eventConsumer);
+  }
+
+  @Override
+  public void receiveAsync(
+      String topic, MessageFilter filter, Consumer<EventMessage> eventConsumer) {
+    ensureStarted();
+    local.receiveAsync(topic, filter, eventConsumer);
+  }
+
+  @Override
+  public void receiveAsync(String topic, String groupId, Consumer<EventMessage> eventConsumer) {
+    ensureStarted();
+    local.receiveAsync(topic, groupId, eventConsumer);
+  }
+
+  @Override
+  public boolean unsubscribe(TopicSubscriber subscriber) {
+    return local.unsubscribe(subscriber);
+  }
+
+  @Override
+  public Map<String, Long> queuedMessages() {
+    return local.queuedMessages();
+  }
+
+  @Override
+  public Set<TopicSubscriber> topicSubscribers() {
+    return local.topicSubscribers();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The messages still queued for writing are rejected. The broker connects again to the hub
+   * when a message is sent or a consumer subscribes afterwards.
+   */
+  @Override
+  public synchronized void disconnect() {
+    running = false;
+    reader.interrupt();
+    writer.interrupt();
+    closeChannel();
+    awaitStopped(reader);
+    awaitStopped(writer);
+    OutboundFrame frame;
+    while ((frame = outbound.poll()) != null) {
+      frame.complete(SendResult.REJECTED);
+    }
+    local.disconnect();
+    if (server != null) {
+      server.close();
+      server = null;
+    }
+  }
+
+  private static void awaitStopped(Thread thread) {
+    if (thread == Thread.currentThread()) {
+      return;
+    }
+    try {
+      thread.join(STOP_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      log.atWarning().log("Thread %s not stopped after disconnecting", thread.getName());
+    }
+  }
+
+  @Override
+  public void replayAllEvents(String topic) {
+    local.replayAllEvents(topic);
+  }
+
+  @Override
+  public void replayAllEvents(String topic, BooleanSupplier proceed) {
+    local.replayAllEvents(topic, proceed);
+  }
+
+  @Override
+  public void replayFrom(String topic, long offset) {
+    local.replayFrom(topic, offset);
+  }
+
+  @Override
+  public void replayFrom(String topic, Instant timestamp) {
+    local.replayFrom(topic, timestamp);
+  }
+
+  /** @return true if the broker is connected to the hub */
+  public boolean isConnected() {
+    return channel != null;
+  }
+
+  private OutboundFrame frame(
+      String topic, EventMessage message, CompletableFuture<SendResult> result) {
+    ByteBuffer encoded = ByteBuffer.wrap(encoder.encode(message));
+    return new OutboundFrame(
+        new ByteBuffer[] {SocketFrames.header(topic, encoded.remaining()), encoded}, result);
+  }
+
+  private boolean enqueue(OutboundFrame frame) {
+    ensureStarted();
+    if (overflowPolicy != OverflowPolicy.BLOCK) {
+      return outbound.offer(frame);
+    }
+    try {
+      outbound.put(frame);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void readLoop() {
+    while (running) {
+      try (SocketChannel connected = SocketChannel.open(address)) {
+        connected.socket().setTcpNoDelay(true);
+        synchronized (connectionLock) {
+          channel = connected;
+          connectionLock.notifyAll();
+        }
+        log.atInfo().log("Connected to broker socket server %s", address);
+        read(connected);
+      } catch (IOException e) {
+        if (running) {
+          log.atWarning().atMostEvery(1, TimeUnit.MINUTES).withCause(e).log(
+              "Broker socket server %s not reachable: retrying", address);
+        }
+      } finally {
+        closeChannel();
+      }
+      sleepBeforeReconnecting();
+    }
+  }
+
+  private void read(SocketChannel connected) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    while (running && connected.read(buffer) >= 0) {
+      buffer.flip();
+      ByteBuffer frame;
+      while ((frame = SocketFrames.next(buffer)) != null) {
+        String topic = SocketFrames.topic(frame);
+        try {
+          EventMessage message = decoder.decode(frame);
+          if (isSelfOriginated(message)) {
+            log.atFine().log("Dropping self-originated message %s", message.getHeader());
+            continue;
+          }
+          local.send(topic, message);
+        } catch (IllegalArgumentException e) {
+          log.atSevere().withCause(e).log("Skipping invalid message of topic %s", topic);
+        }
+      }
+      buffer = SocketFrames.compact(buffer);
+    }
+  }
+
+  private boolean isSelfOriginated(EventMessage message) {
+    return localInstanceId.isPresent()
+        && localInstanceId.get().equals(message.getHeader().sourceInstanceId);
+  }
+
+  private void writeLoop() {
+    List<OutboundFrame> batch = new ArrayList<>(MAX_GATHERED_FRAMES);
+    while (running) {
+      try {
+        gather(batch);
+        write(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        batch.forEach(frame -> frame.complete(SendResult.REJECTED));
+        return;
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Wait for a frame to write, then gather the frames queued in the meantime, waiting up to the
+   * linger time for more frames until the batch reaches its maximum size.
+   */
+  private void gather(List<OutboundFrame> batch) throws InterruptedException {
+    OutboundFrame frame = outbound.take();
+    long bytes = frame.size();
+    batch.add(frame);
+    long lingerDeadline = System.nanoTime() + batchLingerNanos;
+    while (batch.size() < MAX_GATHERED_FRAMES && bytes < batchMaxBytes) {
+      long linger = lingerDeadline - System.nanoTime();
+      frame = linger > 0 ? outbound.poll(linger, TimeUnit.NANOSECONDS) : outbound.poll();
+      if (frame == null) {
+        return;
+      }
+      bytes += frame.size();
+      batch.add(frame);
+    }
+  }
+
+  private void write(List<OutboundFrame> batch) throws InterruptedException {
+    ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+    for (int i = 0; i < batch.size(); i++) {
+      System.arraycopy(batch.get(i).buffers, 0, buffers, i * 2, 2);
+    }
+
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    while (remaining > 0) {
+      SocketChannel connected = awaitConnection();
+      try {
+        remaining -= connected.write(buffers);
+      } catch (IOException e) {
+        log.atWarning().withCause(e).log("Unable to write to broker socket server %s", address);
+        closeChannel();
+        batch.forEach(
+            frame -> frame.complete(frame.isWritten() ? SendResult.DELIVERED : SendResult.FAILED));
+        return;
+      }
+    }
+    batch.forEach(frame -> frame.complete(SendResult.DELIVERED));
+  }
+
+  private SocketChannel awaitConnection() throws InterruptedException {
+    synchronized (connectionLock) {
+      while (channel == null) {
+        connectionLock.wait();
+      }
+      return channel;
+    }
+  }
+
+  private void closeChannel() {
+    SocketChannel current;
+    synchronized (connectionLock) {
+      current = channel;
+      channel = null;
+    }
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        log.atFine().withCause(e).log("Unable to close connection to %s", address);
+      }
+    }
+  }
+
+  private void sleepBeforeReconnecting() {
+    if (running) {
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Encoded message queued for writing, made of the frame header and the message. */
+  private static class OutboundFrame {
+    final ByteBuffer[] buffers;
+    final CompletableFuture<SendResult> result;
+
+    OutboundFrame(ByteBuffer[] buffers, CompletableFuture<SendResult> result) {
+      this.buffers = buffers;
+      this.result = result;
+    }
+
+    long size() {
+      return buffers[0].remaining() + buffers[1].remaining();
+    }
+
+    /** @return true once the whole frame is written, as the writes consume its buffers */
+    boolean isWritten() {
+      return !buffers[0].hasRemaining() && !buffers[1].hasRemaining();
+    }
+
+    void complete(SendResult sendResult) {
+      if (result != null) {
+        result.complete(sendResult);
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hub of the {@link SocketBrokerApi}s of a set of processes, relaying every frame received from any
+ * of them to all of them, the sender included.
+ *
+ * <p>All the connections are served by a single selector thread. The frames completed by each read
+ * are copied once out of the read buffer of the sender, into a single heap buffer, and the same
+ * bytes are then handed to all the connections, whose pending frames are written together with a
+ * single gathering write.
+ */
+public class SocketBrokerServer implements AutoCloseable {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_GATHERED_FRAMES = 64;
+
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final int maxPendingFrames;
+  private final List<Connection> connections = new ArrayList<>();
+  private final Thread thread;
+
+  /**
+   * Start a hub.
+   *
+   * @param address address to listen on, with port 0 for an ephemeral port
+   * @param maxPendingFrames maximum number of frames waiting to be written to a connection, beyond
+   *     which the new frames are dropped for that connection
+   * @return the running hub
+   * @throws IOException if the address cannot be bound
+   */
+  public static SocketBrokerServer start(InetSocketAddress address, int maxPendingFrames)
+      throws IOException {
+    SocketBrokerServer server = new SocketBrokerServer(address, maxPendingFrames);
+    server.thread.start();
+    return server;
+  }
+
+  private SocketBrokerServer(InetSocketAddress address, int maxPendingFrames) throws IOException {
+    this.maxPendingFrames = maxPendingFrames;
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.bind(address);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      serverChannel.close();
+      selector.close();
+      throw e;
+    }
+    this.thread = new Thread(this::run, "broker-socket-server");
+    this.thread.setDaemon(true);
+  }
+
+  /** @return the address the hub listens on */
+  public InetSocketAddress localAddress() throws IOException {
+    return (InetSocketAddress) serverChannel.getLocalAddress();
+  }
+
+  @Override
+  public void close() {
+    try {
+      selector.close();
+      serverChannel.close();
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Unable to close broker socket server");
+    }
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    try {
+      while (selector.isOpen()) {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.flush();
+            }
+          } catch (IOException e) {
+            log.atWarning().withCause(e).log("Closing broker socket connection");
+            connection.close();
+          }
+        }
+      }
+    } catch (ClosedSelectorException e) {
+      // Closed by close()
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Broker socket server failed");
+    } finally {
+      new ArrayList<>(connections).forEach(Connection::close);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Connection connection = new Connection(channel);
+    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    connections.add(connection);
+  }
+
+  private void broadcast(ByteBuffer frame) {
+    for (Connection connection : new ArrayList<>(connections)) {
+      connection.enqueue(frame.duplicate());
+    }
+  }
+
+  private class Connection {
+    final SocketChannel channel;
+    final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    SelectionKey key;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        close();
+        return;
+      }
+      readBuffer.flip();
+      int start = readBuffer.position();
+      while (SocketFrames.next(readBuffer) != null) {}
+      if (readBuffer.position() > start) {
+        // One heap slab holds all the frames completed by this read; the frames broadcast are
+        // slices of it, shared by all the connections.
+        ByteBuffer received = readBuffer.duplicate();
+        received.limit(readBuffer.position());
+        received.position(start);
+        ByteBuffer slab = ByteBuffer.allocate(received.remaining());
+        slab.put(received);
+        slab.flip();
+        ByteBuffer frame;
+        while ((frame = SocketFrames.next(slab)) != null) {
+          broadcast(frame.asReadOnlyBuffer());
+        }
+      }
+      readBuffer = SocketFrames.compact(readBuffer);
+    }
+
+    void enqueue(ByteBuffer frame) {
+      if (pending.size() >= maxPendingFrames) {
+        log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+            "Broker socket connection %s is too slow: message dropped", remoteAddress());
+        return;
+      }
+      pending.add(frame);
+      if (pending.size() == 1) {
+        try {
+          flush();
+        } catch (IOException e) {
+          log.atWarning().withCause(e).log("Closing broker socket connection");
+          close();
+        }
+      }
+    }
+
+    void flush() throws IOException {
+      while (!pending.isEmpty()) {
+        ByteBuffer[] frames =
+            pending.stream().limit(MAX_GATHERED_FRAMES).toArray(ByteBuffer[]::new);
+        channel.write(frames);
+        while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+          pending.poll();
+        }
+        if (frames[frames.length - 1].hasRemaining()) {
+          break;
+        }
+      }
+      if (key.isValid()) {
+        key.interestOps(
+            pending.isEmpty()
+                ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void close() {
+      connections.remove(this);
+      pending.clear();
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.atFine().withCause(e).log("Unable to close broker socket connection");
+      }
+    }
+
+    String remoteAddress() {
+      try {
+        return String.valueOf(channel.getRemoteAddress());
+      } catch (IOException e) {
+        return "(closed)";
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of the messages exchanged by the {@link SocketBrokerApi} and the {@link
+ * SocketBrokerServer}.
+ *
+ * <p>Each frame is made of:
+ *
+ * <ul>
+ *   <li>the length of the rest of the frame, as a 4 bytes integer
+ *   <li>the length of the topic name, as a 2 bytes integer
+ *   <li>the topic name, in UTF-8
+ *   <li>the message, encoded by the {@link BinaryEventMessageCodec}
+ * </ul>
+ */
+final class SocketFrames {
+  static final int LENGTH_SIZE = 4;
+  static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Create the header of a frame, to be written followed by the encoded message.
+   *
+   * @param topic topic of the message
+   * @param messageSize size of the encoded message
+   * @return buffer ready to be written
+   */
+  static ByteBuffer header(String topic, int messageSize) {
+    byte[] topicBytes = topic.getBytes(UTF_8);
+    checkArgument(topicBytes.length <= Short.MAX_VALUE, "topic name too long: %s", topic);
+    ByteBuffer header = ByteBuffer.allocate(LENGTH_SIZE + 2 + topicBytes.length);
+    header.putInt(2 + topicBytes.length + messageSize);
+    header.putShort((short) topicBytes.length);
+    header.put(topicBytes);
+    header.flip();
+    return header;
+  }
+
+  /**
+   * Extract the next complete frame from a buffer.
+   *
+   * @param buffer buffer being read, whose position is advanced past the frame
+   * @return the frame, including its length, sharing the content of the buffer, or null if the
+   *     buffer does not hold a complete frame
+   * @throws IOException if the frame length is not valid
+   */
+  static ByteBuffer next(ByteBuffer buffer) throws IOException {
+    if (buffer.remaining() < LENGTH_SIZE) {
+      return null;
+    }
+    int length = buffer.getInt(buffer.position());
+    if (length <= 0 || length > MAX_FRAME_SIZE) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    if (buffer.remaining() < LENGTH_SIZE + length) {
+      return null;
+    }
+    ByteBuffer frame = buffer.slice();
+    frame.limit(LENGTH_SIZE + length);
+    buffer.position(buffer.position() + LENGTH_SIZE + length);
+    return frame;
+  }
+
+  /**
+   * Read the topic of a frame returned by {@link #next(ByteBuffer)}.
+   *
+   * @param frame frame, whose position is advanced to the encoded message
+   * @return topic of the message
+   */
+  static String topic(ByteBuffer frame) {
+    frame.position(frame.position() + LENGTH_SIZE);
+    byte[] topicBytes = new byte[frame.getShort()];
+    frame.get(topicBytes);
+    return new String(topicBytes, UTF_8);
+  }
+
+  /**
+   * Make room in a read buffer for the rest of a partially read frame.
+   *
+   * @param buffer buffer in read mode, holding the start of a frame
+   * @return the buffer in write mode, compacted, or a larger one if the frame does not fit
+   */
+  static ByteBuffer compact(ByteBuffer buffer) {
+    int needed =
+        buffer.remaining() >= LENGTH_SIZE
+            ? LENGTH_SIZE + buffer.getInt(buffer.position())
+            : LENGTH_SIZE;
+    if (needed <= buffer.capacity()) {
+      buffer.compact();
+      return buffer;
+    }
+    ByteBuffer larger = ByteBuffer.allocate(needed);
+    larger.put(buffer);
+    return larger;
+  }
+
+  private SocketFrames() {}
+}
@@ -0,0 +1,202 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.gerritforge.gerrit.eventbroker.TopicDispatcher.TrackedDelivery;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded queue of the deliveries to a single subscriber, drained serially by a thread of its own.
+ *
+ * <p>No thread is held by an idle mailbox: a drain task is started on the executor when the first
+ * delivery is queued, and ends when the mailbox is empty again.
+ */
+class SubscriberMailbox {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+  private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final String name;
+  private final Executor executor;
+  private final OverflowPolicy overflowPolicy;
+  private final BlockingQueue<TrackedDelivery> queue;
+  private final AtomicBoolean draining;
+
+  SubscriberMailbox(String name, Executor executor, int capacity, OverflowPolicy overflowPolicy) {
+    this.name = name;
+    this.executor = executor;
+    this.overflowPolicy = overflowPolicy;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.draining = new AtomicBoolean();
+  }
+
+  /**
+   * Queue a delivery, applying the overflow policy when the mailbox is full.
+   *
+   * @param delivery task delivering a message to the subscriber, returning true if it was processed
+   *     successfully
+   * @return true if the delivery was queued, false if it was rejected
+   */
+  boolean put(BooleanSupplier delivery) {
+    return enqueue(new TrackedDelivery(delivery), overflowPolicy == OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Queue a delivery without ever blocking the caller, whatever the overflow policy. When the
+   * mailbox is full, the {@link OverflowPolicy#DROP_OLDEST} policy discards the oldest queued
+   * delivery, whilst the other policies reject the new one.
+   *
+   * @param delivery task delivering a message to the subscriber, returning true if it was processed
+   *     successfully
+   * @return the outcome of the delivery
+   */
+  CompletableFuture<SendResult> offer(BooleanSupplier delivery) {
+    TrackedDelivery trackedDelivery = new TrackedDelivery(delivery);
+    if (!enqueue(trackedDelivery, false)) {
+      trackedDelivery.discard();
+    }
+    return trackedDelivery.result();
+  }
+
+  /** @return number of queued deliveries */
+  int size() {
+    return queue.size();
+  }
+
+  /**
+   * Wait for the queued deliveries to be run, until a deadline.
+   *
+   * @param deadlineNanos deadline, as a {@link System#nanoTime()} value
+   * @return true if the mailbox is empty and no delivery is running, false if the deadline expired
+   */
+  boolean awaitIdle(long deadlineNanos) {
+    while (!queue.isEmpty() || draining.get()) {
+      long remaining = deadlineNanos - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.min(remaining, IDLE_POLL_NANOS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Discard all the queued deliveries.
+   *
+   * @return number of deliveries discarded
+   */
+  int close() {
+    int discarded = 0;
+    TrackedDelivery delivery;
+    while ((delivery = queue.poll()) != null) {
+      delivery.discard();
+      discarded++;
+    }
+    return discarded;
+  }
+
+  private boolean enqueue(TrackedDelivery delivery, boolean block) {
+    try {
+      if (block) {
+        queue.put(delivery);
+      } else if (!queue.offer(delivery)) {
+        if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+          log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+              "Mailbox of subscriber %s is full: message rejected", name);
+          return false;
+        }
+        do {
+          TrackedDelivery dropped = queue.poll();
+          if (dropped != null) {
+            dropped.discard();
+            log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+                "Mailbox of subscriber %s is full: oldest message dropped", name);
+          }
+        } while (!queue.offer(delivery));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    scheduleDrain();
+    return true;
+  }
+
+  private void scheduleDrain() {
+    if (draining.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        draining.set(false);
+        log.atWarning().log("Subscriber %s executor is shut down: discarding its mailbox", name);
+        close();
+      }
+    }
+  }
+
+  private void drain() {
+    do {
+      TrackedDelivery delivery;
+      while ((delivery = queue.poll()) != null) {
+        delivery.run();
+      }
+      draining.set(false);
+    } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+  }
+
+  /**
+   * Create the executor running the subscribers' drain tasks: one new virtual thread per task when
+   * the JVM supports them, otherwise a cached pool of platform threads.
+   *
+   * @return executor of the drain tasks, to shut down when the broker is disconnected
+   */
+  static ExecutorService newExecutor() {
+    try {
+      // Virtual threads are looked up reflectively, as the plugin is still built for Java 8
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder =
+          builderClass
+              .getMethod("name", String.class, long.class)
+              .invoke(builder, "broker-subscriber-", 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      Method newThreadPerTaskExecutor =
+          Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      log.atInfo().log("Virtual threads not available: delivering through platform threads");
+      return Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("broker-subscriber-%d").setDaemon(true).build());
+    }
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.flogger.FluentLogger;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel running delayed tasks with the precision of a tick, for any number of tasks at
+ * the cost of a single thread.
+ *
+ * <p>The tasks scheduled are handed to the wheel thread through a lock-free queue, and placed on
+ * the slot of the tick they are due at, together with the number of turns of the wheel still to
+ * wait. At every tick the thread only visits the tasks of the current slot, and hands the due ones
+ * to an executor, so that a slow task never delays the others. The thread sleeps for as long as
+ * there is no task scheduled, and runs as long as the JVM: a wheel is meant to be shared.
+ */
+class TimerWheel {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final long tickNanos;
+  private final ArrayDeque<Timeout>[] slots;
+  private final Executor executor;
+  private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+  private final long startNanos;
+  /** Set whilst the wheel thread sleeps with no task scheduled. */
+  private volatile boolean idle;
+  /** Ticks elapsed, only accessed by the wheel thread. */
+  private long tick;
+  /** Tasks placed on the slots, only accessed by the wheel thread. */
+  private int timeouts;
+
+  /**
+   * @param name name of the wheel thread
+   * @param tickDuration precision of the delays
+   * @param wheelSize number of slots of the wheel
+   * @param executor runs the tasks once due
+   */
+  @SuppressWarnings({"rawtypes", "unchecked"}) // Generic array of the slots
+  TimerWheel(String name, Duration tickDuration, int wheelSize, Executor executor) {
+    checkArgument(!tickDuration.isNegative() && !tickDuration.isZero(), "tick must be positive");
+    checkArgument(wheelSize > 0, "wheelSize must be positive");
+    this.tickNanos = tickDuration.toNanos();
+    this.slots = new ArrayDeque[wheelSize];
+    for (int i = 0; i < wheelSize; i++) {
+      slots[i] = new ArrayDeque<>();
+    }
+    this.executor = executor;
+    this.startNanos = System.nanoTime();
+    this.thread = new Thread(this::run, name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Run a task once a delay expires.
+   *
+   * @param task task to run
+   * @param delay minimum delay before running the task
+   */
+  void schedule(Runnable task, Duration delay) {
+    scheduled.add(new Timeout(task, System.nanoTime() + delay.toNanos()));
+    if (idle) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void run() {
+    while (true) {
+      if (timeouts == 0) {
+        awaitScheduled();
+      }
+      long deadline = startNanos + (tick + 1) * tickNanos;
+      long sleep;
+      while ((sleep = deadline - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(this, sleep);
+      }
+      tick++;
+      transferScheduled();
+      expire(slots[(int) (tick % slots.length)]);
+    }
+  }
+
+  private void awaitScheduled() {
+    idle = true;
+    while (scheduled.isEmpty()) {
+      LockSupport.park(this);
+    }
+    idle = false;
+    tick = Math.max(tick, (System.nanoTime() - startNanos) / tickNanos);
+  }
+
+  private void transferScheduled() {
+    Timeout timeout;
+    while ((timeout = scheduled.poll()) != null) {
+      long dueTick =
+          Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+      timeout.rounds = (dueTick - tick) / slots.length;
+      slots[(int) (dueTick % slots.length)].add(timeout);
+      timeouts++;
+    }
+  }
+
+  private void expire(ArrayDeque<Timeout> slot) {
+    Iterator<Timeout> iterator = slot.iterator();
+    while (iterator.hasNext()) {
+      Timeout timeout = iterator.next();
+      if (timeout.rounds > 0) {
+        timeout.rounds--;
+        continue;
+      }
+      iterator.remove();
+      timeouts--;
+      try {
+        executor.execute(timeout.task);
+      } catch (RejectedExecutionException e) {
+        log.atWarning().withCause(e).log("Unable to run scheduled task %s", timeout.task);
+      }
+    }
+  }
+
+  private static class Timeout {
+    final Runnable task;
+    final long deadlineNanos;
+    long rounds;
+
+    Timeout(Runnable task, long deadlineNanos) {
+      this.task = task;
+      this.deadlineNanos = deadlineNanos;
+    }
+  }
+}
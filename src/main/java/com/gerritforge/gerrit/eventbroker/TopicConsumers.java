@@ -0,0 +1,758 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.MapMaker;
+import com.google.common.flogger.FluentLogger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Consumers registered to a single topic, together with the offsets of the stored messages
+ * successfully delivered to each one of them.
+ *
+ * <p>Consumers registered with a group id share the messages: each message is delivered to only one
+ * member of the group, chosen in turn, whilst every other consumer or group receives its own copy.
+ *
+ * <p>Consumers registered with a {@link MessageFilter} are indexed by the event types they select,
+ * and are never invoked with the messages not matching their filter.
+ *
+ * <p>When created with a mailbox factory, each consumer is given its own {@link SubscriberMailbox}
+ * and the delivery methods return as soon as the messages are queued, reporting whether every
+ * mailbox accepted them.
+ *
+ * <p>When created with {@link DeliveryRetries}, the messages that a consumer fails to process are
+ * given again to that consumer only, later, and then recorded on the dead-letter topic.
+ *
+ * <p>Consumers can be unregistered at any time, without affecting the other consumers nor the
+ * replay store of the topic.
+ */
+class TopicConsumers {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final String topic;
+  private final ReplayStore replayStore;
+  /** Recipients of all the messages of the topic. */
+  private final Set<Recipient> recipients;
+
+  private final ConcurrentMap<String, ConsumerGroup> groups;
+  /** Subscriptions with a filter. */
+  private final Set<Subscription> filtered;
+  /** Subscriptions with a filter selecting any event type. */
+  private final Set<Subscription> filteredAnyType;
+  /** Subscriptions with a filter, by the event types they select. */
+  private final ConcurrentMap<String, Set<Subscription>> filteredByType;
+
+  private final Function<Consumer<EventMessage>, SubscriberMailbox> mailboxFactory;
+  private final DeliveryRetries retries;
+
+  TopicConsumers(String topic, ReplayStore replayStore) {
+    this(topic, replayStore, null, null);
+  }
+
+  /**
+   * @param topic topic name
+   * @param replayStore store of the messages of the topic
+   * @param mailboxFactory creates the mailbox of each consumer, or null to invoke the consumers on
+   *     the delivering thread
+   * @param retries handles the messages that a consumer failed to process, or null to drop them
+   */
+  TopicConsumers(
+      String topic,
+      ReplayStore replayStore,
+      Function<Consumer<EventMessage>, SubscriberMailbox> mailboxFactory,
+      DeliveryRetries retries) {
+    this.topic = topic;
+    this.replayStore = replayStore;
+    this.recipients = new CopyOnWriteArraySet<>();
+    this.groups = new MapMaker().makeMap();
+    this.filtered = new CopyOnWriteArraySet<>();
+    this.filteredAnyType = new CopyOnWriteArraySet<>();
+    this.filteredByType = new MapMaker().makeMap();
+    this.mailboxFactory = mailboxFactory;
+    this.retries = retries;
+  }
+
+  void register(Consumer<EventMessage> consumer) {
+    register(MessageFilter.ALL, consumer);
+  }
+
+  /**
+   * Register a consumer of the messages matching a filter, unless already registered.
+   *
+   * @param filter filter selecting the messages delivered to the consumer
+   * @param consumer consumer to register
+   */
+  void register(MessageFilter filter, Consumer<EventMessage> consumer) {
+    Set<? extends Recipient> registered = filter.isAll() ? recipients : filtered;
+    if (isRegistered(registered, consumer)) {
+      return;
+    }
+    Subscription subscription = new Subscription(consumer, filter);
+    if (filter.isAll()) {
+      if (!recipients.add(subscription)) {
+        subscription.close();
+      }
+      return;
+    }
+
+    if (!filtered.add(subscription)) {
+      subscription.close();
+      return;
+    }
+    if (filter.eventTypes().isEmpty()) {
+      filteredAnyType.add(subscription);
+    }
+    for (String eventType : filter.eventTypes()) {
+      filteredByType.computeIfAbsent(eventType, t -> new CopyOnWriteArraySet<>()).add(subscription);
+    }
+  }
+
+  /**
+   * Register a consumer as a member of a group, sharing the messages of the topic with the other
+   * members.
+   *
+   * @param groupId id of the group
+   * @param consumer consumer to register
+   */
+  void register(String groupId, Consumer<EventMessage> consumer) {
+    ConsumerGroup group = groups.computeIfAbsent(groupId, id -> new ConsumerGroup());
+    synchronized (group) {
+      if (!isRegistered(group.members.get(), consumer)) {
+        group.add(new Subscription(consumer, MessageFilter.ALL, group.processedOffsets));
+      }
+      recipients.add(group);
+    }
+  }
+
+  /**
+   * Check whether a consumer is registered before creating its subscription, as the subscriptions
+   * may create a mailbox.
+   */
+  private static boolean isRegistered(
+      Collection<? extends Recipient> registered, Consumer<EventMessage> consumer) {
+    for (Recipient recipient : registered) {
+      if (recipient instanceof Subscription
+          && ((Subscription) recipient).consumer.equals(consumer)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Unregister a consumer, with or without a filter, discarding the messages still queued on its
+   * mailbox and its pending retries.
+   *
+   * @param consumer consumer to unregister
+   * @return true if the consumer was registered, false otherwise
+   */
+  boolean unregister(Consumer<EventMessage> consumer) {
+    boolean unregistered = false;
+    for (Recipient recipient : recipients) {
+      if (recipient instanceof Subscription
+          && ((Subscription) recipient).consumer.equals(consumer)
+          && recipients.remove(recipient)) {
+        ((Subscription) recipient).close();
+        unregistered = true;
+      }
+    }
+    for (Subscription subscription : filtered) {
+      if (subscription.consumer.equals(consumer) && filtered.remove(subscription)) {
+        filteredAnyType.remove(subscription);
+        for (String eventType : subscription.filter.eventTypes()) {
+          filteredByType.getOrDefault(eventType, Collections.emptySet()).remove(subscription);
+        }
+        subscription.close();
+        unregistered = true;
+      }
+    }
+    return unregistered;
+  }
+
+  /**
+   * Unregister a member of a group, sharing the messages of the topic between the remaining
+   * members. The offset delivered to the group is kept for when a member registers again.
+   *
+   * @param groupId id of the group
+   * @param consumer consumer to unregister
+   * @return true if the consumer was a member of the group, false otherwise
+   */
+  boolean unregister(String groupId, Consumer<EventMessage> consumer) {
+    ConsumerGroup group = groups.get(groupId);
+    if (group == null) {
+      return false;
+    }
+    Subscription member;
+    synchronized (group) {
+      member = group.remove(consumer);
+      if (group.members.get().isEmpty()) {
+        recipients.remove(group);
+      }
+    }
+    if (member == null) {
+      return false;
+    }
+    member.close();
+    return true;
+  }
+
+  /**
+   * Record a message in the topic replay store and deliver it to all the consumers of the topic.
+   *
+   * @param message message to deliver
+   * @return true if all consumers processed the message successfully, false otherwise
+   */
+  boolean deliver(EventMessage message) {
+    long offset = replayStore.append(message);
+    boolean delivered = true;
+    for (Recipient recipient : recipients(message)) {
+      delivered &= recipient.deliver(message, offset);
+    }
+    return delivered;
+  }
+
+  /**
+   * Record a message in the topic replay store and queue it on the mailbox of all the consumers of
+   * the topic, without ever blocking. Without mailboxes, the message is delivered straight away.
+   *
+   * @param message message to deliver
+   * @return {@link SendResult#REJECTED} if any mailbox was full, otherwise {@link
+   *     SendResult#DELIVERED} or {@link SendResult#FAILED} once all the consumers processed it
+   */
+  CompletableFuture<SendResult> deliverAsync(EventMessage message) {
+    if (mailboxFactory == null) {
+      return CompletableFuture.completedFuture(
+          deliver(message) ? SendResult.DELIVERED : SendResult.FAILED);
+    }
+
+    long offset = replayStore.append(message);
+    Collection<? extends Recipient> messageRecipients = recipients(message);
+    List<CompletableFuture<SendResult>> results = new ArrayList<>(messageRecipients.size());
+    for (Recipient recipient : messageRecipients) {
+      results.add(recipient.offer(message, offset));
+    }
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+        .thenApply(
+            done -> {
+              SendResult result = SendResult.DELIVERED;
+              for (CompletableFuture<SendResult> subscriberResult : results) {
+                SendResult outcome = subscriberResult.join();
+                if (outcome == SendResult.REJECTED) {
+                  return outcome;
+                }
+                if (outcome == SendResult.FAILED) {
+                  result = outcome;
+                }
+              }
+              return result;
+            });
+  }
+
+  /**
+   * Deliver a message, already recorded in the topic replay store, to all the consumers of the
+   * topic.
+   *
+   * @param message message to deliver
+   * @return true if all consumers processed the message successfully, false otherwise
+   */
+  boolean redeliver(EventMessage message) {
+    boolean delivered = true;
+    for (Recipient recipient : recipients(message)) {
+      delivered &= recipient.deliver(message, ReplayStore.NOT_STORED);
+    }
+    return delivered;
+  }
+
+  /**
+   * Deliver a stored message to the consumers of the topic that have not yet successfully processed
+   * it: those that have not reached its offset yet, and those that failed to process it or whose
+   * mailbox rejected it. A group has processed the messages processed by any of its members.
+   *
+   * @param message message to deliver
+   * @param offset offset of the message in the topic replay store
+   */
+  void catchUp(EventMessage message, long offset) {
+    for (Recipient recipient : recipients(message)) {
+      if (!recipient.processedOffsets().contains(offset)) {
+        recipient.deliver(message, offset);
+      }
+    }
+  }
+
+  /**
+   * Deliver a batch of messages to all the consumers of the topic, iterating the consumers only
+   * once. {@link BatchConsumer}s receive the whole batch in a single call. The whole batch goes to
+   * a single member of each group.
+   *
+   * @param messages messages to deliver
+   * @return for each message, true if all consumers processed it successfully, false otherwise
+   */
+  boolean[] deliverBatch(List<EventMessage> messages) {
+    long[] offsets = new long[messages.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = replayStore.append(messages.get(i));
+    }
+
+    boolean[] delivered = new boolean[messages.size()];
+    Arrays.fill(delivered, true);
+    for (Recipient recipient : recipients) {
+      recipient.deliverBatch(messages, offsets, delivered);
+    }
+    for (Subscription subscription : filtered) {
+      deliverFilteredBatch(subscription, messages, offsets, delivered);
+    }
+    return delivered;
+  }
+
+  private static void deliverFilteredBatch(
+      Subscription subscription, List<EventMessage> messages, long[] offsets, boolean[] delivered) {
+    List<Integer> indexes = new ArrayList<>();
+    for (int i = 0; i < offsets.length; i++) {
+      if (subscription.filter.matches(messages.get(i))) {
+        indexes.add(i);
+      }
+    }
+    if (indexes.isEmpty()) {
+      return;
+    }
+
+    List<EventMessage> matching = new ArrayList<>(indexes.size());
+    long[] matchingOffsets = new long[indexes.size()];
+    boolean[] matchingDelivered = new boolean[indexes.size()];
+    Arrays.fill(matchingDelivered, true);
+    for (int i = 0; i < matchingOffsets.length; i++) {
+      matching.add(messages.get(indexes.get(i)));
+      matchingOffsets[i] = offsets[indexes.get(i)];
+    }
+    subscription.deliverBatch(matching, matchingOffsets, matchingDelivered);
+    for (int i = 0; i < matchingDelivered.length; i++) {
+      delivered[indexes.get(i)] &= matchingDelivered[i];
+    }
+  }
+
+  /**
+   * @param message message to deliver
+   * @return the recipients of the message: those of all the messages of the topic, and the
+   *     subscriptions whose filter matches the message
+   */
+  private Collection<? extends Recipient> recipients(EventMessage message) {
+    if (filtered.isEmpty()) {
+      return recipients;
+    }
+
+    Set<Subscription> typeSubscriptions =
+        filteredByType.getOrDefault(message.getEventType(), Collections.emptySet());
+    if (typeSubscriptions.isEmpty() && filteredAnyType.isEmpty()) {
+      return recipients;
+    }
+    List<Recipient> messageRecipients = new ArrayList<>(recipients);
+    for (Subscription subscription : typeSubscriptions) {
+      if (subscription.filter.matches(message)) {
+        messageRecipients.add(subscription);
+      }
+    }
+    for (Subscription subscription : filteredAnyType) {
+      if (subscription.filter.matches(message)) {
+        messageRecipients.add(subscription);
+      }
+    }
+    return messageRecipients;
+  }
+
+  /** @return number of deliveries queued on the mailboxes of the consumers */
+  long queuedDeliveries() {
+    if (mailboxFactory == null) {
+      return 0;
+    }
+    long queued = 0;
+    for (Recipient recipient : recipients) {
+      for (Subscription subscription : recipient.subscriptions()) {
+        queued += subscription.mailbox.size();
+      }
+    }
+    for (Subscription subscription : filtered) {
+      queued += subscription.mailbox.size();
+    }
+    return queued;
+  }
+
+  /**
+   * Let the consumers process the messages queued on their mailboxes until a deadline, then discard
+   * the messages still queued.
+   *
+   * @param deadlineNanos deadline, as a {@link System#nanoTime()} value
+   * @return number of queued deliveries to the consumers processed and discarded
+   */
+  DrainResult drain(long deadlineNanos) {
+    if (mailboxFactory == null) {
+      return DrainResult.EMPTY;
+    }
+    List<SubscriberMailbox> mailboxes = new ArrayList<>();
+    for (Recipient recipient : recipients) {
+      recipient.subscriptions().forEach(subscription -> mailboxes.add(subscription.mailbox));
+    }
+    filtered.forEach(subscription -> mailboxes.add(subscription.mailbox));
+
+    long pending = 0;
+    for (SubscriberMailbox mailbox : mailboxes) {
+      pending += mailbox.size();
+    }
+    for (SubscriberMailbox mailbox : mailboxes) {
+      mailbox.awaitIdle(deadlineNanos);
+    }
+    long dropped = 0;
+    for (SubscriberMailbox mailbox : mailboxes) {
+      dropped += mailbox.close();
+    }
+    return DrainResult.create(Math.max(0, pending - dropped), dropped);
+  }
+
+  /** Consumer, or group of consumers, receiving a copy of each message of the topic. */
+  private interface Recipient {
+
+    /**
+     * Deliver a message, or queue it on the mailbox when there is one.
+     *
+     * @return true if the message was processed successfully or queued, false otherwise
+     */
+    boolean deliver(EventMessage message, long offset);
+
+    /** Queue a message on the mailbox without blocking. */
+    CompletableFuture<SendResult> offer(EventMessage message, long offset);
+
+    /** Deliver a batch of messages, clearing the flags of the messages not delivered. */
+    void deliverBatch(List<EventMessage> messages, long[] offsets, boolean[] delivered);
+
+    ProcessedOffsets processedOffsets();
+
+    List<Subscription> subscriptions();
+  }
+
+  private class Subscription implements Recipient {
+    final Consumer<EventMessage> consumer;
+    final MessageFilter filter;
+    final SubscriberMailbox mailbox;
+    /** Offsets processed by the consumer, shared with the other members of its group. */
+    final ProcessedOffsets processedOffsets;
+    /** Set once unregistered, skipping the deliveries still in flight and the pending retries. */
+    volatile boolean closed;
+
+    Subscription(Consumer<EventMessage> consumer, MessageFilter filter) {
+      this(consumer, filter, new ProcessedOffsets());
+    }
+
+    Subscription(
+        Consumer<EventMessage> consumer, MessageFilter filter, ProcessedOffsets processedOffsets) {
+      this.consumer = consumer;
+      this.filter = filter;
+      this.mailbox = mailboxFactory == null ? null : mailboxFactory.apply(consumer);
+      this.processedOffsets = processedOffsets;
+    }
+
+    @Override
+    public boolean deliver(EventMessage message, long offset) {
+      if (mailbox == null) {
+        return process(message, offset, 1);
+      }
+      if (!mailbox.put(() -> process(message, offset, 1))) {
+        processedOffsets.missed(offset);
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public CompletableFuture<SendResult> offer(EventMessage message, long offset) {
+      CompletableFuture<SendResult> result = mailbox.offer(() -> process(message, offset, 1));
+      if (result.getNow(null) == SendResult.REJECTED) {
+        processedOffsets.missed(offset);
+      }
+      return result;
+    }
+
+    @Override
+    public void deliverBatch(List<EventMessage> messages, long[] offsets, boolean[] delivered) {
+      if (consumer instanceof BatchConsumer) {
+        boolean batchDelivered;
+        if (mailbox == null) {
+          batchDelivered = processBatch(messages, offsets, 1);
+        } else {
+          batchDelivered = mailbox.put(() -> processBatch(messages, offsets, 1));
+          if (!batchDelivered) {
+            processedOffsets.missed(offsets);
+          }
+        }
+        if (!batchDelivered) {
+          Arrays.fill(delivered, false);
+        }
+        return;
+      }
+
+      for (int i = 0; i < delivered.length; i++) {
+        delivered[i] &= deliver(messages.get(i), offsets[i]);
+      }
+    }
+
+    @Override
+    public ProcessedOffsets processedOffsets() {
+      return processedOffsets;
+    }
+
+    @Override
+    public List<Subscription> subscriptions() {
+      return ImmutableList.of(this);
+    }
+
+    boolean process(EventMessage message, long offset, int attempt) {
+      if (closed) {
+        return true;
+      }
+      try {
+        consumer.accept(message);
+        processedOffsets.processed(offset);
+        return true;
+      } catch (RuntimeException e) {
+        processedOffsets.missed(offset);
+        log.atSevere().withCause(e).log(
+            "Consumer of topic %s failed to process %s (attempt %d)", topic, message, attempt);
+        return failed(
+            ImmutableList.of(message),
+            attempt,
+            e,
+            () ->
+                retry(
+                    next -> () -> process(message, offset, next),
+                    ImmutableList.of(message),
+                    attempt + 1));
+      }
+    }
+
+    boolean processBatch(List<EventMessage> messages, long[] offsets, int attempt) {
+      if (closed) {
+        return true;
+      }
+      try {
+        ((BatchConsumer) consumer).acceptBatch(messages);
+        processedOffsets.processed(offsets);
+        return true;
+      } catch (RuntimeException e) {
+        processedOffsets.missed(offsets);
+        log.atSevere().withCause(e).log(
+            "Consumer of topic %s failed to process a batch of %d messages (attempt %d)",
+            topic, messages.size(), attempt);
+        return failed(
+            messages,
+            attempt,
+            e,
+            () ->
+                retry(next -> () -> processBatch(messages, offsets, next), messages, attempt + 1));
+      }
+    }
+
+    private boolean failed(
+        List<EventMessage> messages, int attempt, RuntimeException cause, Runnable retry) {
+      return retries != null && retries.failed(topic, consumer, messages, attempt, cause, retry);
+    }
+
+    /**
+     * Run an attempt of a delivery, queued on the mailbox without blocking when there is one: the
+     * attempt counts as failed when the mailbox is full.
+     */
+    private void retry(
+        IntFunction<BooleanSupplier> delivery, List<EventMessage> messages, int attempt) {
+      BooleanSupplier attemptDelivery = delivery.apply(attempt);
+      if (mailbox == null) {
+        attemptDelivery.getAsBoolean();
+      } else if (mailbox.offer(attemptDelivery).getNow(null) == SendResult.REJECTED) {
+        failed(
+            messages,
+            attempt,
+            new RejectedExecutionException("Mailbox full"),
+            () -> retry(delivery, messages, attempt + 1));
+      }
+    }
+
+    void close() {
+      closed = true;
+      if (mailbox != null) {
+        int discarded = mailbox.close();
+        if (discarded > 0) {
+          log.atInfo().log(
+              "Unsubscribed consumer of topic %s: %d queued messages discarded", topic, discarded);
+        }
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Subscription && ((Subscription) o).consumer.equals(consumer);
+    }
+
+    @Override
+    public int hashCode() {
+      return consumer.hashCode();
+    }
+  }
+
+  /**
+   * Members of a consumer group, receiving the messages in turn. The members are added and removed
+   * whilst holding the lock of the group.
+   */
+  private class ConsumerGroup implements Recipient {
+    /** Copy-on-write list of members, indexed by the round-robin counter. */
+    final AtomicReference<ImmutableList<Subscription>> members;
+
+    final AtomicInteger next;
+    /** Offsets processed by any member, kept when the members are removed. */
+    final ProcessedOffsets processedOffsets;
+
+    ConsumerGroup() {
+      this.members = new AtomicReference<>(ImmutableList.of());
+      this.next = new AtomicInteger();
+      this.processedOffsets = new ProcessedOffsets();
+    }
+
+    void add(Subscription member) {
+      members.updateAndGet(
+          current ->
+              current.contains(member)
+                  ? current
+                  : ImmutableList.<Subscription>builder().addAll(current).add(member).build());
+    }
+
+    /** @return the member removed, or null if the consumer was not a member */
+    Subscription remove(Consumer<EventMessage> consumer) {
+      ImmutableList<Subscription> current = members.get();
+      Subscription removed =
+          Iterables.find(current, member -> member.consumer.equals(consumer), null);
+      if (removed != null) {
+        members.set(
+            current.stream()
+                .filter(member -> member != removed)
+                .collect(ImmutableList.toImmutableList()));
+      }
+      return removed;
+    }
+
+    /** @return the next member, or null when the last one was removed whilst delivering */
+    Subscription nextMember() {
+      ImmutableList<Subscription> current = members.get();
+      return current.isEmpty()
+          ? null
+          : current.get(Math.floorMod(next.getAndIncrement(), current.size()));
+    }
+
+    @Override
+    public boolean deliver(EventMessage message, long offset) {
+      Subscription member = nextMember();
+      return member == null || member.deliver(message, offset);
+    }
+
+    @Override
+    public CompletableFuture<SendResult> offer(EventMessage message, long offset) {
+      Subscription member = nextMember();
+      return member == null
+          ? CompletableFuture.completedFuture(SendResult.DELIVERED)
+          : member.offer(message, offset);
+    }
+
+    @Override
+    public void deliverBatch(List<EventMessage> messages, long[] offsets, boolean[] delivered) {
+      Subscription member = nextMember();
+      if (member != null) {
+        member.deliverBatch(messages, offsets, delivered);
+      }
+    }
+
+    @Override
+    public ProcessedOffsets processedOffsets() {
+      return processedOffsets;
+    }
+
+    @Override
+    public List<Subscription> subscriptions() {
+      return members.get();
+    }
+  }
+
+  /**
+   * Offsets of the stored messages processed by a recipient: the highest offset processed, and the
+   * lower offsets that failed or were rejected, so that catching up gives them back. The missed
+   * offsets are removed once processed, and at most {@link #MAX_MISSED} are kept, forgetting the
+   * oldest ones.
+   */
+  static class ProcessedOffsets {
+    static final int MAX_MISSED = 10000;
+
+    private final NavigableSet<Long> missed = new TreeSet<>();
+    private long highest = ReplayStore.NOT_STORED;
+
+    /** @return true if the message at the offset was processed */
+    synchronized boolean contains(long offset) {
+      return offset <= highest && !missed.contains(offset);
+    }
+
+    synchronized void processed(long offset) {
+      if (offset == ReplayStore.NOT_STORED) {
+        return;
+      }
+      if (!missed.isEmpty()) {
+        missed.remove(offset);
+      }
+      highest = Math.max(highest, offset);
+    }
+
+    void processed(long[] offsets) {
+      for (long offset : offsets) {
+        processed(offset);
+      }
+    }
+
+    synchronized void missed(long offset) {
+      if (offset == ReplayStore.NOT_STORED || !missed.add(offset) || missed.size() <= MAX_MISSED) {
+        return;
+      }
+      log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "More than %d messages missed by a consumer: forgetting the oldest", MAX_MISSED);
+      missed.pollFirst();
+    }
+
+    void missed(long[] offsets) {
+      for (long offset : offsets) {
+        missed(offset);
+      }
+    }
+  }
+}
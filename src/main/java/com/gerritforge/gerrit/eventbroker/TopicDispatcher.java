@@ -0,0 +1,286 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Bounded queues of deliveries for a single topic, drained by a dedicated pool of threads.
+ *
+ * <p>When the topic has more than one partition, each partition has its own queue drained by its
+ * own thread, and the deliveries are assigned to the partitions by the {@link EventPartitioner}.
+ */
+class TopicDispatcher {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final String topic;
+  private final OverflowPolicy overflowPolicy;
+  private final EventPartitioner partitioner;
+  private final ThreadPoolExecutor[] executors;
+  /** Number of messages whose delivery is queued, across all partitions. */
+  private final AtomicLong queuedMessages = new AtomicLong();
+
+  TopicDispatcher(String topic, InProcessBrokerConfig config) {
+    this.topic = topic;
+    this.overflowPolicy = config.overflowPolicy();
+    this.partitioner = new EventPartitioner(config.partitionKey(), config.partitions());
+    this.executors = new ThreadPoolExecutor[config.partitions()];
+    // The topic is part of the thread name format: escape its format specifiers
+    String threadNameTopic = topic.replace("%", "%%");
+    for (int partition = 0; partition < executors.length; partition++) {
+      executors[partition] =
+          new ThreadPoolExecutor(
+              config.dispatchThreads(),
+              config.dispatchThreads(),
+              0L,
+              TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(config.dispatchQueueCapacity()),
+              new ThreadFactoryBuilder()
+                  .setNameFormat(
+                      executors.length == 1
+                          ? "broker-" + threadNameTopic + "-%d"
+                          : "broker-" + threadNameTopic + "-" + partition + "-%d")
+                  .setDaemon(true)
+                  .build(),
+              overflowHandler(config.overflowPolicy()));
+      executors[partition].prestartAllCoreThreads();
+    }
+  }
+
+  /** @return number of messages whose delivery is queued, across all partitions */
+  long queuedMessages() {
+    return Math.max(0, queuedMessages.get());
+  }
+
+  /**
+   * Queue the delivery of a message for execution, on the partition of the message.
+   *
+   * @param message message delivered
+   * @param delivery task delivering the message to the topic subscribers
+   * @return true if the delivery was queued, false if it was rejected
+   */
+  boolean dispatch(EventMessage message, Runnable delivery) {
+    return dispatch(executors[partitioner.partition(message)], delivery, 1);
+  }
+
+  /**
+   * Queue the delivery of a batch of messages for execution, splitting it by partition. The
+   * messages of each partition are delivered as a single batch, in their original order.
+   *
+   * @param messages messages delivered
+   * @param delivery creates the task delivering a batch of messages to the topic subscribers
+   * @return for each message, true if its delivery was queued, false if it was rejected
+   */
+  boolean[] dispatchBatch(
+      List<EventMessage> messages, Function<List<EventMessage>, Runnable> delivery) {
+    boolean[] queued = new boolean[messages.size()];
+    if (executors.length == 1) {
+      Arrays.fill(queued, dispatch(executors[0], delivery.apply(messages), messages.size()));
+      return queued;
+    }
+
+    List<List<Integer>> partitionIndexes = new ArrayList<>(executors.length);
+    for (int partition = 0; partition < executors.length; partition++) {
+      partitionIndexes.add(new ArrayList<>());
+    }
+    for (int i = 0; i < queued.length; i++) {
+      partitionIndexes.get(partitioner.partition(messages.get(i))).add(i);
+    }
+    for (int partition = 0; partition < executors.length; partition++) {
+      List<Integer> indexes = partitionIndexes.get(partition);
+      if (indexes.isEmpty()) {
+        continue;
+      }
+      List<EventMessage> partitionMessages = new ArrayList<>(indexes.size());
+      indexes.forEach(i -> partitionMessages.add(messages.get(i)));
+      boolean partitionQueued =
+          dispatch(executors[partition], delivery.apply(partitionMessages), indexes.size());
+      indexes.forEach(i -> queued[i] = partitionQueued);
+    }
+    return queued;
+  }
+
+  /**
+   * Queue the delivery of a message for execution, on the partition of the message, without ever
+   * blocking the caller, whatever the overflow policy. When the queue is full, the {@link
+   * OverflowPolicy#DROP_OLDEST} policy discards the oldest queued delivery, whilst the other
+   * policies reject the new one.
+   *
+   * @param message message delivered
+   * @param delivery task delivering the message to the topic subscribers
+   * @return true if the delivery was queued, false if it was rejected
+   */
+  boolean tryDispatch(EventMessage message, Runnable delivery) {
+    ThreadPoolExecutor executor = executors[partitioner.partition(message)];
+    if (overflowPolicy != OverflowPolicy.BLOCK) {
+      return dispatch(executor, delivery, 1);
+    }
+    if (executor.isShutdown() || !executor.getQueue().offer(new QueuedDelivery(delivery, 1))) {
+      log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Dispatch queue of topic %s is full: message rejected", topic);
+      return false;
+    }
+    queuedMessages.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Stop accepting deliveries and let the dispatch threads run the queued ones until a deadline,
+   * then stop them and discard the deliveries still queued.
+   *
+   * @param deadlineNanos deadline, as a {@link System#nanoTime()} value
+   * @return number of queued messages delivered and discarded
+   */
+  DrainResult drain(long deadlineNanos) {
+    long pending = Math.max(0, queuedMessages.get());
+    for (ThreadPoolExecutor executor : executors) {
+      executor.shutdown();
+    }
+    try {
+      for (ThreadPoolExecutor executor : executors) {
+        executor.awaitTermination(
+            Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    long dropped = 0;
+    for (ThreadPoolExecutor executor : executors) {
+      for (Runnable delivery : executor.shutdownNow()) {
+        dropped += ((QueuedDelivery) delivery).messages;
+        discard(delivery);
+      }
+    }
+    return DrainResult.create(Math.max(0, pending - dropped), dropped);
+  }
+
+  private boolean dispatch(ThreadPoolExecutor executor, Runnable delivery, int messages) {
+    try {
+      executor.execute(new QueuedDelivery(delivery, messages));
+      queuedMessages.addAndGet(messages);
+      return true;
+    } catch (RejectedExecutionException e) {
+      log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Dispatch queue of topic %s is full: message rejected", topic);
+      return false;
+    }
+  }
+
+  private void discard(Runnable delivery) {
+    QueuedDelivery queuedDelivery = (QueuedDelivery) delivery;
+    queuedMessages.addAndGet(-queuedDelivery.messages);
+    if (queuedDelivery.delivery instanceof TrackedDelivery) {
+      ((TrackedDelivery) queuedDelivery.delivery).discard();
+    }
+  }
+
+  private RejectedExecutionHandler overflowHandler(OverflowPolicy policy) {
+    switch (policy) {
+      case BLOCK:
+        return (r, e) -> {
+          if (e.isShutdown()) {
+            throw new RejectedExecutionException("Topic " + topic + " dispatcher is shut down");
+          }
+          try {
+            e.getQueue().put(r);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(ie);
+          }
+        };
+      case DROP_OLDEST:
+        return (r, e) -> {
+          if (e.isShutdown()) {
+            throw new RejectedExecutionException("Topic " + topic + " dispatcher is shut down");
+          }
+          Runnable dropped = e.getQueue().poll();
+          if (dropped != null) {
+            discard(dropped);
+            log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+                "Dispatch queue of topic %s is full: oldest message dropped", topic);
+          }
+          e.execute(r);
+        };
+      case REJECT:
+      default:
+        return new ThreadPoolExecutor.AbortPolicy();
+    }
+  }
+
+  /** Delivery of one or more messages, counted whilst queued. */
+  private class QueuedDelivery implements Runnable {
+    final Runnable delivery;
+    final int messages;
+
+    QueuedDelivery(Runnable delivery, int messages) {
+      this.delivery = delivery;
+      this.messages = messages;
+    }
+
+    @Override
+    public void run() {
+      queuedMessages.addAndGet(-messages);
+      delivery.run();
+    }
+  }
+
+  /** Delivery whose outcome is reported to the producer, also when it is discarded unprocessed. */
+  static class TrackedDelivery implements Runnable {
+    private final BooleanSupplier delivery;
+    private final CompletableFuture<SendResult> result;
+
+    /**
+     * @param delivery task delivering a message to the topic subscribers, returning true if they
+     *     all processed it successfully
+     */
+    TrackedDelivery(BooleanSupplier delivery) {
+      this.delivery = delivery;
+      this.result = new CompletableFuture<>();
+    }
+
+    @Override
+    public void run() {
+      try {
+        result.complete(delivery.getAsBoolean() ? SendResult.DELIVERED : SendResult.FAILED);
+      } catch (RuntimeException e) {
+        log.atSevere().withCause(e).log("Delivery failed");
+        result.complete(SendResult.FAILED);
+      }
+    }
+
+    void discard() {
+      result.complete(SendResult.REJECTED);
+    }
+
+    CompletableFuture<SendResult> result() {
+      return result;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Routes the topics to the subscriptions of topic patterns, made of segments separated by dots
+ * where {@code *} matches exactly one segment and {@code #} matches zero or more segments: {@code
+ * gerrit.index.*} matches {@code gerrit.index.change} and {@code gerrit.#} matches {@code gerrit}
+ * and any topic starting with {@code gerrit.}.
+ *
+ * <p>The patterns are compiled into a trie of their segments, walked once per topic: the
+ * subscriptions matching each topic are then cached until the patterns change, whilst the topics
+ * matching no pattern are not cached.
+ */
+class TopicRouter {
+  static final String SINGLE_SEGMENT = "*";
+  static final String ANY_SEGMENTS = "#";
+
+  private static final Splitter SEGMENTS = Splitter.on('.');
+
+  private final Node root = new Node();
+  /** Subscriptions matching each topic routed since the patterns last changed. */
+  private final ConcurrentMap<String, ImmutableList<PatternSubscription>> resolved =
+      new MapMaker().makeMap();
+
+  /**
+   * @param topic topic name or pattern
+   * @return true if the topic is a pattern, holding a wildcard segment
+   */
+  static boolean isPattern(String topic) {
+    for (String segment : SEGMENTS.split(topic)) {
+      if (segment.equals(SINGLE_SEGMENT) || segment.equals(ANY_SEGMENTS)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Add the subscription of a pattern, unless the subscriber already has one.
+   *
+   * @param subscriber subscriber, whose topic is the pattern
+   * @param register registers the subscriber to the consumers of a topic matching the pattern
+   * @return the subscription
+   */
+  synchronized PatternSubscription add(
+      TopicSubscriber subscriber, Consumer<TopicConsumers> register) {
+    Node node = root;
+    for (String segment : SEGMENTS.split(subscriber.topic())) {
+      node = node.children.computeIfAbsent(segment, s -> new Node());
+    }
+    PatternSubscription subscription = node.subscriptions.get(subscriber);
+    if (subscription == null) {
+      subscription = new PatternSubscription(subscriber, register);
+      node.subscriptions.put(subscriber, subscription);
+      resolved.clear();
+    }
+    return subscription;
+  }
+
+  /**
+   * Remove the subscription of a pattern, leaving the trie nodes in place for when it is added
+   * again.
+   *
+   * @param subscriber subscriber, whose topic is the pattern
+   * @return the subscription removed, or null if the subscriber had none
+   */
+  synchronized PatternSubscription remove(TopicSubscriber subscriber) {
+    Node node = root;
+    for (String segment : SEGMENTS.split(subscriber.topic())) {
+      node = node.children.get(segment);
+      if (node == null) {
+        return null;
+      }
+    }
+    PatternSubscription subscription = node.subscriptions.remove(subscriber);
+    if (subscription != null) {
+      resolved.clear();
+    }
+    return subscription;
+  }
+
+  /** Remove all the subscriptions. */
+  synchronized void clear() {
+    root.children.clear();
+    root.subscriptions.clear();
+    resolved.clear();
+  }
+
+  /**
+   * @param topic topic name
+   * @return the subscriptions of the patterns matching the topic
+   */
+  ImmutableList<PatternSubscription> route(String topic) {
+    ImmutableList<PatternSubscription> subscriptions = resolved.get(topic);
+    if (subscriptions == null) {
+      subscriptions = resolve(topic);
+    }
+    return subscriptions;
+  }
+
+  /** @return number of topics whose route is cached */
+  int cachedRoutes() {
+    return resolved.size();
+  }
+
+  /**
+   * Walk the trie for the subscriptions matching a topic, caching them only when there are some:
+   * the topics matching no pattern are never cached, bounding the cache to the topics routed to a
+   * subscription.
+   */
+  private synchronized ImmutableList<PatternSubscription> resolve(String topic) {
+    ImmutableList<PatternSubscription> subscriptions = resolved.get(topic);
+    if (subscriptions != null) {
+      return subscriptions;
+    }
+    Set<PatternSubscription> matching = new LinkedHashSet<>();
+    collect(root, SEGMENTS.splitToList(topic), 0, matching);
+    subscriptions = ImmutableList.copyOf(matching);
+    if (!subscriptions.isEmpty()) {
+      resolved.put(topic, subscriptions);
+    }
+    return subscriptions;
+  }
+
+  private static void collect(
+      Node node, List<String> segments, int index, Set<PatternSubscription> matching) {
+    Node anySegments = node.children.get(ANY_SEGMENTS);
+    if (anySegments != null) {
+      for (int next = index; next <= segments.size(); next++) {
+        collect(anySegments, segments, next, matching);
+      }
+    }
+    if (index == segments.size()) {
+      matching.addAll(node.subscriptions.values());
+      return;
+    }
+    Node exact = node.children.get(segments.get(index));
+    if (exact != null) {
+      collect(exact, segments, index + 1, matching);
+    }
+    Node singleSegment = node.children.get(SINGLE_SEGMENT);
+    if (singleSegment != null) {
+      collect(singleSegment, segments, index + 1, matching);
+    }
+  }
+
+  /** Subscription of a topic pattern, registered to the consumers of each topic matching it. */
+  static class PatternSubscription {
+    final TopicSubscriber subscriber;
+    final String pattern;
+    private final Consumer<TopicConsumers> register;
+
+    PatternSubscription(TopicSubscriber subscriber, Consumer<TopicConsumers> register) {
+      this.subscriber = subscriber;
+      this.pattern = subscriber.topic();
+      this.register = register;
+    }
+
+    void registerTo(TopicConsumers topicConsumers) {
+      register.accept(topicConsumers);
+    }
+  }
+
+  /** Node of the trie, for one segment of the patterns. */
+  private static class Node {
+    final Map<String, Node> children = new HashMap<>();
+    final Map<TopicSubscriber, PatternSubscription> subscriptions = new LinkedHashMap<>();
+  }
+}
@@ -15,15 +15,24 @@
 package com.gerritforge.gerrit.eventbroker;
 
 import com.google.auto.value.AutoValue;
+import java.util.Optional;
 import java.util.function.Consumer;
 
 @AutoValue
 public abstract class TopicSubscriber {
   public static TopicSubscriber topicSubscriber(String topic, Consumer<EventMessage> consumer) {
-    return new AutoValue_TopicSubscriber(topic, consumer);
+    return new AutoValue_TopicSubscriber(topic, consumer, Optional.empty());
+  }
+
+  public static TopicSubscriber topicSubscriber(
+      String topic, String groupId, Consumer<EventMessage> consumer) {
+    return new AutoValue_TopicSubscriber(topic, consumer, Optional.of(groupId));
   }
 
   public abstract String topic();
 
   public abstract Consumer<EventMessage> consumer();
+
+  /** Consumer group sharing the messages of the topic, if the consumer is a member of one. */
+  public abstract Optional<String> groupId();
 }
@@ -0,0 +1,43 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.Transport;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+/** Provides the {@link BrokerApi} of the configured {@link Transport}. */
+class TransportBrokerApiProvider implements Provider<BrokerApi> {
+  private final InProcessBrokerConfig config;
+  private final Provider<InProcessBrokerApi> inProcessBrokerApi;
+  private final Provider<SocketBrokerApi> socketBrokerApi;
+
+  @Inject
+  TransportBrokerApiProvider(
+      InProcessBrokerConfig config,
+      Provider<InProcessBrokerApi> inProcessBrokerApi,
+      Provider<SocketBrokerApi> socketBrokerApi) {
+    this.config = config;
+    this.inProcessBrokerApi = inProcessBrokerApi;
+    this.socketBrokerApi = socketBrokerApi;
+  }
+
+  @Override
+  public BrokerApi get() {
+    return config.transport() == Transport.SOCKET
+        ? socketBrokerApi.get()
+        : inProcessBrokerApi.get();
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventTypes;
+import com.google.gerrit.server.events.PatchSetCreatedEvent;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.Test;
+
+public class BinaryEventMessageCodecTest {
+  private static final String TEST_EVENT_TYPE = "binary-codec-test";
+
+  static {
+    EventTypes.register(TEST_EVENT_TYPE, TestEvent.class);
+  }
+
+  private final BinaryEventMessageCodec codec = new BinaryEventMessageCodec();
+  private final JsonEventMessageCodec jsonCodec = new JsonEventMessageCodec();
+
+  @Test
+  public void shouldRoundTripChangeEvent() {
+    Change change =
+        new Change(
+            Change.key("I0123456789abcdef0123456789abcdef01234567"),
+            Change.id(1),
+            Account.id(1000000),
+            BranchNameKey.create(Project.nameKey("some/project"), "master"),
+            new Timestamp(System.currentTimeMillis()));
+    EventMessage message = newMessage(new PatchSetCreatedEvent(change));
+
+    EventMessage decoded = codec.decode(codec.encode(message));
+
+    assertThat(decoded.getHeader().eventId).isEqualTo(message.getHeader().eventId);
+    assertThat(decoded.getHeader().sourceInstanceId)
+        .isEqualTo(message.getHeader().sourceInstanceId);
+    PatchSetCreatedEvent event = (PatchSetCreatedEvent) decoded.getEvent();
+    assertThat(event.getChangeKey()).isEqualTo(change.getKey());
+    assertThat(event.getProjectNameKey()).isEqualTo(change.getProject());
+  }
+
+  @Test
+  public void shouldBeSmallerThanJson() {
+    EventMessage message = newMessage(newProjectCreatedEvent());
+
+    assertThat(codec.encode(message).length).isLessThan(jsonCodec.encode(message).length);
+  }
+
+  @Test
+  public void shouldRoundTripEventTypeNotInterned() {
+    TestEvent testEvent = new TestEvent();
+    testEvent.value = "some value";
+    EventMessage message = newMessage(testEvent);
+
+    TestEvent decoded = (TestEvent) codec.decode(codec.encode(message)).getEvent();
+
+    assertThat(decoded.getType()).isEqualTo(TEST_EVENT_TYPE);
+    assertThat(decoded.value).isEqualTo("some value");
+  }
+
+  @Test
+  public void shouldEncodeIntoBufferAtItsPosition() {
+    EventMessage message = newMessage(newProjectCreatedEvent());
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    buffer.putInt(42);
+
+    codec.encode(message, buffer);
+    buffer.flip();
+
+    assertThat(buffer.getInt()).isEqualTo(42);
+    assertThat(codec.decode(buffer).getHeader().eventId).isEqualTo(message.getHeader().eventId);
+    assertThat(buffer.hasRemaining()).isFalse();
+  }
+
+  @Test
+  public void shouldLeaveBufferUntouchedWhenTooSmall() {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+
+    try {
+      codec.encode(newMessage(newProjectCreatedEvent()), buffer);
+      fail("Expected BufferOverflowException");
+    } catch (BufferOverflowException e) {
+      assertThat(buffer.position()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void shouldDecodeJsonMessages() {
+    EventMessage message = newMessage(newProjectCreatedEvent());
+
+    EventMessage decoded = codec.decode(jsonCodec.encode(message));
+
+    assertThat(decoded.getHeader().eventId).isEqualTo(message.getHeader().eventId);
+    assertThat(((ProjectCreatedEvent) decoded.getEvent()).projectName).isEqualTo("some/project");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnsupportedVersion() {
+    byte[] bytes = codec.encode(newMessage(newProjectCreatedEvent()));
+    bytes[0] = BinaryEventMessageCodec.VERSION + 1;
+
+    codec.decode(bytes);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectTruncatedMessage() {
+    byte[] bytes = codec.encode(newMessage(newProjectCreatedEvent()));
+
+    codec.decode(Arrays.copyOf(bytes, bytes.length - 5));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectTypeLongerThanTheMessage() {
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    buffer.put(BinaryEventMessageCodec.VERSION).putLong(1).putLong(2).putLong(3).putLong(4);
+    BinaryEventMessageCodec.writeVarint(buffer, 0);
+    BinaryEventMessageCodec.writeVarint(buffer, Integer.MAX_VALUE);
+    buffer.flip();
+
+    codec.decode(buffer);
+  }
+
+  @Test
+  public void shouldSkipTheBodyOfFilteredOutMessages() {
+    byte[] bytes = codec.encode(newMessage(newProjectCreatedEvent()));
+    // Corrupt the event body, proving that it is never deserialized
+    bytes[bytes.length - 1] = '[';
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    assertThat(
+            codec
+                .decode(buffer, MessageFilter.builder().eventTypes("ref-updated").build())
+                .isPresent())
+        .isFalse();
+    assertThat(buffer.hasRemaining()).isFalse();
+  }
+
+  @Test
+  public void shouldDecodeMessagesMatchingTheFilter() {
+    EventMessage message = newMessage(newProjectCreatedEvent());
+    byte[] bytes = codec.encode(message);
+
+    assertThat(
+            codec
+                .decode(
+                    ByteBuffer.wrap(bytes),
+                    MessageFilter.builder()
+                        .eventTypes("project-created")
+                        .projects("some/project")
+                        .build())
+                .isPresent())
+        .isTrue();
+    assertThat(
+            codec
+                .decode(
+                    ByteBuffer.wrap(bytes),
+                    MessageFilter.builder().projects("other/project").build())
+                .isPresent())
+        .isFalse();
+  }
+
+  @Test
+  public void shouldDeserializeTheEventOnlyOnFirstAccess() {
+    EventMessage message = newMessage(newProjectCreatedEvent());
+
+    LazyEventMessage decoded = (LazyEventMessage) codec.decode(codec.encode(message));
+
+    assertThat(decoded.isDecoded()).isFalse();
+    assertThat(decoded.getHeader().sourceInstanceId)
+        .isEqualTo(message.getHeader().sourceInstanceId);
+    assertThat(decoded.getEventType()).isEqualTo("project-created");
+    assertThat(decoded.isDecoded()).isFalse();
+    Event event = decoded.getEvent();
+    assertThat(decoded.isDecoded()).isTrue();
+    assertThat(decoded.getEvent()).isSameInstanceAs(event);
+  }
+
+  @Test
+  public void shouldReportInvalidEventsOnlyOnAccess() {
+    byte[] bytes = codec.encode(newMessage(newProjectCreatedEvent()));
+    bytes[bytes.length - 1] = '[';
+
+    EventMessage decoded = codec.decode(bytes);
+
+    assertThat(decoded.getHeader().eventId).isNotNull();
+    try {
+      decoded.getEvent();
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(decoded.getHeader().eventId).isNotNull();
+    }
+  }
+
+  @Test
+  public void shouldForwardTheEncodedEventWithoutDeserializingIt() {
+    byte[] bytes = codec.encode(newMessage(newProjectCreatedEvent()));
+    LazyEventMessage decoded = (LazyEventMessage) codec.decode(bytes);
+
+    assertThat(codec.encode(decoded)).isEqualTo(bytes);
+    assertThat(decoded.isDecoded()).isFalse();
+  }
+
+  @Test
+  public void shouldEncodeLazyMessagesAsJson() {
+    EventMessage message = newMessage(newProjectCreatedEvent());
+
+    EventMessage decoded = codec.decode(codec.encode(message));
+
+    assertThat(new String(jsonCodec.encode(decoded), UTF_8))
+        .isEqualTo(new String(jsonCodec.encode(message), UTF_8));
+  }
+
+  @Test
+  public void shouldEncodeVarints() {
+    ByteBuffer buffer = ByteBuffer.allocate(5);
+    for (int value : new int[] {0, 1, 127, 128, 16384, Integer.MAX_VALUE}) {
+      buffer.clear();
+      BinaryEventMessageCodec.writeVarint(buffer, value);
+      assertThat(buffer.position()).isEqualTo(BinaryEventMessageCodec.varintSize(value));
+      buffer.flip();
+      assertThat(BinaryEventMessageCodec.readVarint(buffer)).isEqualTo(value);
+    }
+  }
+
+  private static EventMessage newMessage(Event event) {
+    return new EventMessage(new Header(UUID.randomUUID(), UUID.randomUUID()), event);
+  }
+
+  private static ProjectCreatedEvent newProjectCreatedEvent() {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = "some/project";
+    event.headName = "refs/heads/master";
+    return event;
+  }
+
+  public static class TestEvent extends Event {
+    public String value;
+
+    public TestEvent() {
+      super(TEST_EVENT_TYPE);
+    }
+  }
+}
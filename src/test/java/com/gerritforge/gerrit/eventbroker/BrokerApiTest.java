@@ -16,17 +16,21 @@ package com.gerritforge.gerrit.eventbroker;
 
 import static com.gerritforge.gerrit.eventbroker.TopicSubscriber.topicSubscriber;
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.ProjectCreatedEvent;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.function.Consumer;
@@ -220,6 +224,259 @@ public class BrokerApiTest {
     compareWithExpectedEvent(eventConsumer, eventCaptor, event);
   }
 
+  @Test
+  public void shouldSendBatchToAllRegisteredConsumers() {
+    ProjectCreatedEvent firstEvent = testProjectCreatedEvent("Project name");
+    ProjectCreatedEvent secondEvent = testProjectCreatedEvent("Project name 2");
+    BatchConsumer batchConsumer = Mockito.mock(BatchConsumer.class);
+
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+    brokerApiUnderTest.receiveAsync("topic", batchConsumer);
+
+    List<EventMessage> batch = ImmutableList.of(wrap(firstEvent), wrap(secondEvent));
+    assertThat(brokerApiUnderTest.sendBatch("topic", batch)).containsExactly(true, true);
+
+    verify(eventConsumer, times(2)).accept(eventCaptor.capture());
+    assertThat(eventCaptor.getAllValues()).containsExactlyElementsIn(batch).inOrder();
+    verify(batchConsumer).acceptBatch(batch);
+    verify(batchConsumer, never()).accept(any());
+  }
+
+  @Test
+  public void shouldReturnPerMessageResultsOfBatch() {
+    EventMessage failingMessage = wrap(testProjectCreatedEvent("Failing project"));
+    EventMessage message = wrap(testProjectCreatedEvent("Project name"));
+    doThrow(new IllegalStateException("test failure")).when(eventConsumer).accept(failingMessage);
+
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+
+    assertThat(brokerApiUnderTest.sendBatch("topic", ImmutableList.of(failingMessage, message)))
+        .containsExactly(false, true)
+        .inOrder();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked") // Generic varargs of reset
+  public void shouldReplayFromOffsetOnlyTheEventsMissedByEachConsumer() {
+    Consumer<EventMessage> failingConsumer = mockEventConsumer();
+    ArgumentCaptor<EventMessage> failingConsumerCaptor =
+        ArgumentCaptor.forClass(EventMessage.class);
+    EventMessage firstMessage = wrap(testProjectCreatedEvent("Project 1"));
+    EventMessage secondMessage = wrap(testProjectCreatedEvent("Project 2"));
+    doThrow(new IllegalStateException("test failure")).when(failingConsumer).accept(secondMessage);
+
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+    brokerApiUnderTest.receiveAsync("topic", failingConsumer);
+    brokerApiUnderTest.send("topic", firstMessage);
+    brokerApiUnderTest.send("topic", secondMessage);
+    reset(eventConsumer, failingConsumer);
+
+    brokerApiUnderTest.replayFrom("topic", 0);
+
+    verify(eventConsumer, never()).accept(any());
+    verify(failingConsumer, times(1)).accept(failingConsumerCaptor.capture());
+    assertThat(failingConsumerCaptor.getValue()).isSameInstanceAs(secondMessage);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked") // Generic varargs of reset
+  public void shouldReplayFromOffsetTheEventsFailedBeforeTheLastOne() {
+    Consumer<EventMessage> failingConsumer = mockEventConsumer();
+    EventMessage firstMessage = wrap(testProjectCreatedEvent("Project 1"));
+    EventMessage secondMessage = wrap(testProjectCreatedEvent("Project 2"));
+    EventMessage thirdMessage = wrap(testProjectCreatedEvent("Project 3"));
+    doThrow(new IllegalStateException("test failure")).when(failingConsumer).accept(secondMessage);
+
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+    brokerApiUnderTest.receiveAsync("topic", failingConsumer);
+    brokerApiUnderTest.send("topic", firstMessage);
+    brokerApiUnderTest.send("topic", secondMessage);
+    brokerApiUnderTest.send("topic", thirdMessage);
+    reset(eventConsumer, failingConsumer);
+
+    brokerApiUnderTest.replayFrom("topic", 0);
+
+    verify(eventConsumer, never()).accept(any());
+    verify(failingConsumer, times(1)).accept(eventCaptor.capture());
+    assertThat(eventCaptor.getValue()).isSameInstanceAs(secondMessage);
+
+    reset(failingConsumer);
+    brokerApiUnderTest.replayFrom("topic", 0);
+
+    verify(failingConsumer, never()).accept(any());
+  }
+
+  @Test
+  public void shouldReplayFromOffsetToNewConsumers() {
+    EventMessage firstMessage = wrap(testProjectCreatedEvent("Project 1"));
+    EventMessage secondMessage = wrap(testProjectCreatedEvent("Project 2"));
+
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+    brokerApiUnderTest.send("topic", firstMessage);
+    brokerApiUnderTest.send("topic", secondMessage);
+
+    Consumer<EventMessage> newConsumer = mockEventConsumer();
+    ArgumentCaptor<EventMessage> newConsumerCaptor = ArgumentCaptor.forClass(EventMessage.class);
+    brokerApiUnderTest.receiveAsync("topic", newConsumer);
+    brokerApiUnderTest.replayFrom("topic", 1);
+
+    verify(newConsumer, times(1)).accept(newConsumerCaptor.capture());
+    assertThat(newConsumerCaptor.getValue()).isSameInstanceAs(secondMessage);
+  }
+
+  @Test
+  public void brokersWithoutConsumerGroupsShouldSubscribeTheMembersToAllEvents() {
+    BrokerApi brokerApi = new MinimalBrokerApi();
+    Consumer<EventMessage> otherMember = mockEventConsumer();
+
+    brokerApi.receiveAsync("topic", "group", eventConsumer);
+    brokerApi.receiveAsync("topic", "group", otherMember);
+    brokerApi.send("topic", wrap(testProjectCreatedEvent("Project name")));
+
+    verify(eventConsumer, times(1)).accept(any());
+    verify(otherMember, times(1)).accept(any());
+  }
+
+  @Test
+  public void brokersWithoutUnsubscribingShouldKeepTheSubscribers() {
+    BrokerApi brokerApi = new MinimalBrokerApi();
+    brokerApi.receiveAsync("topic", eventConsumer);
+
+    assertThat(brokerApi.unsubscribe(topicSubscriber("topic", eventConsumer))).isFalse();
+    brokerApi.send("topic", wrap(testProjectCreatedEvent("Project name")));
+
+    verify(eventConsumer, times(1)).accept(any());
+  }
+
+  @Test
+  public void shouldDeliverEachEventToOneMemberOfTheGroup() {
+    Consumer<EventMessage> firstMember = mockEventConsumer();
+    Consumer<EventMessage> secondMember = mockEventConsumer();
+
+    brokerApiUnderTest.receiveAsync("topic", "group", firstMember);
+    brokerApiUnderTest.receiveAsync("topic", "group", secondMember);
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+    for (int i = 0; i < 4; i++) {
+      assertThat(brokerApiUnderTest.send("topic", wrap(testProjectCreatedEvent("Project " + i))))
+          .isTrue();
+    }
+
+    verify(firstMember, times(2)).accept(any());
+    verify(secondMember, times(2)).accept(any());
+    verify(eventConsumer, times(4)).accept(any());
+  }
+
+  @Test
+  public void shouldDeliverACopyOfEachEventToEveryGroup() {
+    Consumer<EventMessage> firstGroupMember = mockEventConsumer();
+    Consumer<EventMessage> secondGroupMember = mockEventConsumer();
+
+    brokerApiUnderTest.receiveAsync("topic", "group1", firstGroupMember);
+    brokerApiUnderTest.receiveAsync("topic", "group2", secondGroupMember);
+    brokerApiUnderTest.send("topic", wrap(testProjectCreatedEvent("Project name")));
+
+    verify(firstGroupMember, times(1)).accept(any());
+    verify(secondGroupMember, times(1)).accept(any());
+  }
+
+  @Test
+  public void shouldReturnTheGroupOfTheSubscribers() {
+    Consumer<EventMessage> groupMember = mockEventConsumer();
+
+    brokerApiUnderTest.receiveAsync("topic", "group", groupMember);
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+
+    assertThat(brokerApiUnderTest.topicSubscribers())
+        .containsExactly(
+            topicSubscriber("topic", "group", groupMember),
+            topicSubscriber("topic", eventConsumer));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked") // Generic varargs of reset
+  public void shouldReplayFromOffsetOnlyTheEventsMissedByTheGroup() {
+    Consumer<EventMessage> firstMember = mockEventConsumer();
+    Consumer<EventMessage> secondMember = mockEventConsumer();
+    EventMessage firstMessage = wrap(testProjectCreatedEvent("Project 1"));
+    EventMessage secondMessage = wrap(testProjectCreatedEvent("Project 2"));
+    doThrow(new IllegalStateException("test failure")).when(secondMember).accept(secondMessage);
+
+    brokerApiUnderTest.receiveAsync("topic", "group", firstMember);
+    brokerApiUnderTest.receiveAsync("topic", "group", secondMember);
+    brokerApiUnderTest.send("topic", firstMessage);
+    brokerApiUnderTest.send("topic", secondMessage);
+    reset(firstMember, secondMember);
+
+    brokerApiUnderTest.replayFrom("topic", 0);
+
+    verify(firstMember, times(1)).accept(eventCaptor.capture());
+    verify(secondMember, never()).accept(any());
+    assertThat(eventCaptor.getValue()).isSameInstanceAs(secondMessage);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked") // Generic varargs of reset
+  public void shouldReplayFromOffsetTheEventsFailedByAMemberBeforeTheLastOne() {
+    Consumer<EventMessage> firstMember = mockEventConsumer();
+    Consumer<EventMessage> secondMember = mockEventConsumer();
+    EventMessage firstMessage = wrap(testProjectCreatedEvent("Project 1"));
+    EventMessage secondMessage = wrap(testProjectCreatedEvent("Project 2"));
+    EventMessage thirdMessage = wrap(testProjectCreatedEvent("Project 3"));
+    doThrow(new IllegalStateException("test failure")).when(secondMember).accept(secondMessage);
+
+    brokerApiUnderTest.receiveAsync("topic", "group", firstMember);
+    brokerApiUnderTest.receiveAsync("topic", "group", secondMember);
+    brokerApiUnderTest.send("topic", firstMessage);
+    brokerApiUnderTest.send("topic", secondMessage);
+    brokerApiUnderTest.send("topic", thirdMessage);
+    reset(firstMember, secondMember);
+
+    brokerApiUnderTest.replayFrom("topic", 0);
+
+    verify(firstMember, never()).accept(any());
+    verify(secondMember, times(1)).accept(eventCaptor.capture());
+    assertThat(eventCaptor.getValue()).isSameInstanceAs(secondMessage);
+  }
+
+  @Test
+  public void shouldNotInvokeConsumersWithEventsNotMatchingTheirFilter() {
+    Consumer<EventMessage> refUpdatedConsumer = mockEventConsumer();
+    Consumer<EventMessage> projectConsumer = mockEventConsumer();
+    EventMessage matchingMessage = wrap(testProjectCreatedEvent("Project 1"));
+
+    brokerApiUnderTest.receiveAsync(
+        "topic", MessageFilter.builder().eventTypes("ref-updated").build(), refUpdatedConsumer);
+    brokerApiUnderTest.receiveAsync(
+        "topic", MessageFilter.builder().projects("Project 1").build(), projectConsumer);
+    brokerApiUnderTest.receiveAsync("topic", eventConsumer);
+    brokerApiUnderTest.send("topic", matchingMessage);
+    brokerApiUnderTest.send("topic", wrap(testProjectCreatedEvent("Project 2")));
+
+    verify(refUpdatedConsumer, never()).accept(any());
+    verify(projectConsumer, times(1)).accept(eventCaptor.capture());
+    assertThat(eventCaptor.getValue()).isSameInstanceAs(matchingMessage);
+    verify(eventConsumer, times(2)).accept(any());
+  }
+
+  @Test
+  public void shouldFilterEventsByTypeAndHeader() {
+    Consumer<EventMessage> filteredConsumer = mockEventConsumer();
+    EventMessage matchingMessage = wrap(testProjectCreatedEvent("Project 1"));
+
+    brokerApiUnderTest.receiveAsync(
+        "topic",
+        MessageFilter.builder()
+            .eventTypes("project-created")
+            .headerPredicate(header -> header.eventId.equals(matchingMessage.getHeader().eventId))
+            .build(),
+        filteredConsumer);
+    brokerApiUnderTest.send("topic", wrap(testProjectCreatedEvent("Project 2")));
+    brokerApiUnderTest.sendBatch("topic", ImmutableList.of(matchingMessage));
+
+    verify(filteredConsumer, times(1)).accept(eventCaptor.capture());
+    assertThat(eventCaptor.getValue()).isSameInstanceAs(matchingMessage);
+  }
+
   @Test
   public void shouldSkipReplayAllEventsWhenTopicDoesNotExists() {
     brokerApiUnderTest.replayAllEvents("unexistentTopic");
@@ -232,6 +489,36 @@ public class BrokerApiTest {
     return eventForTopic;
   }
 
+  /** Broker implementing only the abstract methods of {@link BrokerApi}. */
+  private static class MinimalBrokerApi implements BrokerApi {
+    private final BrokerApi delegate = new InProcessBrokerApi();
+
+    @Override
+    public boolean send(String topic, EventMessage message) {
+      return delegate.send(topic, message);
+    }
+
+    @Override
+    public void receiveAsync(String topic, Consumer<EventMessage> consumer) {
+      delegate.receiveAsync(topic, consumer);
+    }
+
+    @Override
+    public Set<TopicSubscriber> topicSubscribers() {
+      return delegate.topicSubscribers();
+    }
+
+    @Override
+    public void disconnect() {
+      delegate.disconnect();
+    }
+
+    @Override
+    public void replayAllEvents(String topic) {
+      delegate.replayAllEvents(topic);
+    }
+  }
+
   private interface Subscriber extends Consumer<EventMessage> {
 
     @Override
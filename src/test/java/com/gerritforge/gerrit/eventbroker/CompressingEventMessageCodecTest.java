@@ -0,0 +1,134 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.base.Strings;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.CommentAddedEvent;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+public class CompressingEventMessageCodecTest {
+  private final BinaryEventMessageCodec binaryCodec = new BinaryEventMessageCodec();
+  private final CompressingEventMessageCodec codec = new CompressingEventMessageCodec();
+
+  @Test
+  public void largeMessagesShouldBeCompressed() {
+    EventMessage message = newMessage(newCommentAddedEvent(1));
+
+    byte[] encoded = codec.encode(message);
+
+    assertThat(encoded[0]).isEqualTo(CompressingEventMessageCodec.COMPRESSED);
+    assertThat(encoded.length).isLessThan(binaryCodec.encode(message).length / 2);
+    EventMessage decoded = codec.decode(encoded);
+    assertThat(decoded.getHeader().eventId).isEqualTo(message.getHeader().eventId);
+    assertThat(((CommentAddedEvent) decoded.getEvent()).comment)
+        .isEqualTo(((CommentAddedEvent) message.getEvent()).comment);
+  }
+
+  @Test
+  public void smallMessagesShouldBeLeftUncompressed() {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = "some/project";
+    EventMessage message = newMessage(event);
+
+    byte[] encoded = codec.encode(message);
+
+    assertThat(encoded).isEqualTo(binaryCodec.encode(message));
+    assertThat(codec.decode(encoded).getHeader().eventId).isEqualTo(message.getHeader().eventId);
+  }
+
+  @Test
+  public void filteredOutMessagesShouldNotBeDecoded() {
+    EventMessage message = newMessage(newCommentAddedEvent(1));
+
+    assertThat(
+            codec
+                .decode(
+                    ByteBuffer.wrap(codec.encode(message)),
+                    MessageFilter.builder().eventTypes("ref-updated").build())
+                .isPresent())
+        .isFalse();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void messagesCompressedWithAnotherDictionaryShouldBeRejected() {
+    CompressingEventMessageCodec otherCodec =
+        new CompressingEventMessageCodec(
+            binaryCodec, "\"comment\":\"".getBytes(UTF_8), Deflater.BEST_SPEED, 0);
+
+    codec.decode(otherCodec.encode(newMessage(newCommentAddedEvent(1))));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void messagesClaimingAnImpossibleSizeShouldBeRejected() {
+    byte[] encoded = codec.encode(newMessage(newCommentAddedEvent(1)));
+    ByteBuffer.wrap(encoded).putInt(1, CompressingEventMessageCodec.MAX_SIZE);
+
+    codec.decode(encoded);
+  }
+
+  @Test
+  public void trainedDictionaryShouldHoldTheRecurringStrings() {
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      samples.add(binaryCodec.encode(newMessage(newCommentAddedEvent(i))));
+    }
+
+    byte[] dictionary = CompressingEventMessageCodec.trainDictionary(samples, 512);
+
+    assertThat(dictionary.length).isAtMost(512);
+    assertThat(new String(dictionary, UTF_8)).contains("\"project\":\"some/project\"");
+    CompressingEventMessageCodec trainedCodec =
+        new CompressingEventMessageCodec(binaryCodec, dictionary, Deflater.BEST_SPEED, 0);
+    EventMessage message = newMessage(newCommentAddedEvent(100));
+    assertThat(trainedCodec.decode(trainedCodec.encode(message)).getHeader().eventId)
+        .isEqualTo(message.getHeader().eventId);
+  }
+
+  private static EventMessage newMessage(Event event) {
+    return new EventMessage(new Header(UUID.randomUUID(), UUID.randomUUID()), event);
+  }
+
+  private static CommentAddedEvent newCommentAddedEvent(int id) {
+    Change change =
+        new Change(
+            Change.key(String.format("I%040d", id)),
+            Change.id(id),
+            Account.id(1000000),
+            BranchNameKey.create(Project.nameKey("some/project"), "master"),
+            new Timestamp(System.currentTimeMillis()));
+    CommentAddedEvent event = new CommentAddedEvent(change);
+    event.comment =
+        "Patch Set 3: Code-Review+1\n\n"
+            + Strings.repeat(
+                "The change looks good, but the tests could cover the error paths too. ", 40);
+    return event;
+  }
+}
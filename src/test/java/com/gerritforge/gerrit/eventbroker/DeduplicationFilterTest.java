@@ -0,0 +1,228 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class DeduplicationFilterTest {
+  private static final Duration WINDOW = Duration.ofSeconds(30);
+
+  private final UUID localInstanceId = UUID.randomUUID();
+  private final UUID remoteInstanceId = UUID.randomUUID();
+  private final MutableClock clock = new MutableClock();
+
+  @Test
+  public void shouldDropDuplicatesWithinTheWindow() {
+    DeduplicationFilter filter = new DeduplicationFilter(WINDOW, 100, clock);
+    Header header = new Header(UUID.randomUUID(), remoteInstanceId);
+
+    assertThat(filter.accept(header)).isTrue();
+    assertThat(filter.accept(header)).isFalse();
+    clock.advance(WINDOW.minusSeconds(1));
+    assertThat(filter.accept(header)).isFalse();
+  }
+
+  @Test
+  public void shouldForgetEventIdsOutsideTheWindow() {
+    DeduplicationFilter filter = new DeduplicationFilter(WINDOW, 100, clock);
+    Header header = new Header(UUID.randomUUID(), remoteInstanceId);
+
+    assertThat(filter.accept(header)).isTrue();
+    clock.advance(WINDOW.multipliedBy(2));
+    assertThat(filter.accept(header)).isTrue();
+  }
+
+  @Test
+  public void shouldNotDropAnythingWhenDisabled() {
+    DeduplicationFilter filter = new DeduplicationFilter(Duration.ZERO, 100, clock);
+    Header header = new Header(UUID.randomUUID(), localInstanceId);
+
+    assertThat(filter.isEnabled()).isFalse();
+    assertThat(filter.accept(header)).isTrue();
+    assertThat(filter.accept(header)).isTrue();
+  }
+
+  @Test
+  public void shouldBoundTheEventIdsRemembered() {
+    int capacity = 100;
+    DeduplicationFilter filter = new DeduplicationFilter(WINDOW, capacity, clock);
+    Header first = new Header(UUID.randomUUID(), remoteInstanceId);
+
+    assertThat(filter.accept(first)).isTrue();
+    for (int i = 0; i < 2 * capacity; i++) {
+      assertThat(filter.accept(new Header(UUID.randomUUID(), remoteInstanceId))).isTrue();
+    }
+    assertThat(filter.accept(first)).isTrue();
+  }
+
+  @Test
+  public void brokerShouldDeliverTheLocalMessagesButNotTheDuplicates() {
+    InProcessBrokerApi brokerApi =
+        new InProcessBrokerApi(
+            InProcessBrokerConfig.builder()
+                .localInstanceId(localInstanceId)
+                .deduplicationWindow(WINDOW)
+                .build());
+    List<EventMessage> received = new CopyOnWriteArrayList<>();
+    brokerApi.receiveAsync("topic", received::add);
+    EventMessage remote = newMessage(remoteInstanceId);
+    EventMessage local = newMessage(localInstanceId);
+
+    assertThat(brokerApi.send("topic", remote)).isTrue();
+    assertThat(brokerApi.send("topic", remote)).isTrue();
+    assertThat(brokerApi.send("topic", local)).isTrue();
+    assertThat(
+            brokerApi.sendBatch(
+                "topic", ImmutableList.of(remote, newMessage(remoteInstanceId), local)))
+        .containsExactly(true, true, true)
+        .inOrder();
+
+    assertThat(received).hasSize(3);
+    assertThat(received.get(0)).isSameInstanceAs(remote);
+    assertThat(received.get(1)).isSameInstanceAs(local);
+  }
+
+  @Test
+  public void brokerShouldNotReplayTheMessagesSeenWithinTheWindow() {
+    InProcessBrokerApi brokerApi =
+        new InProcessBrokerApi(InProcessBrokerConfig.builder().deduplicationWindow(WINDOW).build());
+    List<EventMessage> received = new CopyOnWriteArrayList<>();
+    brokerApi.receiveAsync("topic", received::add);
+    EventMessage message = newMessage(remoteInstanceId);
+
+    assertThat(brokerApi.send("topic", message)).isTrue();
+    brokerApi.replayAllEvents("topic");
+
+    assertThat(received).containsExactly(message);
+  }
+
+  @Test
+  public void brokerShouldReplayTheMessagesSeenWithinTheWindowWhenConfigured() {
+    InProcessBrokerApi brokerApi =
+        new InProcessBrokerApi(
+            InProcessBrokerConfig.builder()
+                .deduplicationWindow(WINDOW)
+                .deduplicateReplays(false)
+                .build());
+    List<EventMessage> received = new CopyOnWriteArrayList<>();
+    brokerApi.receiveAsync("topic", received::add);
+    EventMessage message = newMessage(remoteInstanceId);
+
+    assertThat(brokerApi.send("topic", message)).isTrue();
+    brokerApi.replayAllEvents("topic");
+
+    assertThat(received).containsExactly(message, message);
+  }
+
+  @Test
+  public void brokerShouldDeliverOnceTheMessagesSentAsynchronously() throws Exception {
+    InProcessBrokerApi brokerApi =
+        new InProcessBrokerApi(InProcessBrokerConfig.builder().deduplicationWindow(WINDOW).build());
+    List<EventMessage> received = new CopyOnWriteArrayList<>();
+    brokerApi.receiveAsync("topic", received::add);
+    EventMessage message = newMessage(remoteInstanceId);
+
+    assertThat(brokerApi.sendAsync("topic", message).get()).isEqualTo(SendResult.DELIVERED);
+    assertThat(brokerApi.sendAsync("topic", message).get()).isEqualTo(SendResult.DELIVERED);
+
+    assertThat(received).containsExactly(message);
+  }
+
+  @Test
+  public void brokerShouldDeliverTheRejectedMessagesWhenSentAgain() throws Exception {
+    InProcessBrokerApi brokerApi =
+        new InProcessBrokerApi(
+            InProcessBrokerConfig.builder()
+                .deliveryMode(DeliveryMode.ASYNC)
+                .dispatchQueueCapacity(1)
+                .overflowPolicy(OverflowPolicy.REJECT)
+                .deduplicationWindow(WINDOW)
+                .build());
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch unblock = new CountDownLatch(1);
+    List<EventMessage> received = new CopyOnWriteArrayList<>();
+    brokerApi.receiveAsync(
+        "topic",
+        message -> {
+          started.countDown();
+          Uninterruptibles.awaitUninterruptibly(unblock);
+          received.add(message);
+        });
+    EventMessage rejected = newMessage(remoteInstanceId);
+
+    CompletableFuture<SendResult> inFlight =
+        brokerApi.sendAsync("topic", newMessage(remoteInstanceId));
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    CompletableFuture<SendResult> queued =
+        brokerApi.sendAsync("topic", newMessage(remoteInstanceId));
+    assertThat(brokerApi.sendAsync("topic", rejected).getNow(null)).isEqualTo(SendResult.REJECTED);
+    assertThat(brokerApi.send("topic", rejected)).isFalse();
+
+    unblock.countDown();
+    assertThat(inFlight.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+    assertThat(queued.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+    assertThat(brokerApi.sendAsync("topic", rejected).get(5, TimeUnit.SECONDS))
+        .isEqualTo(SendResult.DELIVERED);
+    assertThat(received).hasSize(3);
+    assertThat(received.get(2)).isSameInstanceAs(rejected);
+    brokerApi.disconnect();
+  }
+
+  private static EventMessage newMessage(UUID instanceId) {
+    return new EventMessage(new Header(UUID.randomUUID(), instanceId), new ProjectCreatedEvent());
+  }
+
+  private static class MutableClock extends Clock {
+    private Instant now = Instant.parse("2020-01-01T00:00:00Z");
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
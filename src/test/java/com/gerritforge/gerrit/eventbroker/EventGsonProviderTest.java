@@ -0,0 +1,148 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.change.ChangeKeyAdapter;
+import com.google.gerrit.server.data.RefUpdateAttribute;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventDeserializer;
+import com.google.gerrit.server.events.EventTypes;
+import com.google.gerrit.server.events.PatchSetCreatedEvent;
+import com.google.gerrit.server.events.ProjectNameKeyAdapter;
+import com.google.gerrit.server.events.RefUpdatedEvent;
+import com.google.gerrit.server.events.SupplierDeserializer;
+import com.google.gerrit.server.events.SupplierSerializer;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.sql.Timestamp;
+import java.util.UUID;
+import org.junit.Test;
+
+public class EventGsonProviderTest {
+  @SuppressWarnings("deprecation")
+  private static final Gson LEGACY_GSON =
+      new GsonBuilder()
+          .registerTypeAdapter(Event.class, new EventDeserializer())
+          .registerTypeAdapter(Event.class, new EventGsonProvider.EventSerializer())
+          .registerTypeAdapter(Supplier.class, new SupplierSerializer())
+          .registerTypeAdapter(Supplier.class, new SupplierDeserializer())
+          .registerTypeAdapter(Change.Key.class, new ChangeKeyAdapter())
+          .registerTypeAdapter(Project.NameKey.class, new ProjectNameKeyAdapter())
+          .create();
+
+  private final Gson gson = new EventGsonProvider().get();
+
+  @Test
+  public void shouldReturnTheSameInstance() {
+    assertThat(new EventGsonProvider().get()).isSameInstanceAs(gson);
+  }
+
+  @Test
+  public void shouldSerializeLikeTheLegacyAdapters() {
+    EventMessage message = newMessage(newRefUpdatedEvent());
+
+    assertThat(new JsonParser().parse(gson.toJson(message)))
+        .isEqualTo(new JsonParser().parse(LEGACY_GSON.toJson(message)));
+  }
+
+  @Test
+  public void shouldDeserializeRefUpdatedEvent() {
+    EventMessage message = newMessage(newRefUpdatedEvent());
+
+    EventMessage deserialized = gson.fromJson(gson.toJson(message), EventMessage.class);
+
+    assertThat(deserialized.getHeader().eventId).isEqualTo(message.getHeader().eventId);
+    RefUpdatedEvent event = (RefUpdatedEvent) deserialized.getEvent();
+    assertThat(event.getProjectNameKey()).isEqualTo(Project.nameKey("some/project"));
+    assertThat(event.refUpdate.get().newRev).isEqualTo("bbbbbb");
+  }
+
+  @Test
+  public void shouldDeserializeChangeEvent() {
+    Change change =
+        new Change(
+            Change.key("I0123456789abcdef0123456789abcdef01234567"),
+            Change.id(1),
+            Account.id(1000000),
+            BranchNameKey.create(Project.nameKey("some/project"), "master"),
+            new Timestamp(System.currentTimeMillis()));
+    EventMessage message = newMessage(new PatchSetCreatedEvent(change));
+
+    String json = gson.toJson(message);
+    PatchSetCreatedEvent event =
+        (PatchSetCreatedEvent) gson.fromJson(json, EventMessage.class).getEvent();
+
+    assertThat(event.getChangeKey()).isEqualTo(change.getKey());
+    assertThat(event.getProjectNameKey()).isEqualTo(change.getProject());
+    assertThat(new JsonParser().parse(json))
+        .isEqualTo(new JsonParser().parse(LEGACY_GSON.toJson(message)));
+    assertThat(
+            ((PatchSetCreatedEvent) LEGACY_GSON.fromJson(json, EventMessage.class).getEvent())
+                .getChangeKey())
+        .isEqualTo(change.getKey());
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void shouldFailToDeserializeUnknownEventType() {
+    gson.fromJson("{\"type\":\"unknown-event\"}", Event.class);
+  }
+
+  @Test
+  public void shouldDeserializeTheEventTypesRegisteredAgain() {
+    String json = "{\"type\":\"" + PluginEvent.TYPE + "\"}";
+
+    EventTypes.register(PluginEvent.TYPE, PluginEvent.class);
+    assertThat(gson.fromJson(json, Event.class)).isInstanceOf(PluginEvent.class);
+
+    EventTypes.register(PluginEvent.TYPE, ReloadedPluginEvent.class);
+    assertThat(gson.fromJson(json, Event.class)).isInstanceOf(ReloadedPluginEvent.class);
+  }
+
+  private EventMessage newMessage(Event event) {
+    return new EventMessage(new Header(UUID.randomUUID(), UUID.randomUUID()), event);
+  }
+
+  private RefUpdatedEvent newRefUpdatedEvent() {
+    RefUpdateAttribute refUpdate = new RefUpdateAttribute();
+    refUpdate.project = "some/project";
+    refUpdate.refName = "refs/heads/master";
+    refUpdate.oldRev = "aaaaaa";
+    refUpdate.newRev = "bbbbbb";
+    RefUpdatedEvent event = new RefUpdatedEvent();
+    event.refUpdate = Suppliers.ofInstance(refUpdate);
+    return event;
+  }
+
+  private static class PluginEvent extends Event {
+    static final String TYPE = "event-gson-provider-test-plugin-event";
+
+    PluginEvent() {
+      super(TYPE);
+    }
+  }
+
+  private static class ReloadedPluginEvent extends PluginEvent {}
+}
@@ -0,0 +1,68 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Test;
+
+public class EventIdsTest {
+
+  @Test
+  public void eventIdsShouldBeVersion7Uuids() {
+    UUID eventId = EventIds.next();
+
+    assertThat(eventId.version()).isEqualTo(7);
+    assertThat(eventId.variant()).isEqualTo(2);
+    assertThat(UUID.fromString(eventId.toString())).isEqualTo(eventId);
+  }
+
+  @Test
+  public void eventIdsShouldHoldTheirCreationTime() {
+    Instant createdOn = Instant.parse("2020-10-01T10:00:00.123Z");
+
+    assertThat(EventIds.timestamp(EventIds.next(createdOn.toEpochMilli()))).isEqualTo(createdOn);
+  }
+
+  @Test
+  public void eventIdsShouldBeOrderedByCreationTime() {
+    long now = System.currentTimeMillis();
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(EventIds.next(now).toString()).isLessThan(EventIds.next(now + 1).toString());
+    }
+  }
+
+  @Test
+  public void eventIdsShouldBeUnique() {
+    long now = System.currentTimeMillis();
+    Set<UUID> eventIds = new HashSet<>();
+
+    for (int i = 0; i < 100000; i++) {
+      eventIds.add(EventIds.next(now));
+    }
+
+    assertThat(eventIds).hasSize(100000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void timestampOfRandomUuidsShouldBeRejected() {
+    EventIds.timestamp(UUID.randomUUID());
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class EventMessageRingBufferTest {
+  private final UUID instanceId = UUID.randomUUID();
+
+  @Test
+  public void shouldNotAddTheSameEventTwice() {
+    EventMessageRingBuffer buffer = new EventMessageRingBuffer(10);
+    EventMessage message = newMessage(UUID.randomUUID());
+
+    assertThat(buffer.append(message)).isEqualTo(0);
+    assertThat(buffer.append(newMessage(message.getHeader().eventId)))
+        .isEqualTo(ReplayStore.NOT_STORED);
+    assertThat(buffer.snapshot()).containsExactly(message);
+  }
+
+  @Test
+  public void shouldEvictOldestMessagesWhenFull() {
+    EventMessageRingBuffer buffer = new EventMessageRingBuffer(3);
+    List<EventMessage> messages = newMessages(5);
+
+    messages.forEach(buffer::append);
+
+    assertThat(buffer.size()).isEqualTo(3);
+    assertThat(buffer.snapshot()).containsExactlyElementsIn(messages.subList(2, 5)).inOrder();
+    assertThat(buffer.contains(messages.get(0).getHeader().eventId)).isFalse();
+    assertThat(buffer.contains(messages.get(4).getHeader().eventId)).isTrue();
+  }
+
+  @Test
+  public void shouldAcceptAgainAnEvictedEvent() {
+    EventMessageRingBuffer buffer = new EventMessageRingBuffer(2);
+    List<EventMessage> messages = newMessages(3);
+
+    messages.forEach(buffer::append);
+
+    assertThat(buffer.append(messages.get(0))).isEqualTo(3);
+    assertThat(buffer.snapshot()).containsExactly(messages.get(2), messages.get(0)).inOrder();
+  }
+
+  @Test
+  public void shouldKeepIndexConsistentAfterManyEvictions() {
+    EventMessageRingBuffer buffer = new EventMessageRingBuffer(7);
+    List<EventMessage> messages = newMessages(1000);
+
+    for (int i = 0; i < messages.size(); i++) {
+      assertThat(buffer.append(messages.get(i))).isEqualTo(i);
+      for (int j = Math.max(0, i - 6); j <= i; j++) {
+        assertThat(buffer.contains(messages.get(j).getHeader().eventId)).isTrue();
+      }
+      if (i >= 7) {
+        assertThat(buffer.contains(messages.get(i - 7).getHeader().eventId)).isFalse();
+      }
+    }
+  }
+
+  @Test
+  public void shouldReplayFromOffset() {
+    EventMessageRingBuffer buffer = new EventMessageRingBuffer(3);
+    List<EventMessage> messages = newMessages(5);
+    messages.forEach(buffer::append);
+
+    List<Long> offsets = new ArrayList<>();
+    List<EventMessage> replayed = new ArrayList<>();
+    buffer.replay(
+        3,
+        (message, offset) -> {
+          replayed.add(message);
+          offsets.add(offset);
+        });
+
+    assertThat(offsets).containsExactly(3L, 4L).inOrder();
+    assertThat(replayed).containsExactlyElementsIn(messages.subList(3, 5)).inOrder();
+  }
+
+  @Test
+  public void shouldFindOffsetAtTimestamp() {
+    Instant start = Instant.parse("2020-10-01T10:00:00Z");
+    AtomicLong now = new AtomicLong(start.toEpochMilli());
+    Clock clock =
+        new Clock() {
+          @Override
+          public ZoneId getZone() {
+            return ZoneOffset.UTC;
+          }
+
+          @Override
+          public Clock withZone(ZoneId zone) {
+            return this;
+          }
+
+          @Override
+          public Instant instant() {
+            return Instant.ofEpochMilli(now.getAndAdd(1000));
+          }
+        };
+    EventMessageRingBuffer buffer = new EventMessageRingBuffer(10, clock);
+    newMessages(3).forEach(buffer::append);
+
+    assertThat(buffer.offsetAt(start)).isEqualTo(0);
+    assertThat(buffer.offsetAt(start.plusMillis(1500))).isEqualTo(2);
+    assertThat(buffer.offsetAt(start.plusSeconds(10))).isEqualTo(3);
+  }
+
+  private List<EventMessage> newMessages(int count) {
+    List<EventMessage> messages = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      messages.add(newMessage(UUID.randomUUID()));
+    }
+    return messages;
+  }
+
+  private EventMessage newMessage(UUID eventId) {
+    return new EventMessage(new Header(eventId, instanceId), new ProjectCreatedEvent());
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.time.Clock;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventReplayerTest {
+  private static final int MESSAGES = 10;
+
+  private final UUID instanceId = UUID.randomUUID();
+  private final List<EventMessage> received = new CopyOnWriteArrayList<>();
+
+  private InProcessBrokerApi brokerApi;
+  private ExecutorService executor;
+  private EventReplayer replayer;
+
+  @Before
+  public void setUp() {
+    brokerApi = new InProcessBrokerApi();
+    executor = Executors.newCachedThreadPool();
+    replayer = new EventReplayer(() -> brokerApi, executor, Clock.systemUTC());
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    brokerApi.disconnect();
+  }
+
+  @Test
+  public void shouldReplayAllTopicsInParallel() throws Exception {
+    sendMessages("topic-a");
+    sendMessages("topic-b");
+    received.clear();
+
+    ReplayJob job = replayer.start(ImmutableList.of("topic-a", "topic-b"), 0);
+
+    assertThat(job.completion().get(5, TimeUnit.SECONDS)).isEqualTo(ReplayJob.State.COMPLETED);
+    assertThat(job.replayedMessages()).isEqualTo(2 * MESSAGES);
+    assertThat(job.completedTopics()).isEqualTo(2);
+    assertThat(received).hasSize(2 * MESSAGES);
+    assertThat(replayer.jobs()).containsExactly(job);
+  }
+
+  @Test
+  public void shouldLimitTheRateOfTheReplay() throws Exception {
+    sendMessages("topic");
+    received.clear();
+
+    long start = System.nanoTime();
+    ReplayJob job = replayer.start(ImmutableList.of("topic"), 50);
+
+    assertThat(job.completion().get(5, TimeUnit.SECONDS)).isEqualTo(ReplayJob.State.COMPLETED);
+    assertThat(received).hasSize(MESSAGES);
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+        .isAtLeast((MESSAGES - 1) * 1000L / 50 - 20);
+  }
+
+  @Test
+  public void shouldStopACancelledReplay() throws Exception {
+    CountDownLatch firstReplayed = new CountDownLatch(1);
+    sendMessages("topic");
+    received.clear();
+    brokerApi.receiveAsync("topic", m -> firstReplayed.countDown());
+
+    ReplayJob job = replayer.start(ImmutableList.of("topic"), 1);
+    assertThat(firstReplayed.await(5, TimeUnit.SECONDS)).isTrue();
+    job.cancel();
+
+    assertThat(job.completion().get(5, TimeUnit.SECONDS)).isEqualTo(ReplayJob.State.CANCELLED);
+    assertThat(job.replayedMessages()).isLessThan((long) MESSAGES);
+    assertThat(received.size()).isLessThan(MESSAGES);
+  }
+
+  private void sendMessages(String topic) {
+    brokerApi.receiveAsync(topic, received::add);
+    for (int i = 0; i < MESSAGES; i++) {
+      brokerApi.send(
+          topic,
+          new EventMessage(
+              new EventMessage.Header(UUID.randomUUID(), instanceId), new ProjectCreatedEvent()));
+    }
+  }
+}
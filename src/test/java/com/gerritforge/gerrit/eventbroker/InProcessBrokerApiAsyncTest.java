@@ -0,0 +1,278 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.google.common.eventbus.Subscribe;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Test;
+
+public class InProcessBrokerApiAsyncTest {
+  private static final String TOPIC = "topic";
+
+  private final UUID instanceId = UUID.randomUUID();
+  private final CountDownLatch unblockConsumer = new CountDownLatch(1);
+  private final BlockingConsumer consumer = new BlockingConsumer();
+
+  private InProcessBrokerApi brokerApi;
+
+  @After
+  public void tearDown() {
+    unblockConsumer.countDown();
+    if (brokerApi != null) {
+      brokerApi.disconnect();
+    }
+  }
+
+  @Test
+  public void sendShouldReturnBeforeSlowConsumerCompletes() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.send(TOPIC, newMessage("p1"))).isTrue();
+    assertThat(brokerApi.send(TOPIC, newMessage("p2"))).isTrue();
+    assertThat(consumer.received).isEmpty();
+
+    unblockConsumer.countDown();
+    consumer.awaitMessages(2);
+    assertThat(projectNames()).containsExactly("p1", "p2").inOrder();
+  }
+
+  @Test
+  public void sendShouldReturnFalseWhenQueueIsFullAndPolicyIsReject() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.REJECT, 1);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.send(TOPIC, newMessage("in-flight"))).isTrue();
+    consumer.awaitStarted();
+    assertThat(brokerApi.send(TOPIC, newMessage("queued"))).isTrue();
+    assertThat(brokerApi.send(TOPIC, newMessage("rejected"))).isFalse();
+
+    unblockConsumer.countDown();
+    consumer.awaitMessages(2);
+    assertThat(projectNames()).containsExactly("in-flight", "queued").inOrder();
+  }
+
+  @Test
+  public void sendShouldDropOldestQueuedMessageWhenQueueIsFull() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.DROP_OLDEST, 1);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.send(TOPIC, newMessage("in-flight"))).isTrue();
+    consumer.awaitStarted();
+    assertThat(brokerApi.send(TOPIC, newMessage("dropped"))).isTrue();
+    assertThat(brokerApi.send(TOPIC, newMessage("latest"))).isTrue();
+
+    unblockConsumer.countDown();
+    consumer.awaitMessages(2);
+    assertThat(projectNames()).containsExactly("in-flight", "latest").inOrder();
+  }
+
+  @Test
+  public void sendAsyncShouldCompleteOnceTheMessageIsDelivered() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    CompletableFuture<SendResult> result = brokerApi.sendAsync(TOPIC, newMessage("p1"));
+    consumer.awaitStarted();
+    assertThat(result.isDone()).isFalse();
+
+    unblockConsumer.countDown();
+    assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+  }
+
+  @Test
+  public void sendAsyncShouldRejectWithoutBlockingWhenQueueIsFull() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 1);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    CompletableFuture<SendResult> inFlight = brokerApi.sendAsync(TOPIC, newMessage("in-flight"));
+    consumer.awaitStarted();
+    CompletableFuture<SendResult> queued = brokerApi.sendAsync(TOPIC, newMessage("queued"));
+    CompletableFuture<SendResult> rejected = brokerApi.sendAsync(TOPIC, newMessage("rejected"));
+
+    assertThat(rejected.getNow(null)).isEqualTo(SendResult.REJECTED);
+    unblockConsumer.countDown();
+    assertThat(inFlight.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+    assertThat(queued.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+    assertThat(projectNames()).containsExactly("in-flight", "queued").inOrder();
+  }
+
+  @Test
+  public void sendAsyncShouldRejectTheDroppedMessage() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.DROP_OLDEST, 1);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    brokerApi.sendAsync(TOPIC, newMessage("in-flight"));
+    consumer.awaitStarted();
+    CompletableFuture<SendResult> dropped = brokerApi.sendAsync(TOPIC, newMessage("dropped"));
+    CompletableFuture<SendResult> latest = brokerApi.sendAsync(TOPIC, newMessage("latest"));
+
+    assertThat(dropped.getNow(null)).isEqualTo(SendResult.REJECTED);
+    unblockConsumer.countDown();
+    assertThat(latest.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+  }
+
+  @Test
+  public void sendAsyncShouldReportFailedDelivery() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          throw new IllegalStateException("Consumer failure");
+        });
+
+    assertThat(brokerApi.sendAsync(TOPIC, newMessage("p1")).get(5, TimeUnit.SECONDS))
+        .isEqualTo(SendResult.FAILED);
+  }
+
+  @Test
+  public void sendAsyncShouldRejectQueuedMessagesOnDisconnect() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    brokerApi.sendAsync(TOPIC, newMessage("in-flight"));
+    consumer.awaitStarted();
+    CompletableFuture<SendResult> queued = brokerApi.sendAsync(TOPIC, newMessage("queued"));
+    brokerApi.disconnect();
+
+    assertThat(queued.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.REJECTED);
+  }
+
+  @Test
+  public void drainShouldDeliverQueuedMessagesAndRejectNewOnes() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(TOPIC, consumer);
+    brokerApi.send(TOPIC, newMessage("in-flight"));
+    consumer.awaitStarted();
+    brokerApi.send(TOPIC, newMessage("queued-1"));
+    brokerApi.send(TOPIC, newMessage("queued-2"));
+    CompletableFuture<Boolean> sentWhilstDraining = new CompletableFuture<>();
+    Thread unblocker =
+        new Thread(
+            () -> {
+              sleepUninterruptibly(100);
+              sentWhilstDraining.complete(brokerApi.send(TOPIC, newMessage("rejected")));
+              unblockConsumer.countDown();
+            });
+
+    unblocker.start();
+    DrainResult result = brokerApi.drain(Duration.ofSeconds(5));
+
+    assertThat(result).isEqualTo(DrainResult.create(2, 0));
+    assertThat(sentWhilstDraining.get(5, TimeUnit.SECONDS)).isFalse();
+    assertThat(projectNames()).containsExactly("in-flight", "queued-1", "queued-2").inOrder();
+    assertThat(brokerApi.topicSubscribers()).isEmpty();
+  }
+
+  @Test
+  public void drainShouldDropQueuedMessagesAfterTheTimeout() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(TOPIC, consumer);
+    brokerApi.send(TOPIC, newMessage("in-flight"));
+    consumer.awaitStarted();
+    brokerApi.send(TOPIC, newMessage("queued-1"));
+    brokerApi.send(TOPIC, newMessage("queued-2"));
+
+    DrainResult result = brokerApi.drain(Duration.ofMillis(100));
+
+    assertThat(result).isEqualTo(DrainResult.create(0, 2));
+    assertThat(brokerApi.send(TOPIC, newMessage("after-drain"))).isTrue();
+    assertThat(consumer.received).isEmpty();
+  }
+
+  private static void sleepUninterruptibly(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void topicsWithFormatSpecifiersShouldBeDelivered() throws Exception {
+    brokerApi = asyncBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync("topic-100%s", consumer);
+
+    assertThat(brokerApi.send("topic-100%s", newMessage("p1"))).isTrue();
+
+    unblockConsumer.countDown();
+    consumer.awaitMessages(1);
+    assertThat(projectNames()).containsExactly("p1");
+  }
+
+  private InProcessBrokerApi asyncBroker(OverflowPolicy overflowPolicy, int queueCapacity) {
+    return new InProcessBrokerApi(
+        InProcessBrokerConfig.builder()
+            .deliveryMode(DeliveryMode.ASYNC)
+            .dispatchQueueCapacity(queueCapacity)
+            .overflowPolicy(overflowPolicy)
+            .build());
+  }
+
+  private EventMessage newMessage(String projectName) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return brokerApi.newMessage(instanceId, event);
+  }
+
+  private List<String> projectNames() {
+    List<String> names = new CopyOnWriteArrayList<>();
+    consumer.received.forEach(m -> names.add(((ProjectCreatedEvent) m.getEvent()).projectName));
+    return names;
+  }
+
+  private class BlockingConsumer implements Consumer<EventMessage> {
+    private final List<EventMessage> received = new CopyOnWriteArrayList<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    @Override
+    @Subscribe
+    public void accept(EventMessage eventMessage) {
+      started.countDown();
+      try {
+        unblockConsumer.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      received.add(eventMessage);
+    }
+
+    void awaitStarted() throws InterruptedException {
+      assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    void awaitMessages(int count) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (received.size() < count && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(received).hasSize(count);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Test;
+
+public class InProcessBrokerApiConcurrencyTest {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+  private static final int ROUNDS = 50;
+
+  private final UUID instanceId = UUID.randomUUID();
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void concurrentSubscribersToTheSameTopicShouldAllReceiveMessages() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      InProcessBrokerApi broker = new InProcessBrokerApi();
+      String topic = "topic-" + round;
+      List<CountingConsumer> consumers = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        consumers.add(new CountingConsumer());
+      }
+
+      runConcurrently(THREADS, i -> broker.receiveAsync(topic, consumers.get(i)));
+      broker.send(topic, newMessage());
+
+      for (CountingConsumer consumer : consumers) {
+        assertThat(consumer.received.get()).isEqualTo(1);
+      }
+      assertThat(broker.topicSubscribers()).hasSize(THREADS);
+    }
+  }
+
+  @Test
+  public void subscribersRegisteredBeforeSendingShouldReceiveAllConcurrentMessages()
+      throws Exception {
+    InProcessBrokerApi broker = new InProcessBrokerApi();
+    CountingConsumer consumer = new CountingConsumer();
+    broker.receiveAsync("topic", consumer);
+    int messagesPerThread = 1000;
+
+    runConcurrently(
+        THREADS,
+        i -> {
+          for (int m = 0; m < messagesPerThread; m++) {
+            assertThat(broker.send("topic", newMessage())).isTrue();
+            if (m % 100 == 0) {
+              broker.receiveAsync("topic", new CountingConsumer());
+              broker.receiveAsync("other-topic-" + i, new CountingConsumer());
+            }
+          }
+        });
+
+    assertThat(consumer.received.get()).isEqualTo(THREADS * messagesPerThread);
+    assertThat(broker.topicSubscribers()).hasSize(1 + 2 * THREADS * messagesPerThread / 100);
+  }
+
+  @Test
+  public void topicSubscribersShouldReturnAnImmutableSnapshot() {
+    InProcessBrokerApi broker = new InProcessBrokerApi();
+    broker.receiveAsync("topic", new CountingConsumer());
+
+    Set<TopicSubscriber> snapshot = broker.topicSubscribers();
+    broker.receiveAsync("topic", new CountingConsumer());
+
+    assertThat(snapshot).hasSize(1);
+    assertThat(broker.topicSubscribers()).hasSize(2);
+    assertThat(broker.topicSubscribers()).isSameInstanceAs(broker.topicSubscribers());
+  }
+
+  @Test
+  public void sendThroughputWithIncreasingThreads() throws Exception {
+    InProcessBrokerApi broker = new InProcessBrokerApi();
+    for (int i = 0; i < 8; i++) {
+      broker.receiveAsync("topic", new CountingConsumer());
+    }
+
+    for (int threads = 1; threads <= THREADS; threads *= 2) {
+      LongAdder sent = new LongAdder();
+      AtomicBoolean running = new AtomicBoolean(true);
+      long start = System.nanoTime();
+      List<Future<?>> senders = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        senders.add(
+            executor.submit(
+                () -> {
+                  while (running.get()) {
+                    broker.send("topic", newMessage());
+                    sent.increment();
+                  }
+                }));
+      }
+      TimeUnit.MILLISECONDS.sleep(200);
+      running.set(false);
+      for (Future<?> sender : senders) {
+        sender.get();
+      }
+      long elapsedNanos = System.nanoTime() - start;
+
+      assertThat(sent.sum()).isGreaterThan(0L);
+      log.atInfo().log(
+          "%d sending threads: %d messages/s",
+          threads, sent.sum() * TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+    }
+  }
+
+  private void runConcurrently(int threads, IndexedTask task) throws Exception {
+    CyclicBarrier barrier = new CyclicBarrier(threads);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      int index = i;
+      Callable<Void> callable =
+          () -> {
+            barrier.await();
+            task.run(index);
+            return null;
+          };
+      futures.add(executor.submit(callable));
+    }
+    for (Future<Void> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  private EventMessage newMessage() {
+    return new EventMessage(
+        new EventMessage.Header(UUID.randomUUID(), instanceId), new ProjectCreatedEvent());
+  }
+
+  @FunctionalInterface
+  private interface IndexedTask {
+    void run(int index) throws Exception;
+  }
+
+  private static class CountingConsumer implements Consumer<EventMessage> {
+    final AtomicInteger received = new AtomicInteger();
+
+    @Override
+    public void accept(EventMessage message) {
+      received.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,257 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Test;
+
+public class InProcessBrokerApiMailboxTest {
+  private static final String TOPIC = "topic";
+
+  private final UUID instanceId = UUID.randomUUID();
+  private final CountDownLatch unblockConsumer = new CountDownLatch(1);
+
+  private InProcessBrokerApi brokerApi;
+
+  @After
+  public void tearDown() {
+    unblockConsumer.countDown();
+    if (brokerApi != null) {
+      brokerApi.disconnect();
+    }
+  }
+
+  @Test
+  public void hangingSubscriberShouldNotDelayTheOthers() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 10);
+    CountDownLatch hangingStarted = new CountDownLatch(1);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          hangingStarted.countDown();
+          awaitUninterruptibly(unblockConsumer);
+        });
+    RecordingConsumer consumer = new RecordingConsumer(2);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.send(TOPIC, newMessage("p1"))).isTrue();
+    assertThat(brokerApi.send(TOPIC, newMessage("p2"))).isTrue();
+
+    assertThat(hangingStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    consumer.await();
+    assertThat(consumer.projectNames()).containsExactly("p1", "p2").inOrder();
+  }
+
+  @Test
+  public void messagesQueuedOnTheMailboxesShouldBeCounted() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 10);
+    CountDownLatch hangingStarted = new CountDownLatch(1);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          hangingStarted.countDown();
+          awaitUninterruptibly(unblockConsumer);
+        });
+
+    brokerApi.send(TOPIC, newMessage("p1"));
+    assertThat(hangingStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    brokerApi.send(TOPIC, newMessage("p2"));
+    brokerApi.send(TOPIC, newMessage("p3"));
+
+    assertThat(brokerApi.queuedMessages()).containsExactly(TOPIC, 2L);
+  }
+
+  @Test
+  public void drainedBrokerShouldDeliverToNewSubscribers() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 10);
+    RecordingConsumer consumer = new RecordingConsumer(1);
+    brokerApi.receiveAsync(TOPIC, consumer);
+    brokerApi.send(TOPIC, newMessage("p1"));
+    consumer.await();
+
+    brokerApi.drain(Duration.ofSeconds(5));
+    RecordingConsumer newConsumer = new RecordingConsumer(1);
+    brokerApi.receiveAsync(TOPIC, newConsumer);
+    brokerApi.send(TOPIC, newMessage("p2"));
+
+    newConsumer.await();
+    assertThat(newConsumer.projectNames()).containsExactly("p2");
+  }
+
+  @Test
+  public void failingSubscriberShouldNotAffectTheOthers() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          throw new IllegalStateException("Consumer failure");
+        });
+    RecordingConsumer consumer = new RecordingConsumer(1);
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.sendAsync(TOPIC, newMessage("p1")).get(5, TimeUnit.SECONDS))
+        .isEqualTo(SendResult.FAILED);
+    consumer.await();
+    assertThat(consumer.projectNames()).containsExactly("p1");
+  }
+
+  @Test
+  public void eachSubscriberShouldReceiveTheMessagesInOrder() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 1000);
+    int messages = 500;
+    List<RecordingConsumer> consumers = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      RecordingConsumer consumer = new RecordingConsumer(messages);
+      consumers.add(consumer);
+      brokerApi.receiveAsync(TOPIC, consumer);
+    }
+
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < messages; i++) {
+      expected.add("p" + i);
+      brokerApi.send(TOPIC, newMessage("p" + i));
+    }
+
+    for (RecordingConsumer consumer : consumers) {
+      consumer.await();
+      assertThat(consumer.projectNames()).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
+  @Test
+  public void sendAsyncShouldCompleteOnceAllSubscribersProcessedTheMessage() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 10);
+    brokerApi.receiveAsync(TOPIC, new RecordingConsumer(1));
+    brokerApi.receiveAsync(TOPIC, m -> awaitUninterruptibly(unblockConsumer));
+
+    CompletableFuture<SendResult> result = brokerApi.sendAsync(TOPIC, newMessage("p1"));
+    assertThat(result.isDone()).isFalse();
+
+    unblockConsumer.countDown();
+    assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+  }
+
+  @Test
+  public void sendAsyncShouldRejectWhenASubscriberMailboxIsFull() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 1);
+    CountDownLatch hangingStarted = new CountDownLatch(1);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          hangingStarted.countDown();
+          awaitUninterruptibly(unblockConsumer);
+        });
+
+    brokerApi.sendAsync(TOPIC, newMessage("in-flight"));
+    assertThat(hangingStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    CompletableFuture<SendResult> queued = brokerApi.sendAsync(TOPIC, newMessage("queued"));
+    CompletableFuture<SendResult> rejected = brokerApi.sendAsync(TOPIC, newMessage("rejected"));
+
+    assertThat(rejected.getNow(null)).isEqualTo(SendResult.REJECTED);
+    unblockConsumer.countDown();
+    assertThat(queued.get(5, TimeUnit.SECONDS)).isEqualTo(SendResult.DELIVERED);
+  }
+
+  @Test
+  public void batchConsumerShouldReceiveTheWholeBatch() throws Exception {
+    brokerApi = mailboxBroker(OverflowPolicy.BLOCK, 10);
+    List<List<EventMessage>> batches = new CopyOnWriteArrayList<>();
+    CountDownLatch received = new CountDownLatch(1);
+    brokerApi.receiveAsync(
+        TOPIC,
+        new BatchConsumer() {
+          @Override
+          public void acceptBatch(List<EventMessage> messages) {
+            batches.add(messages);
+            received.countDown();
+          }
+
+          @Override
+          public void accept(EventMessage message) {
+            acceptBatch(ImmutableList.of(message));
+          }
+        });
+
+    assertThat(brokerApi.sendBatch(TOPIC, ImmutableList.of(newMessage("p1"), newMessage("p2"))))
+        .containsExactly(true, true);
+
+    assertThat(received.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0)).hasSize(2);
+  }
+
+  private InProcessBrokerApi mailboxBroker(OverflowPolicy overflowPolicy, int mailboxCapacity) {
+    return new InProcessBrokerApi(
+        InProcessBrokerConfig.builder()
+            .deliveryMode(DeliveryMode.MAILBOX)
+            .dispatchQueueCapacity(mailboxCapacity)
+            .overflowPolicy(overflowPolicy)
+            .build());
+  }
+
+  private EventMessage newMessage(String projectName) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return brokerApi.newMessage(instanceId, event);
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class RecordingConsumer implements Consumer<EventMessage> {
+    private final List<EventMessage> received = new CopyOnWriteArrayList<>();
+    private final CountDownLatch expected;
+
+    RecordingConsumer(int expectedMessages) {
+      this.expected = new CountDownLatch(expectedMessages);
+    }
+
+    @Override
+    public void accept(EventMessage eventMessage) {
+      received.add(eventMessage);
+      expected.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertThat(expected.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    List<String> projectNames() {
+      List<String> names = new ArrayList<>();
+      received.forEach(m -> names.add(((ProjectCreatedEvent) m.getEvent()).projectName));
+      return names;
+    }
+  }
+}
@@ -0,0 +1,232 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.ChangeMergedEvent;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.PatchSetCreatedEvent;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class InProcessBrokerApiPartitionTest {
+  private static final String TOPIC = "topic";
+  private static final int PARTITIONS = 8;
+
+  private final UUID instanceId = UUID.randomUUID();
+  private final CountDownLatch unblockConsumer = new CountDownLatch(1);
+
+  private InProcessBrokerApi brokerApi;
+
+  @After
+  public void tearDown() {
+    unblockConsumer.countDown();
+    if (brokerApi != null) {
+      brokerApi.disconnect();
+    }
+  }
+
+  @Test
+  public void changeKeyShouldFallBackToTheProject() {
+    Change change = newChange("some/project", 1);
+
+    assertThat(PartitionKey.CHANGE.of(new PatchSetCreatedEvent(change))).isEqualTo(change.getKey());
+    assertThat(PartitionKey.PROJECT.of(new PatchSetCreatedEvent(change)))
+        .isEqualTo(change.getProject());
+    assertThat(PartitionKey.CHANGE.of(newProjectCreatedEvent("some/project")))
+        .isEqualTo(Project.nameKey("some/project"));
+    assertThat(PartitionKey.PROJECT.of(new ProjectCreatedEvent())).isNull();
+  }
+
+  @Test
+  public void eventsOfTheSameChangeShouldGoToTheSamePartition() {
+    EventPartitioner partitioner = new EventPartitioner(PartitionKey.CHANGE, PARTITIONS);
+    Change change = newChange("some/project", 1);
+
+    int partition = partitioner.partition(newMessage(new PatchSetCreatedEvent(change)));
+
+    assertThat(partitioner.partition(newMessage(new ChangeMergedEvent(change))))
+        .isEqualTo(partition);
+    assertThat(partition).isAtLeast(0);
+    assertThat(partition).isLessThan(PARTITIONS);
+  }
+
+  @Test
+  public void eventsShouldBeSpreadAcrossAllPartitions() {
+    EventPartitioner partitioner = new EventPartitioner(PartitionKey.PROJECT, PARTITIONS);
+    boolean[] used = new boolean[PARTITIONS];
+
+    for (int i = 0; i < 100 * PARTITIONS; i++) {
+      used[partitioner.partition(newMessage(newProjectCreatedEvent("project-" + i)))] = true;
+    }
+
+    for (boolean partitionUsed : used) {
+      assertThat(partitionUsed).isTrue();
+    }
+  }
+
+  @Test
+  public void eventsOfTheSameProjectShouldBeDeliveredInOrder() throws Exception {
+    brokerApi = partitionedBroker();
+    int projects = 16;
+    int messagesPerProject = 100;
+    Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+    CountDownLatch allReceived = new CountDownLatch(projects * messagesPerProject);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          ProjectCreatedEvent event = (ProjectCreatedEvent) m.getEvent();
+          received
+              .computeIfAbsent(event.projectName, p -> new CopyOnWriteArrayList<>())
+              .add(Integer.valueOf(event.headName));
+          allReceived.countDown();
+        });
+
+    for (int i = 0; i < messagesPerProject; i++) {
+      for (int p = 0; p < projects; p++) {
+        ProjectCreatedEvent event = newProjectCreatedEvent("p" + p);
+        event.headName = String.valueOf(i);
+        assertThat(brokerApi.send(TOPIC, newMessage(event))).isTrue();
+      }
+    }
+
+    assertThat(allReceived.await(5, TimeUnit.SECONDS)).isTrue();
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < messagesPerProject; i++) {
+      expected.add(i);
+    }
+    assertThat(received).hasSize(projects);
+    for (List<Integer> projectMessages : received.values()) {
+      assertThat(projectMessages).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
+  @Test
+  public void blockedPartitionShouldNotDelayTheOthers() throws Exception {
+    brokerApi = partitionedBroker();
+    EventPartitioner partitioner = new EventPartitioner(PartitionKey.PROJECT, PARTITIONS);
+    EventMessage blocked = newMessage(newProjectCreatedEvent("blocked"));
+    EventMessage other = otherPartitionMessage(partitioner, partitioner.partition(blocked));
+    CountDownLatch otherReceived = new CountDownLatch(1);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          if (m == blocked) {
+            awaitUninterruptibly(unblockConsumer);
+          } else {
+            otherReceived.countDown();
+          }
+        });
+
+    brokerApi.send(TOPIC, blocked);
+    brokerApi.send(TOPIC, other);
+
+    assertThat(otherReceived.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void batchShouldBeSplitByPartitionKeepingTheOrder() throws Exception {
+    brokerApi = partitionedBroker();
+    List<String> received = new CopyOnWriteArrayList<>();
+    CountDownLatch allReceived = new CountDownLatch(4);
+    brokerApi.receiveAsync(
+        TOPIC,
+        m -> {
+          received.add(((ProjectCreatedEvent) m.getEvent()).projectName);
+          allReceived.countDown();
+        });
+
+    assertThat(
+            brokerApi.sendBatch(
+                TOPIC,
+                ImmutableList.of(
+                    newMessage(newProjectCreatedEvent("a")),
+                    newMessage(newProjectCreatedEvent("b")),
+                    newMessage(newProjectCreatedEvent("a")),
+                    newMessage(newProjectCreatedEvent("b")))))
+        .containsExactly(true, true, true, true);
+
+    assertThat(allReceived.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(received).containsExactly("a", "a", "b", "b");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void partitionsShouldRequireASingleDispatchThread() {
+    InProcessBrokerConfig.builder().partitions(PARTITIONS).dispatchThreads(2).build();
+  }
+
+  private InProcessBrokerApi partitionedBroker() {
+    return new InProcessBrokerApi(
+        InProcessBrokerConfig.builder()
+            .deliveryMode(DeliveryMode.ASYNC)
+            .partitions(PARTITIONS)
+            .partitionKey(PartitionKey.PROJECT)
+            .dispatchQueueCapacity(10000)
+            .build());
+  }
+
+  private EventMessage otherPartitionMessage(EventPartitioner partitioner, int partition) {
+    for (int i = 0; ; i++) {
+      EventMessage message = newMessage(newProjectCreatedEvent("other-" + i));
+      if (partitioner.partition(message) != partition) {
+        return message;
+      }
+    }
+  }
+
+  private EventMessage newMessage(Event event) {
+    return new EventMessage(new EventMessage.Header(UUID.randomUUID(), instanceId), event);
+  }
+
+  private static ProjectCreatedEvent newProjectCreatedEvent(String projectName) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return event;
+  }
+
+  private static Change newChange(String project, int id) {
+    return new Change(
+        Change.key(String.format("I%040d", id)),
+        Change.id(id),
+        Account.id(1000000),
+        BranchNameKey.create(Project.nameKey(project), "master"),
+        new Timestamp(System.currentTimeMillis()));
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
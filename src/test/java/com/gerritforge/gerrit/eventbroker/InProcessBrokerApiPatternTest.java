@@ -0,0 +1,105 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import org.junit.Test;
+
+public class InProcessBrokerApiPatternTest {
+  private final UUID instanceId = UUID.randomUUID();
+  private final InProcessBrokerApi brokerApi = new InProcessBrokerApi();
+
+  @Test
+  public void patternSubscriberShouldReceiveTheMessagesOfTopicsCreatedLater() {
+    List<String> received = new ArrayList<>();
+    brokerApi.receiveAsync("gerrit.#", m -> received.add(projectName(m)));
+
+    assertThat(brokerApi.send("gerrit.index.change", newMessage("p1"))).isTrue();
+    assertThat(brokerApi.send("gerrit.stream", newMessage("p2"))).isTrue();
+    assertThat(brokerApi.send("other", newMessage("p3"))).isTrue();
+
+    assertThat(received).containsExactly("p1", "p2").inOrder();
+  }
+
+  @Test
+  public void patternSubscriberShouldReceiveTheMessagesOfExistingTopics() {
+    List<String> exact = new ArrayList<>();
+    List<String> pattern = new ArrayList<>();
+    brokerApi.receiveAsync("gerrit.index.change", m -> exact.add(projectName(m)));
+    brokerApi.receiveAsync("gerrit.index.*", m -> pattern.add(projectName(m)));
+
+    brokerApi.send("gerrit.index.change", newMessage("p1"));
+    brokerApi.sendAsync("gerrit.index.account", newMessage("p2"));
+    brokerApi.sendBatch("gerrit.index.group", ImmutableList.of(newMessage("p3")));
+    brokerApi.send("gerrit.index", newMessage("p4"));
+
+    assertThat(exact).containsExactly("p1");
+    assertThat(pattern).containsExactly("p1", "p2", "p3").inOrder();
+  }
+
+  @Test
+  public void filteredPatternSubscriberShouldOnlyReceiveTheMatchingMessages() {
+    List<String> received = new ArrayList<>();
+    brokerApi.receiveAsync(
+        "gerrit.*",
+        MessageFilter.builder().projects("p2").build(),
+        m -> received.add(projectName(m)));
+
+    brokerApi.send("gerrit.stream", newMessage("p1"));
+    brokerApi.send("gerrit.stream", newMessage("p2"));
+
+    assertThat(received).containsExactly("p2");
+  }
+
+  @Test
+  public void patternGroupMembersShouldShareTheMessagesOfEachTopic() {
+    List<String> first = new ArrayList<>();
+    List<String> second = new ArrayList<>();
+    brokerApi.receiveAsync("gerrit.*", "group", m -> first.add(projectName(m)));
+    brokerApi.receiveAsync("gerrit.*", "group", m -> second.add(projectName(m)));
+
+    brokerApi.send("gerrit.stream", newMessage("p1"));
+    brokerApi.send("gerrit.stream", newMessage("p2"));
+
+    assertThat(first).hasSize(1);
+    assertThat(second).hasSize(1);
+  }
+
+  @Test
+  public void patternSubscriptionShouldBeListedWithItsPattern() {
+    Consumer<EventMessage> consumer = m -> {};
+    brokerApi.receiveAsync("gerrit.#", consumer);
+
+    assertThat(brokerApi.topicSubscribers())
+        .containsExactly(TopicSubscriber.topicSubscriber("gerrit.#", consumer));
+  }
+
+  private EventMessage newMessage(String projectName) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return new EventMessage(new EventMessage.Header(UUID.randomUUID(), instanceId), event);
+  }
+
+  private static String projectName(EventMessage message) {
+    return ((ProjectCreatedEvent) message.getEvent()).projectName;
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.DeliveryMode;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Test;
+
+public class InProcessBrokerApiRetryTest {
+  private static final String TOPIC = "topic";
+  private static final String DEAD_LETTER_SUFFIX = ".dead-letter";
+
+  private final UUID instanceId = UUID.randomUUID();
+  private final List<EventMessage> healthyReceived = new CopyOnWriteArrayList<>();
+  private final Consumer<EventMessage> healthyConsumer = healthyReceived::add;
+
+  private InProcessBrokerApi brokerApi;
+
+  @After
+  public void tearDown() {
+    if (brokerApi != null) {
+      brokerApi.disconnect();
+    }
+  }
+
+  @Test
+  public void failedDeliveryShouldBeRetriedToTheFailingConsumerOnly() throws Exception {
+    brokerApi = newBroker(DeliveryMode.SYNC, 3, Duration.ofMillis(10));
+    FailingConsumer failingConsumer = new FailingConsumer(2);
+    brokerApi.receiveAsync(TOPIC, healthyConsumer);
+    brokerApi.receiveAsync(TOPIC, failingConsumer);
+
+    assertThat(brokerApi.send(TOPIC, newMessage("p1"))).isTrue();
+
+    awaitCondition(() -> failingConsumer.received.size() == 1);
+    assertThat(failingConsumer.attempts.get()).isEqualTo(3);
+    assertThat(healthyReceived).hasSize(1);
+  }
+
+  @Test
+  public void exhaustedDeliveryShouldBeReplayableFromTheDeadLetterTopic() throws Exception {
+    brokerApi = newBroker(DeliveryMode.SYNC, 1, Duration.ofMillis(10));
+    FailingConsumer failingConsumer = new FailingConsumer(Integer.MAX_VALUE);
+    brokerApi.receiveAsync(TOPIC, failingConsumer);
+    EventMessage message = newMessage("p1");
+
+    brokerApi.send(TOPIC, message);
+    awaitCondition(() -> failingConsumer.attempts.get() == 2);
+
+    List<EventMessage> deadLetters = new CopyOnWriteArrayList<>();
+    brokerApi.receiveAsync(TOPIC + DEAD_LETTER_SUFFIX, deadLetters::add);
+    awaitCondition(
+        () -> {
+          brokerApi.replayAllEvents(TOPIC + DEAD_LETTER_SUFFIX);
+          return !deadLetters.isEmpty();
+        });
+    DeadLetterEvent deadLetter = (DeadLetterEvent) deadLetters.get(0).getEvent();
+    assertThat(deadLetter.topic).isEqualTo(TOPIC);
+    assertThat(deadLetter.subscriber).isEqualTo(FailingConsumer.class.getName());
+    assertThat(deadLetter.attempts).isEqualTo(2);
+    assertThat(deadLetter.failure).contains("Failure 2");
+    assertThat(deadLetter.message.getHeader().eventId).isEqualTo(message.getHeader().eventId);
+  }
+
+  @Test
+  public void pendingRetriesShouldNotHoldUpTheHealthyConsumers() throws Exception {
+    brokerApi = newBroker(DeliveryMode.MAILBOX, 3, Duration.ofMinutes(1));
+    FailingConsumer failingConsumer = new FailingConsumer(Integer.MAX_VALUE);
+    brokerApi.receiveAsync(TOPIC, failingConsumer);
+    brokerApi.receiveAsync(TOPIC, healthyConsumer);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(brokerApi.sendAsync(TOPIC, newMessage("p" + i)).get(5, TimeUnit.SECONDS))
+          .isEqualTo(SendResult.DELIVERED);
+    }
+
+    awaitCondition(() -> healthyReceived.size() == 100);
+    assertThat(failingConsumer.attempts.get()).isEqualTo(100);
+  }
+
+  @Test
+  public void drainShouldDiscardThePendingRetries() throws Exception {
+    brokerApi = newBroker(DeliveryMode.SYNC, 3, Duration.ofMinutes(1));
+    FailingConsumer failingConsumer = new FailingConsumer(Integer.MAX_VALUE);
+    brokerApi.receiveAsync(TOPIC, failingConsumer);
+
+    brokerApi.send(TOPIC, newMessage("p1"));
+    brokerApi.send(TOPIC, newMessage("p2"));
+
+    assertThat(brokerApi.drain(Duration.ZERO).dropped()).isEqualTo(2);
+  }
+
+  @Test
+  public void deadLetterEventsShouldBeEncodedWithTheMessage() {
+    DeadLetterEvent event = new DeadLetterEvent();
+    event.topic = TOPIC;
+    event.subscriber = "some.Subscriber";
+    event.attempts = 4;
+    event.failure = "java.lang.IllegalStateException: failed";
+    event.message = newMessage("p1");
+    BinaryEventMessageCodec codec = new BinaryEventMessageCodec();
+
+    DeadLetterEvent decoded =
+        (DeadLetterEvent)
+            codec
+                .decode(codec.encode(new EventMessage(newMessage("dl").getHeader(), event)))
+                .getEvent();
+
+    assertThat(decoded.attempts).isEqualTo(4);
+    assertThat(decoded.failure).isEqualTo(event.failure);
+    assertThat(((ProjectCreatedEvent) decoded.message.getEvent()).projectName).isEqualTo("p1");
+  }
+
+  @Test
+  public void retryBackoffShouldDoubleUpToTheMaximum() {
+    DeliveryRetries retries =
+        new DeliveryRetries(
+            InProcessBrokerConfig.builder()
+                .retryAttempts(10)
+                .retryBackoff(Duration.ofSeconds(1))
+                .retryMaxBackoff(Duration.ofSeconds(5))
+                .build(),
+            (topic, message) -> {});
+
+    assertThat(retries.backoff(1)).isEqualTo(Duration.ofSeconds(1));
+    assertThat(retries.backoff(2)).isEqualTo(Duration.ofSeconds(2));
+    assertThat(retries.backoff(3)).isEqualTo(Duration.ofSeconds(4));
+    assertThat(retries.backoff(4)).isEqualTo(Duration.ofSeconds(5));
+    assertThat(retries.backoff(100)).isEqualTo(Duration.ofSeconds(5));
+  }
+
+  private InProcessBrokerApi newBroker(
+      DeliveryMode deliveryMode, int retryAttempts, Duration retryBackoff) {
+    return new InProcessBrokerApi(
+        InProcessBrokerConfig.builder()
+            .deliveryMode(deliveryMode)
+            .retryAttempts(retryAttempts)
+            .retryBackoff(retryBackoff)
+            .retryMaxBackoff(retryBackoff.multipliedBy(4))
+            .deadLetterTopicSuffix(DEAD_LETTER_SUFFIX)
+            .build());
+  }
+
+  private EventMessage newMessage(String projectName) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return new EventMessage(new EventMessage.Header(UUID.randomUUID(), instanceId), event);
+  }
+
+  private static void awaitCondition(Condition condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.isMet() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(condition.isMet()).isTrue();
+  }
+
+  private interface Condition {
+    boolean isMet();
+  }
+
+  private static class FailingConsumer implements Consumer<EventMessage> {
+    final int failures;
+    final AtomicInteger attempts = new AtomicInteger();
+    final List<EventMessage> received = new CopyOnWriteArrayList<>();
+
+    FailingConsumer(int failures) {
+      this.failures = failures;
+    }
+
+    @Override
+    public void accept(EventMessage message) {
+      int attempt = attempts.incrementAndGet();
+      if (attempt <= failures) {
+        throw new IllegalStateException("Failure " + attempt);
+      }
+      received.add(message);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.gerritforge.gerrit.eventbroker.TopicSubscriber.topicSubscriber;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import org.junit.Test;
+
+public class InProcessBrokerApiUnsubscribeTest {
+  private static final String TOPIC = "topic";
+
+  private final UUID instanceId = UUID.randomUUID();
+  private final InProcessBrokerApi brokerApi = new InProcessBrokerApi();
+  private final List<String> received = new ArrayList<>();
+  private final Consumer<EventMessage> consumer = m -> received.add(projectName(m));
+
+  @Test
+  public void unsubscribedConsumerShouldNoLongerReceiveMessages() {
+    List<String> other = new ArrayList<>();
+    brokerApi.receiveAsync(TOPIC, consumer);
+    brokerApi.receiveAsync(TOPIC, m -> other.add(projectName(m)));
+
+    brokerApi.send(TOPIC, newMessage("p1"));
+    assertThat(brokerApi.unsubscribe(topicSubscriber(TOPIC, consumer))).isTrue();
+    brokerApi.send(TOPIC, newMessage("p2"));
+
+    assertThat(received).containsExactly("p1");
+    assertThat(other).containsExactly("p1", "p2").inOrder();
+    assertThat(brokerApi.topicSubscribers()).hasSize(1);
+  }
+
+  @Test
+  public void unknownSubscriberShouldNotBeUnsubscribed() {
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.unsubscribe(topicSubscriber("other", consumer))).isFalse();
+    assertThat(brokerApi.unsubscribe(topicSubscriber(TOPIC, "group", consumer))).isFalse();
+    assertThat(brokerApi.unsubscribe(topicSubscriber(TOPIC, consumer))).isTrue();
+    assertThat(brokerApi.unsubscribe(topicSubscriber(TOPIC, consumer))).isFalse();
+  }
+
+  @Test
+  public void resubscribedConsumerShouldReplayTheMessagesSentMeanwhile() {
+    brokerApi.receiveAsync(TOPIC, consumer);
+    brokerApi.send(TOPIC, newMessage("p1"));
+    brokerApi.unsubscribe(topicSubscriber(TOPIC, consumer));
+    brokerApi.send(TOPIC, newMessage("p2"));
+
+    brokerApi.receiveAsync(TOPIC, consumer);
+    brokerApi.replayAllEvents(TOPIC);
+
+    assertThat(received).containsExactly("p1", "p1", "p2").inOrder();
+  }
+
+  @Test
+  public void unsubscribedFilteredConsumerShouldNoLongerReceiveMessages() {
+    brokerApi.receiveAsync(TOPIC, MessageFilter.builder().projects("p1", "p2").build(), consumer);
+
+    brokerApi.send(TOPIC, newMessage("p1"));
+    brokerApi.unsubscribe(topicSubscriber(TOPIC, consumer));
+    brokerApi.send(TOPIC, newMessage("p2"));
+
+    assertThat(received).containsExactly("p1");
+  }
+
+  @Test
+  public void remainingGroupMembersShouldReceiveAllTheMessages() {
+    List<String> other = new ArrayList<>();
+    brokerApi.receiveAsync(TOPIC, "group", consumer);
+    brokerApi.receiveAsync(TOPIC, "group", m -> other.add(projectName(m)));
+
+    assertThat(brokerApi.unsubscribe(topicSubscriber(TOPIC, "group", consumer))).isTrue();
+    brokerApi.send(TOPIC, newMessage("p1"));
+    brokerApi.send(TOPIC, newMessage("p2"));
+
+    assertThat(received).isEmpty();
+    assertThat(other).containsExactly("p1", "p2").inOrder();
+  }
+
+  @Test
+  public void groupWithoutMembersShouldResumeFromItsDeliveredOffset() {
+    brokerApi.receiveAsync(TOPIC, "group", consumer);
+    brokerApi.send(TOPIC, newMessage("p1"));
+    brokerApi.unsubscribe(topicSubscriber(TOPIC, "group", consumer));
+    brokerApi.send(TOPIC, newMessage("p2"));
+
+    brokerApi.receiveAsync(TOPIC, "group", consumer);
+    brokerApi.replayFrom(TOPIC, 0);
+
+    assertThat(received).containsExactly("p1", "p2").inOrder();
+  }
+
+  @Test
+  public void unsubscribedPatternShouldNoLongerReceiveTheMessagesOfAnyTopic() {
+    brokerApi.receiveAsync("gerrit.#", consumer);
+    brokerApi.send("gerrit.stream", newMessage("p1"));
+
+    assertThat(brokerApi.unsubscribe(topicSubscriber("gerrit.#", consumer))).isTrue();
+    brokerApi.send("gerrit.stream", newMessage("p2"));
+    brokerApi.send("gerrit.index", newMessage("p3"));
+
+    assertThat(received).containsExactly("p1");
+    assertThat(brokerApi.topicSubscribers()).isEmpty();
+  }
+
+  private EventMessage newMessage(String projectName) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return new EventMessage(new EventMessage.Header(UUID.randomUUID(), instanceId), event);
+  }
+
+  private static String projectName(EventMessage message) {
+    return ((ProjectCreatedEvent) message.getEvent()).projectName;
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.gerritforge.gerrit.eventbroker.TopicSubscriber.topicSubscriber;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsBrokerApiTest {
+  private static final String TOPIC = "topic";
+
+  private final UUID instanceId = UUID.randomUUID();
+
+  private BrokerMetrics metrics;
+  private BrokerApi brokerApi;
+
+  @Before
+  public void setup() {
+    metrics = spy(new BrokerMetrics(new DisabledMetricMaker()));
+    brokerApi = new MetricsBrokerApi(new InProcessBrokerApi(), metrics);
+  }
+
+  @Test
+  public void shouldCountSentMessages() {
+    brokerApi.receiveAsync(TOPIC, m -> {});
+
+    brokerApi.send(TOPIC, newMessage());
+    brokerApi.sendBatch(TOPIC, ImmutableList.of(newMessage(), newMessage()));
+
+    verify(metrics, times(3)).sent(TOPIC, true);
+    verify(metrics, never()).sent(TOPIC, false);
+  }
+
+  @Test
+  public void shouldCountFailedMessagesAndSubscriberFailures() {
+    Consumer<EventMessage> failingConsumer =
+        m -> {
+          throw new IllegalStateException("Consumer failure");
+        };
+    brokerApi.receiveAsync(TOPIC, failingConsumer);
+
+    assertThat(brokerApi.send(TOPIC, newMessage())).isFalse();
+
+    verify(metrics).sent(TOPIC, false);
+    verify(metrics).failed(TOPIC, BrokerMetrics.subscriberName(failingConsumer));
+  }
+
+  @Test
+  public void shouldRecordSubscriberLatency() {
+    List<EventMessage> received = new ArrayList<>();
+    brokerApi.receiveAsync(TOPIC, received::add);
+
+    brokerApi.send(TOPIC, newMessage());
+
+    assertThat(received).hasSize(1);
+    verify(metrics).processed(eq(TOPIC), eq(MetricsBrokerApiTest.class.getName()), anyLong());
+  }
+
+  @Test
+  public void shouldKeepBatchConsumers() {
+    List<List<EventMessage>> batches = new ArrayList<>();
+    brokerApi.receiveAsync(
+        TOPIC,
+        new BatchConsumer() {
+          @Override
+          public void acceptBatch(List<EventMessage> messages) {
+            batches.add(messages);
+          }
+
+          @Override
+          public void accept(EventMessage message) {
+            fail("Batch consumer should receive the whole batch");
+          }
+        });
+
+    brokerApi.sendBatch(TOPIC, ImmutableList.of(newMessage(), newMessage()));
+
+    assertThat(batches).hasSize(1);
+  }
+
+  @Test
+  public void shouldReturnTheOriginalSubscribers() {
+    Consumer<EventMessage> consumer = m -> {};
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.topicSubscribers()).containsExactly(topicSubscriber(TOPIC, consumer));
+  }
+
+  @Test
+  public void shouldReturnTheOriginalGroupSubscribers() {
+    Consumer<EventMessage> consumer = m -> {};
+    brokerApi.receiveAsync(TOPIC, "group", consumer);
+
+    assertThat(brokerApi.topicSubscribers())
+        .containsExactly(topicSubscriber(TOPIC, "group", consumer));
+  }
+
+  @Test
+  public void shouldUnsubscribeTheOriginalSubscribers() {
+    List<EventMessage> received = new ArrayList<>();
+    Consumer<EventMessage> consumer = received::add;
+    brokerApi.receiveAsync(TOPIC, consumer);
+
+    assertThat(brokerApi.unsubscribe(topicSubscriber(TOPIC, consumer))).isTrue();
+    brokerApi.send(TOPIC, newMessage());
+
+    assertThat(received).isEmpty();
+    assertThat(brokerApi.topicSubscribers()).isEmpty();
+  }
+
+  @Test
+  public void shouldCountReplayRequests() {
+    brokerApi.receiveAsync(TOPIC, m -> {});
+
+    brokerApi.replayAllEvents(TOPIC);
+    brokerApi.replayFrom(TOPIC, 0);
+
+    verify(metrics, times(2)).replayRequested(TOPIC);
+  }
+
+  private EventMessage newMessage() {
+    return brokerApi.newMessage(instanceId, new ProjectCreatedEvent());
+  }
+}
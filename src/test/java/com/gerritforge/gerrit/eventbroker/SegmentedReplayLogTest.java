@@ -0,0 +1,257 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentedReplayLogTest {
+  private static final long SEGMENT_SIZE = 8 * 1024;
+  private static final Instant NOW = Instant.parse("2020-10-01T10:00:00Z");
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final EventMessageCodec codec = new BinaryEventMessageCodec();
+  private final UUID instanceId = UUID.randomUUID();
+  private Path logDirectory;
+
+  @Before
+  public void setup() throws IOException {
+    logDirectory = tempFolder.newFolder("topic").toPath();
+  }
+
+  @Test
+  public void shouldReplayAppendedMessagesInOrder() {
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW);
+
+    List<EventMessage> messages = appendMessages(replayLog, 3);
+
+    assertThat(eventIds(replay(replayLog))).containsExactlyElementsIn(eventIds(messages)).inOrder();
+    assertThat(projectName(replay(replayLog).get(2))).isEqualTo("project-2");
+  }
+
+  @Test
+  public void shouldReplayMessagesAfterReopeningTheLog() {
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW);
+    List<EventMessage> messages = appendMessages(replayLog, 500);
+    replayLog.flush();
+
+    SegmentedReplayLog reopenedLog = newLog(Long.MAX_VALUE, NOW);
+
+    assertThat(reopenedLog.nextOffset()).isEqualTo(500);
+    assertThat(eventIds(replay(reopenedLog)))
+        .containsExactlyElementsIn(eventIds(messages))
+        .inOrder();
+  }
+
+  @Test
+  public void shouldFlushAndStopStoringMessagesOnceClosed() {
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW);
+    List<EventMessage> messages = appendMessages(replayLog, 200);
+
+    replayLog.close();
+
+    assertThat(replayLog.append(messages.get(0))).isEqualTo(ReplayStore.NOT_STORED);
+    assertThat(replay(replayLog)).isEmpty();
+    assertThat(eventIds(replay(newLog(Long.MAX_VALUE, NOW))))
+        .containsExactlyElementsIn(eventIds(messages))
+        .inOrder();
+  }
+
+  @Test
+  public void shouldKeepAppendingAfterReopeningTheLog() {
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW);
+    List<EventMessage> messages = appendMessages(replayLog, 2);
+
+    SegmentedReplayLog reopenedLog = newLog(Long.MAX_VALUE, NOW);
+    messages.addAll(appendMessages(reopenedLog, 2));
+
+    assertThat(reopenedLog.nextOffset()).isEqualTo(4);
+    assertThat(eventIds(replay(newLog(Long.MAX_VALUE, NOW))))
+        .containsExactlyElementsIn(eventIds(messages))
+        .inOrder();
+  }
+
+  @Test
+  public void shouldWriteSparseIndexAndRollSegments() throws IOException {
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW);
+
+    appendMessages(replayLog, 200);
+
+    assertThat(files(SegmentedReplayLog.LOG_SUFFIX).size()).isGreaterThan(1);
+    Path firstIndex = files(SegmentedReplayLog.INDEX_SUFFIX).get(0);
+    byte[] index = Files.readAllBytes(firstIndex);
+    int firstIndexedPosition =
+        ((index[4] & 0xff) << 24)
+            | ((index[5] & 0xff) << 16)
+            | ((index[6] & 0xff) << 8)
+            | (index[7] & 0xff);
+    assertThat(firstIndexedPosition).isAtLeast(SegmentedReplayLog.INDEX_INTERVAL_BYTES);
+  }
+
+  @Test
+  public void shouldDeleteOldestSegmentsBeyondRetentionSize() throws IOException {
+    SegmentedReplayLog replayLog = newLog(2 * SEGMENT_SIZE, NOW);
+
+    List<EventMessage> messages = appendMessages(replayLog, 500);
+
+    assertThat(files(SegmentedReplayLog.LOG_SUFFIX).size()).isAtMost(3);
+    List<EventMessage> replayed = replay(replayLog);
+    assertThat(replayed.size()).isLessThan(messages.size());
+    assertThat(eventIds(replayed))
+        .containsExactlyElementsIn(
+            eventIds(messages.subList(messages.size() - replayed.size(), messages.size())))
+        .inOrder();
+  }
+
+  @Test
+  public void shouldDeleteSegmentsOlderThanRetentionAge() throws IOException {
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW);
+    appendMessages(replayLog, 200);
+    int segments = files(SegmentedReplayLog.LOG_SUFFIX).size();
+    assertThat(segments).isGreaterThan(1);
+
+    SegmentedReplayLog reopenedLog = newLog(Long.MAX_VALUE, NOW.plus(Duration.ofDays(2)));
+
+    assertThat(files(SegmentedReplayLog.LOG_SUFFIX)).hasSize(1);
+    assertThat(reopenedLog.nextOffset()).isEqualTo(200);
+  }
+
+  @Test
+  public void shouldReplayFromOffsetAcrossSegments() {
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW);
+    List<EventMessage> messages = appendMessages(replayLog, 200);
+
+    List<Long> offsets = new ArrayList<>();
+    List<EventMessage> replayed = new ArrayList<>();
+    replayLog.replay(
+        123,
+        (message, offset) -> {
+          replayed.add(message);
+          offsets.add(offset);
+        });
+
+    assertThat(offsets.get(0)).isEqualTo(123);
+    assertThat(eventIds(replayed))
+        .containsExactlyElementsIn(eventIds(messages.subList(123, 200)))
+        .inOrder();
+  }
+
+  @Test
+  public void shouldFindOffsetAtTimestamp() {
+    appendMessages(newLog(Long.MAX_VALUE, NOW), 10);
+    SegmentedReplayLog replayLog = newLog(Long.MAX_VALUE, NOW.plusSeconds(60));
+    appendMessages(replayLog, 10);
+
+    assertThat(replayLog.offsetAt(NOW)).isEqualTo(0);
+    assertThat(replayLog.offsetAt(NOW.plusSeconds(1))).isEqualTo(10);
+    assertThat(replayLog.offsetAt(NOW.plusSeconds(61))).isEqualTo(20);
+  }
+
+  @Test
+  public void shouldReplayEventsAfterBrokerRestart() throws IOException {
+    InProcessBrokerConfig config =
+        InProcessBrokerConfig.builder()
+            .replayLogDirectory(tempFolder.newFolder("replay").toPath())
+            .build();
+    BrokerApi broker = new InProcessBrokerApi(config);
+    broker.receiveAsync("some/topic", m -> {});
+    EventMessage message = broker.newMessage(instanceId, new ProjectCreatedEvent());
+    assertThat(broker.send("some/topic", message)).isTrue();
+
+    List<EventMessage> replayed = new ArrayList<>();
+    BrokerApi restartedBroker = new InProcessBrokerApi(config);
+    restartedBroker.receiveAsync("some/topic", replayed::add);
+    restartedBroker.replayAllEvents("some/topic");
+
+    assertThat(eventIds(replayed)).containsExactly(message.getHeader().eventId);
+  }
+
+  @Test
+  public void topicsShouldBeStoredInTheirOwnDirectory() throws IOException {
+    Path replayDirectory = tempFolder.newFolder("replay").toPath();
+
+    for (String topic : ImmutableList.of("..", ".", "", "some/topic", "../topic")) {
+      Path topicDirectory = InProcessBrokerApi.topicDirectory(replayDirectory, topic);
+      assertThat(topicDirectory.getParent().toString()).isEqualTo(replayDirectory.toString());
+    }
+    assertThat(InProcessBrokerApi.topicDirectory(replayDirectory, "..").toString())
+        .isNotEqualTo(InProcessBrokerApi.topicDirectory(replayDirectory, ".").toString());
+  }
+
+  private SegmentedReplayLog newLog(long retentionSize, Instant now) {
+    return new SegmentedReplayLog(
+        logDirectory,
+        SEGMENT_SIZE,
+        retentionSize,
+        Duration.ofDays(1),
+        codec,
+        Clock.fixed(now, ZoneOffset.UTC));
+  }
+
+  private List<EventMessage> appendMessages(SegmentedReplayLog replayLog, int count) {
+    List<EventMessage> messages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ProjectCreatedEvent event = new ProjectCreatedEvent();
+      event.projectName = "project-" + i;
+      EventMessage message = new EventMessage(new Header(UUID.randomUUID(), instanceId), event);
+      assertThat(replayLog.append(message)).isAtLeast(0L);
+      messages.add(message);
+    }
+    return messages;
+  }
+
+  private static List<EventMessage> replay(SegmentedReplayLog replayLog) {
+    List<EventMessage> replayed = new ArrayList<>();
+    replayLog.replay(replayed::add);
+    return replayed;
+  }
+
+  private static List<UUID> eventIds(List<EventMessage> messages) {
+    return messages.stream().map(m -> m.getHeader().eventId).collect(Collectors.toList());
+  }
+
+  private static String projectName(EventMessage message) {
+    return ((ProjectCreatedEvent) message.getEvent()).projectName;
+  }
+
+  private List<Path> files(String suffix) throws IOException {
+    try (Stream<Path> files = Files.list(logDirectory)) {
+      return files
+          .filter(f -> f.getFileName().toString().endsWith(suffix))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketBrokerApiTest {
+  private static final String TOPIC = "topic";
+
+  private final UUID instanceId = UUID.randomUUID();
+
+  private SocketBrokerServer server;
+  private SocketBrokerApi firstBroker;
+  private SocketBrokerApi secondBroker;
+
+  @Before
+  public void setUp() throws Exception {
+    server =
+        SocketBrokerServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+    firstBroker = newBroker();
+    secondBroker = newBroker();
+    awaitCondition(() -> firstBroker.isConnected() && secondBroker.isConnected());
+  }
+
+  @After
+  public void tearDown() {
+    firstBroker.disconnect();
+    secondBroker.disconnect();
+    server.close();
+  }
+
+  @Test
+  public void messagesShouldBeDeliveredToAllBrokers() throws Exception {
+    List<String> firstReceived = new CopyOnWriteArrayList<>();
+    List<String> secondReceived = new CopyOnWriteArrayList<>();
+    firstBroker.receiveAsync(TOPIC, m -> firstReceived.add(projectName(m)));
+    secondBroker.receiveAsync(TOPIC, m -> secondReceived.add(projectName(m)));
+
+    assertThat(firstBroker.send(TOPIC, newMessage("p1"))).isTrue();
+    assertThat(firstBroker.sendAsync(TOPIC, newMessage("p2")).get(5, TimeUnit.SECONDS))
+        .isEqualTo(SendResult.DELIVERED);
+
+    awaitCondition(() -> firstReceived.size() == 2 && secondReceived.size() == 2);
+    assertThat(firstReceived).containsExactly("p1", "p2").inOrder();
+    assertThat(secondReceived).containsExactly("p1", "p2").inOrder();
+  }
+
+  @Test
+  public void subscribersShouldBeReconnectedAfterDisconnecting() throws Exception {
+    List<String> received = new CopyOnWriteArrayList<>();
+    List<String> receivedAfterReconnecting = new CopyOnWriteArrayList<>();
+    firstBroker.receiveAsync(TOPIC, m -> received.add(projectName(m)));
+    assertThat(firstBroker.send(TOPIC, newMessage("p1"))).isTrue();
+    awaitCondition(() -> received.size() == 1);
+
+    firstBroker.disconnect();
+    assertThat(firstBroker.isConnected()).isFalse();
+    firstBroker.receiveAsync(TOPIC, m -> receivedAfterReconnecting.add(projectName(m)));
+    awaitCondition(firstBroker::isConnected);
+    assertThat(firstBroker.send(TOPIC, newMessage("p2"))).isTrue();
+
+    awaitCondition(() -> receivedAfterReconnecting.size() == 1);
+    assertThat(receivedAfterReconnecting).containsExactly("p2");
+    assertThat(received).containsExactly("p1");
+  }
+
+  @Test
+  public void batchesShouldBeDeliveredInOrder() throws Exception {
+    int messages = 1000;
+    List<String> received = new CopyOnWriteArrayList<>();
+    secondBroker.receiveAsync(TOPIC, m -> received.add(projectName(m)));
+    List<EventMessage> batch = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < messages; i++) {
+      batch.add(newMessage("p" + i));
+      expected.add("p" + i);
+    }
+
+    assertThat(firstBroker.sendBatch(TOPIC, batch)).doesNotContain(false);
+
+    awaitCondition(() -> received.size() == messages);
+    assertThat(received).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void messagesShouldOnlyBeDeliveredToTheirTopic() throws Exception {
+    List<String> received = new CopyOnWriteArrayList<>();
+    secondBroker.receiveAsync(TOPIC, m -> received.add(projectName(m)));
+
+    firstBroker.sendBatch(
+        "other-topic", ImmutableList.of(newMessage("other-1"), newMessage("other-2")));
+    firstBroker.send(TOPIC, newMessage("p1"));
+
+    awaitCondition(() -> received.size() == 1);
+    assertThat(received).containsExactly("p1");
+  }
+
+  @Test
+  public void compressedBatchesShouldBeDeliveredInOrder() throws Exception {
+    SocketBrokerApi compressingBroker =
+        newBroker(
+            InProcessBrokerConfig.builder()
+                .compression(true)
+                .batchMaxBytes(4096)
+                .batchLinger(Duration.ofMillis(5))
+                .build());
+    try {
+      awaitCondition(compressingBroker::isConnected);
+      List<String> received = new CopyOnWriteArrayList<>();
+      secondBroker.receiveAsync(TOPIC, m -> received.add(projectName(m)));
+      List<EventMessage> batch = new ArrayList<>();
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        String projectName = Strings.repeat("some/long/project/name/", 20) + i;
+        batch.add(newMessage(projectName));
+        expected.add(projectName);
+      }
+
+      assertThat(compressingBroker.sendBatch(TOPIC, batch)).doesNotContain(false);
+
+      awaitCondition(() -> received.size() == expected.size());
+      assertThat(received).containsExactlyElementsIn(expected).inOrder();
+    } finally {
+      compressingBroker.disconnect();
+    }
+  }
+
+  @Test
+  public void selfOriginatedMessagesShouldOnlyBeDeliveredToTheOtherBrokers() throws Exception {
+    SocketBrokerApi localBroker =
+        newBroker(InProcessBrokerConfig.builder().localInstanceId(instanceId).build());
+    try {
+      awaitCondition(localBroker::isConnected);
+      List<String> localReceived = new CopyOnWriteArrayList<>();
+      List<String> otherReceived = new CopyOnWriteArrayList<>();
+      localBroker.receiveAsync(TOPIC, m -> localReceived.add(projectName(m)));
+      secondBroker.receiveAsync(TOPIC, m -> otherReceived.add(projectName(m)));
+
+      assertThat(localBroker.send(TOPIC, newMessage("local"))).isTrue();
+      awaitCondition(() -> otherReceived.size() == 1);
+      assertThat(secondBroker.send(TOPIC, newMessage("remote", UUID.randomUUID()))).isTrue();
+
+      awaitCondition(() -> localReceived.size() == 1 && otherReceived.size() == 2);
+      assertThat(localReceived).containsExactly("remote");
+      assertThat(otherReceived).containsExactly("local", "remote").inOrder();
+    } finally {
+      localBroker.disconnect();
+    }
+  }
+
+  private SocketBrokerApi newBroker() throws Exception {
+    return newBroker(InProcessBrokerConfig.defaults());
+  }
+
+  private SocketBrokerApi newBroker(InProcessBrokerConfig config) throws Exception {
+    return new SocketBrokerApi(server.localAddress(), null, config);
+  }
+
+  private EventMessage newMessage(String projectName) {
+    return newMessage(projectName, instanceId);
+  }
+
+  private static EventMessage newMessage(String projectName, UUID sourceInstanceId) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return new EventMessage(new EventMessage.Header(UUID.randomUUID(), sourceInstanceId), event);
+  }
+
+  private static String projectName(EventMessage message) {
+    return ((ProjectCreatedEvent) message.getEvent()).projectName;
+  }
+
+  private static void awaitCondition(Condition condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.isMet() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(condition.isMet()).isTrue();
+  }
+
+  private interface Condition {
+    boolean isMet();
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.eventbroker.InProcessBrokerConfig.OverflowPolicy;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.Test;
+
+public class TopicConsumersTest {
+  private final AtomicInteger mailboxes = new AtomicInteger();
+  private final TopicConsumers topicConsumers =
+      new TopicConsumers(
+          "topic",
+          new EventMessageRingBuffer(10),
+          consumer -> {
+            mailboxes.incrementAndGet();
+            return new SubscriberMailbox(
+                "topic", MoreExecutors.directExecutor(), 10, OverflowPolicy.BLOCK);
+          },
+          null);
+
+  @Test
+  public void registeringAgainShouldNotCreateAnotherMailbox() {
+    Consumer<EventMessage> consumer = m -> {};
+    Consumer<EventMessage> filteredConsumer = m -> {};
+    Consumer<EventMessage> member = m -> {};
+    MessageFilter filter = MessageFilter.builder().eventTypes("project-created").build();
+
+    for (int i = 0; i < 2; i++) {
+      topicConsumers.register(consumer);
+      topicConsumers.register(filter, filteredConsumer);
+      topicConsumers.register("group", member);
+    }
+
+    assertThat(mailboxes.get()).isEqualTo(3);
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.eventbroker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import java.util.List;
+import org.junit.Test;
+
+public class TopicRouterTest {
+  private final TopicRouter router = new TopicRouter();
+
+  @Test
+  public void onlyTopicsWithWildcardSegmentsShouldBePatterns() {
+    assertThat(TopicRouter.isPattern("gerrit.index.*")).isTrue();
+    assertThat(TopicRouter.isPattern("gerrit.#")).isTrue();
+    assertThat(TopicRouter.isPattern("#")).isTrue();
+    assertThat(TopicRouter.isPattern("gerrit.index")).isFalse();
+    assertThat(TopicRouter.isPattern("gerrit.index*")).isFalse();
+  }
+
+  @Test
+  public void singleSegmentWildcardShouldMatchExactlyOneSegment() {
+    add("gerrit.index.*");
+
+    assertThat(patterns("gerrit.index.change")).containsExactly("gerrit.index.*");
+    assertThat(patterns("gerrit.index")).isEmpty();
+    assertThat(patterns("gerrit.index.change.deleted")).isEmpty();
+    assertThat(patterns("gerrit.stream.change")).isEmpty();
+  }
+
+  @Test
+  public void anySegmentsWildcardShouldMatchZeroOrMoreSegments() {
+    add("gerrit.#");
+    add("#.deleted");
+
+    assertThat(patterns("gerrit")).containsExactly("gerrit.#");
+    assertThat(patterns("gerrit.index.change")).containsExactly("gerrit.#");
+    assertThat(patterns("gerrit.index.deleted")).containsExactly("gerrit.#", "#.deleted");
+    assertThat(patterns("deleted")).containsExactly("#.deleted");
+    assertThat(patterns("other")).isEmpty();
+  }
+
+  @Test
+  public void routesShouldBeRecomputedWhenThePatternsChange() {
+    add("gerrit.*");
+    assertThat(patterns("gerrit.index")).containsExactly("gerrit.*");
+
+    add("*.index");
+    assertThat(patterns("gerrit.index")).containsExactly("gerrit.*", "*.index");
+
+    router.clear();
+    assertThat(patterns("gerrit.index")).isEmpty();
+  }
+
+  @Test
+  public void removedSubscriptionShouldNoLongerBeRouted() {
+    TopicSubscriber subscriber = TopicSubscriber.topicSubscriber("gerrit.*", m -> {});
+    router.add(subscriber, t -> {});
+    add("gerrit.*");
+    assertThat(patterns("gerrit.index")).containsExactly("gerrit.*", "gerrit.*");
+
+    assertThat(router.remove(subscriber)).isNotNull();
+    assertThat(router.remove(subscriber)).isNull();
+    assertThat(patterns("gerrit.index")).containsExactly("gerrit.*");
+  }
+
+  @Test
+  public void onlyTheTopicsMatchingAPatternShouldBeCached() {
+    add("gerrit.*");
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(patterns("other.topic-" + i)).isEmpty();
+    }
+    assertThat(router.cachedRoutes()).isEqualTo(0);
+    assertThat(patterns("gerrit.index")).containsExactly("gerrit.*");
+    assertThat(router.cachedRoutes()).isEqualTo(1);
+  }
+
+  private void add(String pattern) {
+    router.add(TopicSubscriber.topicSubscriber(pattern, m -> {}), t -> {});
+  }
+
+  private List<String> patterns(String topic) {
+    return router.route(topic).stream().map(s -> s.pattern).collect(toList());
+  }
+}